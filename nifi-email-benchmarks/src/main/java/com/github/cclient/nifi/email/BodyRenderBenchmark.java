@@ -0,0 +1,165 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering throughput of the attribute table across group sizes, attribute counts and value lengths. Run through
+ * {@link Benchmarks} to also get the allocation rate per operation from the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class BodyRenderBenchmark {
+
+    @Param({"1", "100", "1000", "10000"})
+    public int groupSize;
+
+    @Param({"5", "50", "200"})
+    public int attributeCount;
+
+    @Param({"16", "256"})
+    public int valueLength;
+
+    /**
+     * The same markup as {@link HtmlTableFormat}, expressed as a body template.
+     */
+    private static final String TABLE_TEMPLATE = "<table border=\"1\" cellspacing=\"0\" ><thead align=\"center\" valign=\"middle\"><tr>"
+            + "{{#columns}}<th>{{.}}</th>{{/columns}}</tr></thead><tbody>{{#rows}}<tr>{{#cells}}<td>{{.}}</td>{{/cells}}</tr>{{/rows}}"
+            + "</tbody></table>";
+
+    private List<FlowFile> flowFiles;
+    private ColumnSelector fiveColumns;
+    private BodyTemplate template;
+    private final byte[] sink = new byte[8192];
+
+    @Setup
+    public void setup() {
+        flowFiles = SyntheticFlowFiles.create(groupSize, attributeCount, valueLength);
+        fiveColumns = new ColumnSelector(null, null, "attribute.0,attribute.1,attribute.2,attribute.3,attribute.4");
+        template = BodyTemplate.compile(TABLE_TEMPLATE);
+    }
+
+    /**
+     * The body as a String, as handed to {@code Message#setContent}.
+     */
+    @Benchmark
+    public String stringBody() {
+        return Util.buildEmailHtmlBodyByAttr(flowFiles);
+    }
+
+    /**
+     * The body as streamed into the message, one row at a time.
+     */
+    @Benchmark
+    public long streamedBody() throws IOException {
+        return drain(new FlowFileTable(flowFiles));
+    }
+
+    /**
+     * The streamed body narrowed to five listed columns.
+     */
+    @Benchmark
+    public long projectedBody() throws IOException {
+        return drain(new FlowFileTable(flowFiles, fiveColumns));
+    }
+
+    /**
+     * The streamed body laid out by a compiled template producing the same markup.
+     */
+    @Benchmark
+    public long templatedBody() throws IOException {
+        return drain(new FlowFileTable(flowFiles), template.newFormat());
+    }
+
+    /**
+     * The plain text and HTML tables of a multipart/alternative body, both rendered from a single scan of the rows.
+     */
+    @Benchmark
+    public long alternativeBody() throws IOException, MessagingException {
+        final MimeBodyPart part = new MimeBodyPart();
+        Util.setAlternativeTableContent(part, new FlowFileTable(flowFiles), HtmlTableFormat.INSTANCE, "text/html", SendMetrics.DISABLED);
+        final MimeMultipart alternatives = (MimeMultipart) part.getContent();
+        long bytes = 0;
+        for (int i = 0; i < alternatives.getCount(); i++) {
+            bytes += drain(alternatives.getBodyPart(i).getDataHandler().getInputStream());
+        }
+        return bytes;
+    }
+
+    private long drain(final EmailTable table) throws IOException {
+        return drain(table, HtmlTableFormat.INSTANCE);
+    }
+
+    private long drain(final EmailTable table, final TableFormat format) throws IOException {
+        return drain(new TableInputStream(table, format));
+    }
+
+    private long drain(final InputStream stream) throws IOException {
+        long bytes = 0;
+        try (InputStream in = stream) {
+            int read;
+            while ((read = in.read(sink)) != -1) {
+                bytes += read;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The original string concatenation renderer, kept as a fixed reference point.
+     */
+    @Benchmark
+    public String concatenatedBaseline() {
+        List<Map<String, String>> attrList = flowFiles.stream().map(flowFile -> flowFile.getAttributes()).collect(Collectors.toList());
+        List<String> allKeys = attrList.stream().map(attr -> attr.keySet()).flatMap(keys -> keys.stream()).distinct().collect(Collectors.toList());
+        Collections.sort(allKeys);
+        StringBuilder sb = new StringBuilder();
+        sb.append("<table border=\"1\" cellspacing=\"0\" >");
+        sb.append("<thead align=\"center\" valign=\"middle\">");
+        sb.append("<tr>");
+        allKeys.forEach(key -> sb.append("<th>" + key + "</th>"));
+        sb.append("<th>entryDate</th>");
+        sb.append("<th>size</th>");
+        sb.append("</tr>");
+        sb.append("</thead>");
+        sb.append("<tbody>");
+        flowFiles.forEach(flowFile -> {
+            Map<String, String> kvs = flowFile.getAttributes();
+            sb.append("<tr>");
+            allKeys.forEach(key -> sb.append("<td>" + kvs.getOrDefault(key, "") + "</td>"));
+            sb.append("<td>" + new Date(flowFile.getEntryDate()) + "</td>");
+            sb.append("<td>" + flowFile.getSize() + "</td>");
+            sb.append("</tr>");
+        });
+        sb.append("</tbody>");
+        sb.append("</table>");
+        return sb.toString();
+    }
+}
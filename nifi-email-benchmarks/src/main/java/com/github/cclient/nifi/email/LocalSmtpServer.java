@@ -0,0 +1,110 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * An SMTP server on the loopback interface that accepts and discards every message. Each DATA command can be delayed
+ * to simulate a slow relay, and every Nth message can be rejected with a fixed reply code.
+ */
+final class LocalSmtpServer implements AutoCloseable {
+
+    private final SMTPServer server;
+    private final long latencyMillis;
+    private final int failureCode;
+    private final long failEvery;
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong recipients = new AtomicLong();
+
+    /**
+     * @param latencyMillis the delay before each DATA command is answered
+     * @param failureCode   the reply code of rejected messages, e.g. 451 or 550
+     * @param failEvery     reject every Nth message, or 0 to accept all of them
+     */
+    LocalSmtpServer(final long latencyMillis, final int failureCode, final long failEvery) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.failureCode = failureCode;
+        this.failEvery = failEvery;
+        this.server = new SMTPServer(this::newHandler);
+        this.server.setBindAddress(InetAddress.getLoopbackAddress());
+        this.server.setPort(freePort());
+        this.server.setMaxConnections(1000);
+        this.server.setDisableReceivedHeaders(true);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    int getPort() {
+        return server.getPort();
+    }
+
+    long getAcceptedMessages() {
+        return accepted.get();
+    }
+
+    long getAcceptedRecipients() {
+        return recipients.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+
+    private MessageHandler newHandler(final MessageContext context) {
+        return new MessageHandler() {
+            private int messageRecipients = 0;
+
+            @Override
+            public void from(final String from) {
+            }
+
+            @Override
+            public void recipient(final String recipient) {
+                messageRecipients++;
+            }
+
+            @Override
+            public void data(final InputStream data) throws IOException {
+                final byte[] buffer = new byte[8192];
+                while (data.read(buffer) != -1) {
+                    // discard
+                }
+                if (latencyMillis > 0) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(latencyMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (failEvery > 0 && messages.incrementAndGet() % failEvery == 0) {
+                    throw new RejectException(failureCode, "Rejected by test server");
+                }
+                accepted.incrementAndGet();
+                recipients.addAndGet(messageRecipients);
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
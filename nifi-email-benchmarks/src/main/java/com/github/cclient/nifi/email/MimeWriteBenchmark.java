@@ -0,0 +1,82 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Assembling a complete message and serializing it with {@link MimeMessage#writeTo(OutputStream)}, including the
+ * quoted-printable transfer encoding, as the SMTP transport does during DATA.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class MimeWriteBenchmark {
+
+    @Param({"1", "100", "1000", "10000"})
+    public int groupSize;
+
+    @Param({"5", "50", "200"})
+    public int attributeCount;
+
+    @Param({"64"})
+    public int valueLength;
+
+    private List<FlowFile> flowFiles;
+    private SendProfile profile;
+
+    @Setup
+    public void setup() {
+        flowFiles = SyntheticFlowFiles.create(groupSize, attributeCount, valueLength);
+        final TestRunner runner = TestRunners.newTestRunner(SendEmail.class);
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "localhost");
+        runner.setProperty(SendEmail.FROM, "nifi@example.com");
+        runner.setProperty(SendEmail.TO, "ops@example.com");
+        profile = SendProfile.from(runner.getProcessContext(), runner.getLogger());
+    }
+
+    @Benchmark
+    public long writeTo() throws MessagingException, IOException {
+        final MimeMessage message = profile.newMessage(flowFiles.get(0));
+        Util.setTableContent(message, new FlowFileTable(flowFiles), HtmlTableFormat.INSTANCE, profile.getContentType());
+        final CountingOutputStream out = new CountingOutputStream();
+        message.writeTo(out);
+        return out.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+}
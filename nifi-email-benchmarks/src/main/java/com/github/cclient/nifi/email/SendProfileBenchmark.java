@@ -0,0 +1,63 @@
+package com.github.cclient.nifi.email;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-trigger cost of preparing an outgoing message: resolving the mail properties, session and addresses on every
+ * trigger versus reusing the {@link SendProfile} resolved when the processor was scheduled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendProfileBenchmark {
+
+    private ProcessContext context;
+    private ComponentLog logger;
+    private SendProfile profile;
+
+    @Setup
+    public void setup() {
+        final TestRunner runner = TestRunners.newTestRunner(SendEmail.class);
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "localhost");
+        runner.setProperty(SendEmail.SMTP_USERNAME, "nifi");
+        runner.setProperty(SendEmail.SMTP_PASSWORD, "secret");
+        runner.setProperty(SendEmail.FROM, "NiFi <nifi@example.com>");
+        runner.setProperty(SendEmail.TO, "ops@example.com, oncall@example.com");
+        runner.setProperty(SendEmail.CC, "team-lead@example.com");
+        runner.setProperty(SendEmail.BCC, "audit@example.com");
+        this.context = runner.getProcessContext();
+        this.logger = runner.getLogger();
+        this.profile = SendProfile.from(context, logger);
+    }
+
+    @Benchmark
+    public MimeMessage resolvePerTrigger() throws MessagingException {
+        return SendProfile.from(context, logger).newMessage();
+    }
+
+    @Benchmark
+    public MimeMessage cachedProfile() throws MessagingException {
+        return profile.newMessage();
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.cclient.nifi.email;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.util.MockFlowFile;
+
+/**
+ * Offline FlowFile fixtures for the benchmarks.
+ */
+final class SyntheticFlowFiles {
+
+    private static final int DISTINCT_VALUES = 64;
+
+    private SyntheticFlowFiles() {
+    }
+
+    /**
+     * Creates FlowFiles with {@code attributeCount} attributes of {@code valueLength} characters each. Values are drawn
+     * from a small shared pool, so that 10k FlowFiles with 200 long attributes still fit comfortably in the heap, while
+     * every rendered cell still has the full length.
+     */
+    static List<FlowFile> create(final int count, final int attributeCount, final int valueLength) {
+        final String[] values = new String[DISTINCT_VALUES];
+        for (int i = 0; i < values.length; i++) {
+            final StringBuilder value = new StringBuilder(valueLength);
+            while (value.length() < valueLength) {
+                value.append("value-").append(i).append(i % 7 == 0 ? " <&> " : " ");
+            }
+            values[i] = value.substring(0, valueLength);
+        }
+
+        final List<FlowFile> flowFiles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Map<String, String> attributes = new HashMap<>(attributeCount * 2);
+            for (int a = 0; a < attributeCount; a++) {
+                attributes.put("attribute." + a, values[(i + a) % DISTINCT_VALUES]);
+            }
+            final MockFlowFile flowFile = new MockFlowFile(i);
+            flowFile.putAttributes(attributes);
+            flowFiles.add(flowFile);
+        }
+        return flowFiles;
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.cclient.nifi.email;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+/**
+ * Drives {@link SendEmail} through a {@link TestRunner} against a {@link LocalSmtpServer} and reports the sustained
+ * send rate, the send latency and the heap high-water mark. Runs without network access, so it can be used to gate
+ * releases: if a threshold is configured and violated, the process exits with status 1.
+ * <p>
+ * Configured through system properties:
+ * <ul>
+ * <li>{@code harness.flowFiles} FlowFiles to enqueue (100000)</li>
+ * <li>{@code harness.attributes} attributes per FlowFile (20)</li>
+ * <li>{@code harness.timeoutSeconds} give up after this long (600)</li>
+ * <li>{@code harness.server.latencyMillis} delay of every DATA reply (0)</li>
+ * <li>{@code harness.server.failureCode} reply code of rejected messages (550)</li>
+ * <li>{@code harness.server.failEvery} reject every Nth message, 0 for none (0)</li>
+ * <li>{@code harness.property.<name>} any SendEmail property, e.g. {@code -Dharness.property.Group\ Size=500}; with
+ * {@code -Dharness.property.Metrics=Counters} the total time spent in each stage is reported as well</li>
+ * <li>{@code harness.maxP99Millis}, {@code harness.minMessagesPerSecond}, {@code harness.minFlowFilesPerSecond},
+ * {@code harness.maxHeapMegabytes} thresholds, unchecked if absent</li>
+ * </ul>
+ */
+public final class ThroughputHarness {
+
+    private static final String PROPERTY_PREFIX = "harness.property.";
+
+    private ThroughputHarness() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int flowFiles = Integer.getInteger("harness.flowFiles", 100_000);
+        final int attributes = Integer.getInteger("harness.attributes", 20);
+        final long timeoutNanos = TimeUnit.SECONDS.toNanos(Long.getLong("harness.timeoutSeconds", 600));
+
+        try (LocalSmtpServer server = new LocalSmtpServer(
+                Long.getLong("harness.server.latencyMillis", 0),
+                Integer.getInteger("harness.server.failureCode", 550),
+                Long.getLong("harness.server.failEvery", 0))) {
+            server.start();
+
+            final TimedSendEmail processor = new TimedSendEmail();
+            final TestRunner runner = TestRunners.newTestRunner(processor);
+            runner.setProperty(SendEmail.SMTP_HOSTNAME, "127.0.0.1");
+            runner.setProperty(SendEmail.SMTP_PORT, String.valueOf(server.getPort()));
+            runner.setProperty(SendEmail.SMTP_AUTH, "false");
+            runner.setProperty(SendEmail.SMTP_SOCKET_FACTORY, "javax.net.SocketFactory");
+            runner.setProperty(SendEmail.FROM, "nifi@example.com");
+            runner.setProperty(SendEmail.TO, "ops@example.com");
+            runner.setProperty(SendEmail.GROUP_SIZE, "100");
+            for (final String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith(PROPERTY_PREFIX)) {
+                    runner.setProperty(name.substring(PROPERTY_PREFIX.length()), System.getProperty(name));
+                }
+            }
+            runner.assertValid();
+
+            final byte[] content = "harness".getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < flowFiles; i++) {
+                final Map<String, String> flowFileAttributes = new HashMap<>();
+                for (int a = 0; a < attributes; a++) {
+                    flowFileAttributes.put("attribute." + a, "value-" + ((i + a) % 64));
+                }
+                runner.enqueue(content, flowFileAttributes);
+            }
+
+            final List<MemoryPoolMXBean> heapPools = heapPools();
+            System.gc();
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+            final long start = System.nanoTime();
+            final long deadline = start + timeoutNanos;
+            runner.run(1, false, true);
+            while (routed(runner) < flowFiles && System.nanoTime() < deadline) {
+                runner.run(1, false, false);
+            }
+            final long elapsedNanos = System.nanoTime() - start;
+            runner.run(1, true, false);
+
+            long peakHeapBytes = 0;
+            for (final MemoryPoolMXBean pool : heapPools) {
+                peakHeapBytes += pool.getPeakUsage().getUsed();
+            }
+            final long[] latencies = processor.latencies();
+            Arrays.sort(latencies);
+            final double seconds = elapsedNanos / 1e9;
+
+            final Report report = new Report();
+            report.add("flowfiles.success", runner.getFlowFilesForRelationship(SendEmail.REL_SUCCESS).size());
+            report.add("flowfiles.failure", runner.getFlowFilesForRelationship(SendEmail.REL_FAILURE).size());
+            report.add("flowfiles.unrouted", flowFiles - routed(runner));
+            report.add("emails.attempted", latencies.length);
+            report.add("emails.accepted", server.getAcceptedMessages());
+            report.add("elapsed.seconds", seconds);
+            report.add("messages.per.second", server.getAcceptedMessages() / seconds);
+            report.add("flowfiles.per.second", runner.getFlowFilesForRelationship(SendEmail.REL_SUCCESS).size() / seconds);
+            report.add("send.p50.millis", percentile(latencies, 0.50) / 1e6);
+            report.add("send.p99.millis", percentile(latencies, 0.99) / 1e6);
+            report.add("send.max.millis", latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6);
+            report.add("heap.peak.megabytes", peakHeapBytes / (1024.0 * 1024.0));
+            final Long bodyBytes = runner.getCounterValue(SendMetrics.BODY_BYTES);
+            if (bodyBytes != null && latencies.length > 0) {
+                report.add("body.kilobytes.per.email", bodyBytes / 1024.0 / latencies.length);
+            }
+            for (final SendMetrics.Stage stage : SendMetrics.Stage.values()) {
+                final Long micros = runner.getCounterValue(stage.getCounterName());
+                if (micros != null) {
+                    report.add("stage." + stage.name().toLowerCase() + ".millis", micros / 1000.0);
+                }
+            }
+            report.print();
+
+            final List<String> violations = new ArrayList<>();
+            if (routed(runner) < flowFiles) {
+                violations.add("timed out with " + (flowFiles - routed(runner)) + " FlowFiles unrouted");
+            }
+            checkMax(violations, "harness.maxP99Millis", report.get("send.p99.millis"));
+            checkMin(violations, "harness.minMessagesPerSecond", report.get("messages.per.second"));
+            checkMin(violations, "harness.minFlowFilesPerSecond", report.get("flowfiles.per.second"));
+            checkMax(violations, "harness.maxHeapMegabytes", report.get("heap.peak.megabytes"));
+            if (!violations.isEmpty()) {
+                violations.forEach(violation -> System.err.println("FAILED: " + violation));
+                System.exit(1);
+            }
+        }
+    }
+
+    private static int routed(final TestRunner runner) {
+        if (!runner.isQueueEmpty()) {
+            return 0;
+        }
+        return runner.getFlowFilesForRelationship(SendEmail.REL_SUCCESS).size()
+                + runner.getFlowFilesForRelationship(SendEmail.REL_FAILURE).size();
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        final List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static long percentile(final long[] sorted, final double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    private static void checkMax(final List<String> violations, final String threshold, final double value) {
+        final String limit = System.getProperty(threshold);
+        if (limit != null && value > Double.parseDouble(limit)) {
+            violations.add(threshold + "=" + limit + " exceeded: " + value);
+        }
+    }
+
+    private static void checkMin(final List<String> violations, final String threshold, final double value) {
+        final String limit = System.getProperty(threshold);
+        if (limit != null && value < Double.parseDouble(limit)) {
+            violations.add(threshold + "=" + limit + " not reached: " + value);
+        }
+    }
+
+    /**
+     * Times every call of {@link SendEmail#send(Message)}, which covers borrowing a connection and the SMTP
+     * conversation of one email.
+     */
+    private static final class TimedSendEmail extends SendEmail {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+
+        @Override
+        protected void send(final Message msg) throws MessagingException {
+            final long start = System.nanoTime();
+            try {
+                super.send(msg);
+            } finally {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        private synchronized void record(final long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count << 1);
+            }
+            latencies[count++] = nanos;
+        }
+
+        private synchronized long[] latencies() {
+            return Arrays.copyOf(latencies, count);
+        }
+    }
+
+    private static final class Report {
+        private final Map<String, Double> values = new LinkedHashMap<>();
+
+        private void add(final String name, final double value) {
+            values.put(name, value);
+        }
+
+        private double get(final String name) {
+            return values.get(name);
+        }
+
+        private void print() {
+            values.forEach((name, value) -> System.out.println(value == Math.rint(value)
+                    ? String.format("%-24s %d", name, value.longValue())
+                    : String.format("%-24s %.2f", name, value)));
+        }
+    }
+}
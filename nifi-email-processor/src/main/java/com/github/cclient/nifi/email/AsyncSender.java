@@ -0,0 +1,162 @@
+package com.github.cclient.nifi.email;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+
+/**
+ * Sends rendered messages on a dedicated, fixed-size thread pool so that NiFi's timer-driven threads do not block on
+ * the SMTP conversation. The session that pulled a batch's FlowFiles is held, uncommitted, until every email of the
+ * batch has been sent, and is handed back by {@link #drainCompleted()} so the FlowFiles can be routed on a later trigger.
+ */
+class AsyncSender {
+
+    /**
+     * Sends a single message; {@link SendEmail#send(Message)}.
+     */
+    interface MessageSender {
+        void send(Message message) throws MessagingException;
+    }
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<PendingBatch> pending = new ConcurrentLinkedQueue<>();
+
+    AsyncSender(final int threads, final int maxInFlight) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "SendEmail-Sender-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return false once Max In-Flight Emails are queued or being sent, meaning no more FlowFiles should be pulled
+     */
+    boolean hasCapacity() {
+        return inFlight.get() < maxInFlight;
+    }
+
+    /**
+     * Queues the emails for sending and takes ownership of the session until they have all completed.
+     */
+    void submit(final ProcessSession session, final List<PendingEmail> emails, final MessageSender sender) {
+        for (final PendingEmail email : emails) {
+            inFlight.incrementAndGet();
+            email.future = CompletableFuture.runAsync(() -> {
+                try {
+                    sender.send(email.message);
+                } catch (MessagingException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            email.future.whenComplete((ignored, failure) -> inFlight.decrementAndGet());
+        }
+        pending.add(new PendingBatch(session, emails));
+    }
+
+    /**
+     * Removes and returns the batches whose emails have all completed. Each batch is returned to exactly one caller.
+     */
+    List<PendingBatch> drainCompleted() {
+        final List<PendingBatch> completed = new ArrayList<>();
+        for (final Iterator<PendingBatch> iterator = pending.iterator(); iterator.hasNext(); ) {
+            final PendingBatch batch = iterator.next();
+            if (batch.isDone() && pending.remove(batch)) {
+                completed.add(batch);
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Stops accepting emails and waits up to the timeout for the queued ones to be sent.
+     *
+     * @return the batches that completed in time; the sessions of the others have been rolled back
+     */
+    List<PendingBatch> shutdown(final long timeout, final TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(timeout, unit)) {
+            executor.shutdownNow();
+        }
+        final List<PendingBatch> completed = drainCompleted();
+        PendingBatch batch;
+        while ((batch = pending.poll()) != null) {
+            batch.session.rollback();
+        }
+        return completed;
+    }
+
+    static final class PendingBatch {
+        private final ProcessSession session;
+        private final List<PendingEmail> emails;
+
+        private PendingBatch(final ProcessSession session, final List<PendingEmail> emails) {
+            this.session = session;
+            this.emails = emails;
+        }
+
+        private boolean isDone() {
+            for (final PendingEmail email : emails) {
+                if (!email.future.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        ProcessSession getSession() {
+            return session;
+        }
+
+        List<PendingEmail> getEmails() {
+            return emails;
+        }
+    }
+
+    static final class PendingEmail {
+        private final List<FlowFile> flowFiles;
+        private final Message message;
+        private volatile CompletableFuture<Void> future;
+
+        PendingEmail(final List<FlowFile> flowFiles, final Message message) {
+            this.flowFiles = flowFiles;
+            this.message = message;
+        }
+
+        List<FlowFile> getFlowFiles() {
+            return flowFiles;
+        }
+
+        /**
+         * @return the reason the email could not be sent, or {@code null} if it was sent
+         */
+        Throwable getFailure() {
+            try {
+                future.join();
+                return null;
+            } catch (CompletionException e) {
+                return e.getCause() == null ? e : e.getCause();
+            } catch (RuntimeException e) {
+                return e;
+            }
+        }
+    }
+}
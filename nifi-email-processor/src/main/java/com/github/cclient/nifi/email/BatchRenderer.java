@@ -0,0 +1,99 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.exception.ProcessException;
+
+/**
+ * Renders the messages of the batches pulled in one trigger on a dedicated {@link ForkJoinPool}, so that the bodies of
+ * several emails are encoded in parallel and the triggering thread, which sends them one after the other, finds the
+ * next one already written when the previous transfer completes.
+ * <p>
+ * Rendering only reads what the message already holds; it never touches the process session, which is not thread
+ * safe, so tables that read FlowFile content while they are written cannot be prerendered.
+ */
+class BatchRenderer {
+
+    private final ForkJoinPool pool;
+
+    BatchRenderer(final int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ForkJoinPool(threads, forkJoinPool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("SendEmail-Renderer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Starts rendering the message of a group.
+     *
+     * @param flowFiles the FlowFiles of the email
+     * @param message   the message, complete but for being written
+     * @return the rendering, to be awaited before the message is sent
+     */
+    Rendering submit(final List<FlowFile> flowFiles, final PrerenderedMessage message) {
+        final Rendering rendering = new Rendering(flowFiles, message);
+        rendering.task = pool.submit(rendering::render);
+        return rendering;
+    }
+
+    /**
+     * Stops the render threads, abandoning whatever is still being rendered.
+     */
+    void shutdown(final long timeout, final TimeUnit unit) throws InterruptedException {
+        pool.shutdownNow();
+        pool.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * The message of one email being rendered.
+     */
+    static final class Rendering {
+        private final List<FlowFile> flowFiles;
+        private final PrerenderedMessage message;
+        private volatile ForkJoinTask<?> task;
+        private volatile Throwable failure = null;
+
+        private Rendering(final List<FlowFile> flowFiles, final PrerenderedMessage message) {
+            this.flowFiles = flowFiles;
+            this.message = message;
+        }
+
+        private void render() {
+            try {
+                message.prerender();
+            } catch (final MessagingException | IOException | ProcessException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Waits until the message has been rendered.
+         *
+         * @return why it could not be rendered, or {@code null} if it was
+         */
+        Throwable await() {
+            task.join();
+            return failure;
+        }
+
+        List<FlowFile> getFlowFiles() {
+            return flowFiles;
+        }
+
+        PrerenderedMessage getMessage() {
+            return message;
+        }
+    }
+}
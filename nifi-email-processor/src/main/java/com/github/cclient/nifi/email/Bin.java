@@ -0,0 +1,61 @@
+package com.github.cclient.nifi.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+
+/**
+ * FlowFiles accumulated across triggers for a single email, together with the session that pulled them. The
+ * session stays uncommitted until the bin is flushed, so an un-flushed bin is rolled back, not lost, when the
+ * processor stops.
+ */
+class Bin {
+
+    private final ProcessSession session;
+    private final List<FlowFile> flowFiles = new ArrayList<>();
+    private long bodyBytes = 0L;
+    private long firstEntryNanos = 0L;
+
+    Bin(final ProcessSession session) {
+        this.session = session;
+    }
+
+    void add(final FlowFile flowFile, final long estimatedBytes) {
+        if (flowFiles.isEmpty()) {
+            firstEntryNanos = System.nanoTime();
+        }
+        flowFiles.add(flowFile);
+        bodyBytes += estimatedBytes;
+    }
+
+    boolean isEmpty() {
+        return flowFiles.isEmpty();
+    }
+
+    int size() {
+        return flowFiles.size();
+    }
+
+    /**
+     * @return true once any of the limits has been reached; an empty bin is never ready
+     */
+    boolean isReady(final int maxEntries, final long maxBodyBytes, final long maxAgeMillis) {
+        if (flowFiles.isEmpty()) {
+            return false;
+        }
+        return flowFiles.size() >= maxEntries
+                || bodyBytes >= maxBodyBytes
+                || TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstEntryNanos) >= maxAgeMillis;
+    }
+
+    ProcessSession getSession() {
+        return session;
+    }
+
+    List<FlowFile> getFlowFiles() {
+        return flowFiles;
+    }
+}
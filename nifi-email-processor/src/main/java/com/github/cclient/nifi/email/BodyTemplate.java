@@ -0,0 +1,327 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Mustache-style layout for the email body, compiled once into a plan of pre-encoded literal byte segments and
+ * value slots, so that rendering a row only writes byte arrays and escaped cell values.
+ * <p>
+ * The single {@code {{#rows}}...{{/rows}}} section is rendered once per row; what precedes it is the header and what
+ * follows it the footer. Within the rows section, {@code {{name}}} is the HTML-escaped value of the column
+ * {@code name} and {@code {{{name}}}} the raw value; {@code {{#cells}}...{{/cells}}} repeats for every cell of the
+ * row. In the header and footer, {@code {{#columns}}...{{/columns}}} repeats for every column name. Within both loops
+ * {@code {{.}}} and {@code {{{.}}}} stand for the current cell or column name. In the footer, {@code {{note}}} stands
+ * for the {@link EmailTable#getNote() note} on the rows, if any. {@code {{! comments }}} are dropped.
+ */
+final class BodyTemplate {
+
+    private static final int MAX_CACHED_TEMPLATES = 32;
+
+    private static final Map<String, BodyTemplate> CACHE = Collections.synchronizedMap(new LinkedHashMap<String, BodyTemplate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, BodyTemplate> eldest) {
+            return size() > MAX_CACHED_TEMPLATES;
+        }
+    });
+
+    private final Segment[] header;
+    private final Segment[] row;
+    private final Segment[] footer;
+    private final List<String> variables;
+
+    private BodyTemplate(final Segment[] header, final Segment[] row, final Segment[] footer, final List<String> variables) {
+        this.header = header;
+        this.row = row;
+        this.footer = footer;
+        this.variables = variables;
+    }
+
+    /**
+     * Returns the compiled template, compiling it only if the same template text has not been compiled recently.
+     *
+     * @throws IllegalArgumentException if the template is malformed
+     */
+    static BodyTemplate compile(final String template) {
+        final BodyTemplate cached = CACHE.get(template);
+        if (cached != null) {
+            return cached;
+        }
+        final BodyTemplate compiled = new Parser(template).parse();
+        CACHE.put(template, compiled);
+        return compiled;
+    }
+
+    /**
+     * @return a format rendering one table with this template
+     */
+    TableFormat newFormat() {
+        return new Format();
+    }
+
+    /**
+     * Binds the compiled template to the columns of one table.
+     */
+    private final class Format implements TableFormat {
+        private final Scope scope = new Scope();
+
+        @Override
+        public void writeHeader(final List<String> columns, final OutputStream out) throws IOException {
+            scope.columns = columns;
+            scope.slots = new int[variables.size()];
+            for (int i = 0; i < scope.slots.length; i++) {
+                scope.slots[i] = columns.indexOf(variables.get(i));
+            }
+            write(header, scope, out);
+        }
+
+        @Override
+        public void writeRow(final String[] cells, final OutputStream out) throws IOException {
+            scope.cells = cells;
+            write(row, scope, out);
+        }
+
+        @Override
+        public void writeNote(final String note, final int columnCount, final OutputStream out) {
+            scope.note = note;
+        }
+
+        @Override
+        public void writeFooter(final OutputStream out) throws IOException {
+            scope.cells = null;
+            write(footer, scope, out);
+        }
+    }
+
+    private static void write(final Segment[] segments, final Scope scope, final OutputStream out) throws IOException {
+        for (final Segment segment : segments) {
+            segment.write(scope, out);
+        }
+    }
+
+    private static void writeValue(final String value, final boolean escape, final OutputStream out) throws IOException {
+        if (escape) {
+            Util.writeHtml(value, out);
+        } else {
+            Util.writeUtf8(value, out, null);
+        }
+    }
+
+    private static final class Scope {
+        private List<String> columns;
+        private int[] slots;
+        private String[] cells;
+        private String current;
+        private String note;
+    }
+
+    private interface Segment {
+        void write(Scope scope, OutputStream out) throws IOException;
+    }
+
+    private static final class Literal implements Segment {
+        private final byte[] bytes;
+
+        private Literal(final String text) {
+            this.bytes = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(final Scope scope, final OutputStream out) throws IOException {
+            out.write(bytes);
+        }
+    }
+
+    private static final class Variable implements Segment {
+        private final int slot;
+        private final boolean escape;
+
+        private Variable(final int slot, final boolean escape) {
+            this.slot = slot;
+            this.escape = escape;
+        }
+
+        @Override
+        public void write(final Scope scope, final OutputStream out) throws IOException {
+            final int column = scope.slots[slot];
+            if (column >= 0) {
+                writeValue(scope.cells[column], escape, out);
+            }
+        }
+    }
+
+    private static final class Current implements Segment {
+        private final boolean escape;
+
+        private Current(final boolean escape) {
+            this.escape = escape;
+        }
+
+        @Override
+        public void write(final Scope scope, final OutputStream out) throws IOException {
+            writeValue(scope.current, escape, out);
+        }
+    }
+
+    private static final class Note implements Segment {
+        private final boolean escape;
+
+        private Note(final boolean escape) {
+            this.escape = escape;
+        }
+
+        @Override
+        public void write(final Scope scope, final OutputStream out) throws IOException {
+            if (scope.note != null) {
+                writeValue(scope.note, escape, out);
+            }
+        }
+    }
+
+    private static final class Each implements Segment {
+        private final boolean cells;
+        private final Segment[] body;
+
+        private Each(final boolean cells, final Segment[] body) {
+            this.cells = cells;
+            this.body = body;
+        }
+
+        @Override
+        public void write(final Scope scope, final OutputStream out) throws IOException {
+            if (cells) {
+                for (final String cell : scope.cells) {
+                    scope.current = cell;
+                    BodyTemplate.write(body, scope, out);
+                }
+            } else {
+                for (final String column : scope.columns) {
+                    scope.current = column;
+                    BodyTemplate.write(body, scope, out);
+                }
+            }
+            scope.current = null;
+        }
+    }
+
+    private static final class Parser {
+        private final String template;
+        private final List<String> variables = new ArrayList<>();
+        private int position = 0;
+
+        private Parser(final String template) {
+            this.template = template;
+        }
+
+        private BodyTemplate parse() {
+            final List<Segment> header = new ArrayList<>();
+            final String end = parseSegments(header, null, false);
+            if (!"rows".equals(end)) {
+                throw new IllegalArgumentException("Template must contain a {{#rows}}...{{/rows}} section");
+            }
+            final List<Segment> row = new ArrayList<>();
+            parseSegments(row, "rows", true);
+            final List<Segment> footer = new ArrayList<>();
+            if (parseSegments(footer, null, false) != null) {
+                throw new IllegalArgumentException("Template must contain a single {{#rows}} section");
+            }
+            return new BodyTemplate(toArray(header), toArray(row), toArray(footer), Collections.unmodifiableList(variables));
+        }
+
+        /**
+         * Parses segments until the end of the section, the end of the template, or, at the top level, the start of
+         * the rows section.
+         *
+         * @param section the name of the section being parsed, or null at the top level
+         * @param inRow   whether values of the row are available
+         * @return "rows" if the top level stopped at the rows section, otherwise null
+         */
+        private String parseSegments(final List<Segment> segments, final String section, final boolean inRow) {
+            final StringBuilder literal = new StringBuilder();
+            while (position < template.length()) {
+                final int open = template.indexOf("{{", position);
+                if (open < 0) {
+                    literal.append(template, position, template.length());
+                    position = template.length();
+                    break;
+                }
+                literal.append(template, position, open);
+                final boolean raw = template.startsWith("{{{", open);
+                final String closing = raw ? "}}}" : "}}";
+                final int close = template.indexOf(closing, open + closing.length());
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unclosed tag at offset " + open);
+                }
+                final String tag = template.substring(open + closing.length(), close).trim();
+                position = close + closing.length();
+
+                if (tag.startsWith("!")) {
+                    continue;
+                }
+                flush(literal, segments);
+                if (tag.startsWith("/")) {
+                    final String name = tag.substring(1).trim();
+                    if (!name.equals(section)) {
+                        throw new IllegalArgumentException("Unexpected {{/" + name + "}} at offset " + open);
+                    }
+                    return null;
+                }
+                if (tag.startsWith("#")) {
+                    final String name = tag.substring(1).trim();
+                    if (section == null && "rows".equals(name)) {
+                        return name;
+                    }
+                    if ("cells".equals(name) && inRow && "rows".equals(section) || "columns".equals(name) && !inRow && section == null) {
+                        final List<Segment> body = new ArrayList<>();
+                        parseSegments(body, name, inRow);
+                        segments.add(new Each("cells".equals(name), toArray(body)));
+                        continue;
+                    }
+                    throw new IllegalArgumentException("Section {{#" + name + "}} is not allowed at offset " + open);
+                }
+                if (".".equals(tag)) {
+                    if (!"cells".equals(section) && !"columns".equals(section)) {
+                        throw new IllegalArgumentException("{{.}} is only allowed within {{#cells}} or {{#columns}}, at offset " + open);
+                    }
+                    segments.add(new Current(!raw));
+                    continue;
+                }
+                if (!inRow && section == null && "note".equals(tag)) {
+                    segments.add(new Note(!raw));
+                    continue;
+                }
+                if (!inRow || tag.isEmpty()) {
+                    throw new IllegalArgumentException("{{" + tag + "}} is only allowed within {{#rows}}, at offset " + open);
+                }
+                int slot = variables.indexOf(tag);
+                if (slot < 0) {
+                    slot = variables.size();
+                    variables.add(tag);
+                }
+                segments.add(new Variable(slot, !raw));
+            }
+            flush(literal, segments);
+            if (section != null) {
+                throw new IllegalArgumentException("Section {{#" + section + "}} is not closed");
+            }
+            return null;
+        }
+
+        private static void flush(final StringBuilder literal, final List<Segment> segments) {
+            if (literal.length() > 0) {
+                segments.add(new Literal(literal.toString()));
+                literal.setLength(0);
+            }
+        }
+
+        private static Segment[] toArray(final List<Segment> segments) {
+            return segments.toArray(new Segment[0]);
+        }
+    }
+}
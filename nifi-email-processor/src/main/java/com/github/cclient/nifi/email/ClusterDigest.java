@@ -0,0 +1,285 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.flowfile.FlowFile;
+
+/**
+ * Aggregates of FlowFiles by key, kept in the processor's cluster-scoped state, so that every node of a cluster can
+ * fold in its FlowFiles and the primary node alone sends one digest of all of them.
+ * <p>
+ * Each key, the values of the key attributes, has one state entry holding the number of FlowFiles, their total size
+ * and the first and last entry date, so the state grows with the number of distinct keys, not with the number of
+ * FlowFiles. Past {@code maxKeys} keys, new keys are folded into a single "(other)" entry. Every change is a
+ * compare-and-set of the whole state map, retried when another node changed it in between.
+ */
+final class ClusterDigest {
+
+    static final String LAST_SENT = "digest.lastSent";
+    private static final String ENTRY_PREFIX = "digest.key.";
+    private static final String OTHER = ENTRY_PREFIX + "\u0000";
+    private static final String OTHER_LABEL = "(other)";
+    private static final char KEY_SEPARATOR = '\u001F';
+    private static final int MAX_ATTEMPTS = 20;
+
+    private final List<String> keyAttributes;
+    private final int maxKeys;
+
+    ClusterDigest(final List<String> keyAttributes, final int maxKeys) {
+        this.keyAttributes = keyAttributes;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Folds the FlowFiles into the shared aggregates.
+     *
+     * @return false if the state kept changing under us and the FlowFiles were not added
+     * @throws IOException if the state cannot be read or written
+     */
+    boolean add(final StateManager stateManager, final List<FlowFile> flowFiles) throws IOException {
+        final Map<String, Aggregate> aggregates = new HashMap<>();
+        for (final FlowFile flowFile : flowFiles) {
+            final Aggregate aggregate = aggregates.computeIfAbsent(ENTRY_PREFIX + key(flowFile), key -> new Aggregate());
+            aggregate.add(1, flowFile.getSize(), flowFile.getEntryDate(), flowFile.getEntryDate());
+        }
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final StateMap current = stateManager.getState(Scope.CLUSTER);
+            final Map<String, String> updated = new HashMap<>(current.toMap());
+            merge(updated, aggregates);
+            if (stateManager.replace(current, updated, Scope.CLUSTER)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes all aggregates out of the state if the interval has passed since the last digest, and records the time as
+     * that of the last digest.
+     *
+     * @return the aggregates to send, or {@code null} if there are none or the digest is not due yet
+     * @throws IOException if the state cannot be read or written
+     */
+    Snapshot take(final StateManager stateManager, final long now, final long intervalMillis) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final StateMap current = stateManager.getState(Scope.CLUSTER);
+            final Map<String, String> state = current.toMap();
+            final long lastSent = parseLong(state.get(LAST_SENT));
+            if (now - lastSent < intervalMillis) {
+                return null;
+            }
+            final Map<String, Aggregate> aggregates = new HashMap<>();
+            final Map<String, String> remaining = new HashMap<>();
+            for (final Map.Entry<String, String> entry : state.entrySet()) {
+                if (entry.getKey().startsWith(ENTRY_PREFIX)) {
+                    aggregates.put(entry.getKey(), Aggregate.parse(entry.getValue()));
+                } else {
+                    remaining.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (aggregates.isEmpty()) {
+                return null;
+            }
+            remaining.put(LAST_SENT, Long.toString(now));
+            if (stateManager.replace(current, remaining, Scope.CLUSTER)) {
+                return new Snapshot(aggregates, lastSent);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts the aggregates of a digest that could not be sent back into the state, to be sent with the next one.
+     *
+     * @throws IOException if the state cannot be read or written, or kept changing under us
+     */
+    void restore(final StateManager stateManager, final Snapshot snapshot) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final StateMap current = stateManager.getState(Scope.CLUSTER);
+            final Map<String, String> updated = new HashMap<>(current.toMap());
+            merge(updated, snapshot.aggregates);
+            updated.put(LAST_SENT, Long.toString(snapshot.previousLastSent));
+            if (stateManager.replace(current, updated, Scope.CLUSTER)) {
+                return;
+            }
+        }
+        throw new IOException("Cluster state kept changing while restoring an unsent digest of " + snapshot.getFlowFileCount() + " FlowFiles");
+    }
+
+    private void merge(final Map<String, String> state, final Map<String, Aggregate> aggregates) {
+        int keys = 0;
+        for (final String name : state.keySet()) {
+            if (name.startsWith(ENTRY_PREFIX) && !name.equals(OTHER)) {
+                keys++;
+            }
+        }
+        for (final Map.Entry<String, Aggregate> entry : aggregates.entrySet()) {
+            String name = entry.getKey();
+            final String existing = state.get(name);
+            if (existing == null && !name.equals(OTHER)) {
+                if (keys >= maxKeys) {
+                    name = OTHER;
+                } else {
+                    keys++;
+                }
+            }
+            final String value = state.get(name);
+            final Aggregate merged = value == null ? new Aggregate() : Aggregate.parse(value);
+            merged.add(entry.getValue());
+            state.put(name, merged.toString());
+        }
+    }
+
+    private String key(final FlowFile flowFile) {
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < keyAttributes.size(); i++) {
+            if (i > 0) {
+                key.append(KEY_SEPARATOR);
+            }
+            final String value = flowFile.getAttribute(keyAttributes.get(i));
+            if (value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    private static long parseLong(final String value) {
+        if (value == null) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * The aggregates taken out of the state for one digest.
+     */
+    final class Snapshot {
+        private final Map<String, Aggregate> aggregates;
+        private final long previousLastSent;
+
+        private Snapshot(final Map<String, Aggregate> aggregates, final long previousLastSent) {
+            this.aggregates = aggregates;
+            this.previousLastSent = previousLastSent;
+        }
+
+        long getFlowFileCount() {
+            long count = 0;
+            for (final Aggregate aggregate : aggregates.values()) {
+                count += aggregate.count;
+            }
+            return count;
+        }
+
+        /**
+         * @return one row per key, most frequent first, with the columns of a summarized table
+         */
+        EmailTable toTable() {
+            final List<String> columns = new ArrayList<>(keyAttributes.size() + 4);
+            columns.addAll(keyAttributes);
+            columns.add("count");
+            columns.add("firstEntryDate");
+            columns.add("lastEntryDate");
+            columns.add("totalSize");
+            final List<Map.Entry<String, Aggregate>> entries = new ArrayList<>(aggregates.entrySet());
+            entries.sort((a, b) -> Long.compare(b.getValue().count, a.getValue().count));
+            final List<String> unmodifiableColumns = Collections.unmodifiableList(columns);
+            return new EmailTable() {
+                @Override
+                public List<String> getColumns() {
+                    return unmodifiableColumns;
+                }
+
+                @Override
+                public int size() {
+                    return entries.size();
+                }
+
+                @Override
+                public Iterator<String[]> rows() {
+                    final Iterator<Map.Entry<String, Aggregate>> iterator = entries.iterator();
+                    return new Iterator<String[]>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public String[] next() {
+                            return toRow(iterator.next(), unmodifiableColumns.size());
+                        }
+                    };
+                }
+            };
+        }
+
+        private String[] toRow(final Map.Entry<String, Aggregate> entry, final int columnCount) {
+            final String[] cells = new String[columnCount];
+            final int keyCount = keyAttributes.size();
+            if (entry.getKey().equals(OTHER)) {
+                Arrays.fill(cells, 0, keyCount, "");
+                if (keyCount > 0) {
+                    cells[0] = OTHER_LABEL;
+                }
+            } else {
+                final String[] values = entry.getKey().substring(ENTRY_PREFIX.length()).split(String.valueOf(KEY_SEPARATOR), -1);
+                for (int i = 0; i < keyCount; i++) {
+                    cells[i] = i < values.length ? values[i] : "";
+                }
+            }
+            final Aggregate aggregate = entry.getValue();
+            cells[keyCount] = String.valueOf(aggregate.count);
+            cells[keyCount + 1] = new Date(aggregate.firstEntryDate).toString();
+            cells[keyCount + 2] = new Date(aggregate.lastEntryDate).toString();
+            cells[keyCount + 3] = String.valueOf(aggregate.totalSize);
+            return cells;
+        }
+    }
+
+    private static final class Aggregate {
+        private long count = 0;
+        private long totalSize = 0;
+        private long firstEntryDate = Long.MAX_VALUE;
+        private long lastEntryDate = Long.MIN_VALUE;
+
+        private void add(final long count, final long totalSize, final long firstEntryDate, final long lastEntryDate) {
+            this.count += count;
+            this.totalSize += totalSize;
+            this.firstEntryDate = Math.min(this.firstEntryDate, firstEntryDate);
+            this.lastEntryDate = Math.max(this.lastEntryDate, lastEntryDate);
+        }
+
+        private void add(final Aggregate other) {
+            add(other.count, other.totalSize, other.firstEntryDate, other.lastEntryDate);
+        }
+
+        private static Aggregate parse(final String value) {
+            final Aggregate aggregate = new Aggregate();
+            final String[] fields = value.split(",");
+            if (fields.length == 4) {
+                aggregate.add(parseLong(fields[0]), parseLong(fields[1]), parseLong(fields[2]), parseLong(fields[3]));
+            }
+            return aggregate;
+        }
+
+        @Override
+        public String toString() {
+            return count + "," + totalSize + "," + firstEntryDate + "," + lastEntryDate;
+        }
+    }
+}
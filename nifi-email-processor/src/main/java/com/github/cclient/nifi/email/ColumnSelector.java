@@ -0,0 +1,124 @@
+package com.github.cclient.nifi.email;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which FlowFile attributes become columns of the table, and in which order: the explicitly listed columns
+ * first, as listed, then every other attribute whose name matches the include pattern and not the exclude pattern,
+ * sorted by name. {@link #ENTRY_DATE} and {@link #SIZE} are selected like attribute names, and are placed last unless
+ * listed; attributes of the same name are not shown.
+ * <p>
+ * The decision for a name never changes, so it is remembered: each distinct attribute name is matched against the
+ * patterns once for the lifetime of the selector. The memo holds at most {@value #MAX_MEMOIZED_NAMES} names; names
+ * beyond that, which only occur with unbounded attribute vocabularies, are matched every time.
+ */
+final class ColumnSelector {
+
+    /**
+     * The column holding the FlowFile's entry date
+     */
+    static final String ENTRY_DATE = "entryDate";
+    /**
+     * The column holding the FlowFile's size
+     */
+    static final String SIZE = "size";
+    /**
+     * The column holding the excerpt of the FlowFile's content, if enabled; shown last unless listed
+     */
+    static final String CONTENT = "content";
+
+    static final ColumnSelector ALL = new ColumnSelector(null, null, null);
+
+    private static final int MAX_MEMOIZED_NAMES = 10_000;
+
+    private final Pattern include;
+    private final Pattern exclude;
+    private final List<String> columns;
+    private final Set<String> listed;
+    private final boolean includeUnlisted;
+    private final ConcurrentMap<String, Boolean> selected = new ConcurrentHashMap<>();
+
+    /**
+     * @param include a pattern the names of unlisted attributes must match, or {@code null} to include all of them
+     *                if no columns are listed, and none of them otherwise
+     * @param exclude a pattern the names of unlisted attributes must not match, or {@code null}
+     * @param columns comma separated names of the columns to show first, or {@code null}
+     */
+    ColumnSelector(final String include, final String exclude, final String columns) {
+        this.include = include == null ? null : Pattern.compile(include);
+        this.exclude = exclude == null ? null : Pattern.compile(exclude);
+        this.columns = columns == null ? Collections.emptyList() : Collections.unmodifiableList(Arrays.stream(columns.split(","))
+                .map(String::trim).filter(name -> !name.isEmpty()).distinct().collect(Collectors.toList()));
+        this.listed = new LinkedHashSet<>(this.columns);
+        this.includeUnlisted = include != null || this.columns.isEmpty();
+    }
+
+    /**
+     * @return true if the attribute, or the {@link #ENTRY_DATE} or {@link #SIZE} column, is shown
+     */
+    boolean isSelected(final String name) {
+        final Boolean memoized = selected.get(name);
+        if (memoized != null) {
+            return memoized;
+        }
+        final boolean result = listed.contains(name) || includeUnlisted
+                && (include == null || include.matcher(name).matches())
+                && (exclude == null || !exclude.matcher(name).matches());
+        if (selected.size() < MAX_MEMOIZED_NAMES) {
+            selected.putIfAbsent(name, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param attributeNames the names of all attributes of the FlowFiles in the table
+     * @return the columns of the table, in order, including {@link #ENTRY_DATE} and {@link #SIZE} if selected
+     */
+    List<String> select(final Collection<String> attributeNames) {
+        final List<String> unlisted = selectUnlisted(attributeNames, true);
+        Collections.sort(unlisted);
+        final List<String> selection = new ArrayList<>(columns.size() + unlisted.size() + 2);
+        selection.addAll(columns);
+        selection.addAll(unlisted);
+        for (final String column : new String[]{ENTRY_DATE, SIZE}) {
+            if (!listed.contains(column) && isSelected(column)) {
+                selection.add(column);
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * @param fieldNames the names of the fields of the records in the table, in schema order
+     * @return the columns of the table, in order: the listed columns, then the other selected fields in schema order
+     */
+    List<String> selectFields(final Collection<String> fieldNames) {
+        final List<String> unlisted = selectUnlisted(fieldNames, false);
+        final List<String> selection = new ArrayList<>(columns.size() + unlisted.size());
+        selection.addAll(columns);
+        selection.addAll(unlisted);
+        return selection;
+    }
+
+    private List<String> selectUnlisted(final Collection<String> names, final boolean builtInColumns) {
+        final List<String> unlisted = new ArrayList<>();
+        if (includeUnlisted) {
+            for (final String name : names) {
+                if (!listed.contains(name) && (!builtInColumns || !ENTRY_DATE.equals(name) && !SIZE.equals(name)) && isSelected(name)) {
+                    unlisted.add(name);
+                }
+            }
+        }
+        return unlisted;
+    }
+}
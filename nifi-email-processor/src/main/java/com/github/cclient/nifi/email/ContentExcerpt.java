@@ -0,0 +1,114 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+
+/**
+ * Reads the beginning of each FlowFile's content, up to a number of bytes and optionally a number of lines, to be
+ * shown in the {@link ColumnSelector#CONTENT} column. Reading stops as soon as either limit is reached, so no more
+ * than {@code maxBytes + 1} bytes of a FlowFile are ever read, whatever its size.
+ * <p>
+ * Excerpts are read while the FlowFiles' session is at hand, before the message is built, because the table may be
+ * rendered later on another thread.
+ */
+final class ContentExcerpt {
+
+    /**
+     * Appended to excerpts that end before the content does
+     */
+    static final String TRUNCATED = "\u2026";
+
+    private final int maxBytes;
+    private final int maxLines;
+    private final Charset charset;
+
+    /**
+     * @param maxLines the maximum number of lines, or {@code 0} for no limit other than {@code maxBytes}
+     */
+    ContentExcerpt(final int maxBytes, final int maxLines, final Charset charset) {
+        this.maxBytes = maxBytes;
+        this.maxLines = maxLines;
+        this.charset = charset;
+    }
+
+    int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the excerpt of each FlowFile, in order
+     */
+    List<String> read(final ProcessSession session, final List<FlowFile> flowFiles) {
+        final List<String> excerpts = new ArrayList<>(flowFiles.size());
+        final byte[] buffer = new byte[maxBytes];
+        final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        for (final FlowFile flowFile : flowFiles) {
+            if (flowFile.getSize() == 0) {
+                excerpts.add("");
+                continue;
+            }
+            final Excerpt excerpt = new Excerpt();
+            session.read(flowFile, in -> excerpt.fill(in, buffer));
+            excerpts.add(excerpt.decode(buffer, decoder));
+        }
+        return excerpts;
+    }
+
+    private final class Excerpt {
+        private int length = 0;
+        private boolean truncated = false;
+
+        private void fill(final InputStream in, final byte[] buffer) throws IOException {
+            int lines = 0;
+            while (length < buffer.length) {
+                final int read = in.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    return;
+                }
+                if (maxLines > 0) {
+                    for (int i = length; i < length + read; i++) {
+                        if (buffer[i] == '\n' && ++lines == maxLines) {
+                            // the remaining bytes of this read, if any, are past the last line
+                            truncated = i + 1 < length + read || in.read() >= 0;
+                            length = i;
+                            return;
+                        }
+                    }
+                }
+                length += read;
+            }
+            truncated = in.read() >= 0;
+        }
+
+        private String decode(final byte[] buffer, final CharsetDecoder decoder) {
+            String text;
+            try {
+                text = decoder.reset().decode(ByteBuffer.wrap(buffer, 0, length)).toString();
+            } catch (CharacterCodingException e) {
+                // not thrown with CodingErrorAction.REPLACE
+                text = new String(buffer, 0, length, charset);
+            }
+            if (!truncated) {
+                return text;
+            }
+            // drop the replacement of a multi-byte character cut off by the byte limit
+            int end = text.length();
+            while (end > 0 && text.charAt(end - 1) == '\uFFFD') {
+                end--;
+            }
+            return text.substring(0, end) + TRUNCATED;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Renders an {@link EmailTable} as RFC 4180 CSV in UTF-8: a header line with the column names, then one line per row.
+ * Fields containing a comma, a quote or a line break are quoted.
+ */
+final class CsvTableFormat implements TableFormat {
+
+    static final CsvTableFormat INSTANCE = new CsvTableFormat();
+
+    private static final byte[] LINE_END = {'\r', '\n'};
+
+    private CsvTableFormat() {
+    }
+
+    @Override
+    public void writeHeader(final List<String> columns, final OutputStream out) throws IOException {
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeField(columns.get(i), out);
+        }
+        out.write(LINE_END);
+    }
+
+    @Override
+    public void writeRow(final String[] cells, final OutputStream out) throws IOException {
+        for (int i = 0; i < cells.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeField(cells[i], out);
+        }
+        out.write(LINE_END);
+    }
+
+    @Override
+    public void writeFooter(final OutputStream out) {
+    }
+
+    private static void writeField(final String value, final OutputStream out) throws IOException {
+        if (needsQuotes(value)) {
+            out.write('"');
+            Util.writeCsvQuoted(value, out);
+            out.write('"');
+        } else {
+            Util.writeUtf8(value, out, null);
+        }
+    }
+
+    private static boolean needsQuotes(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+
+/**
+ * A {@link SuppressionCache} in a {@link DistributedMapCacheClient}, shared by every node of a cluster, so that a
+ * key emailed by one node is suppressed on all of them. Entries are the time a key was emailed, in milliseconds,
+ * under keys prefixed by the processor id. The cache server does not expire entries by itself; an expired entry is
+ * ignored and overwritten the next time its key is emailed.
+ * <p>
+ * Two nodes that email a new key at the same moment may both send it; the suppression is best effort, not a lock.
+ */
+final class DistributedSuppressionCache implements SuppressionCache {
+
+    private static final Serializer<String> STRING_SERIALIZER = (value, output) -> output.write(value.getBytes(StandardCharsets.UTF_8));
+    private static final Deserializer<String> STRING_DESERIALIZER = input -> input == null || input.length == 0 ? null : new String(input, StandardCharsets.UTF_8);
+
+    private final DistributedMapCacheClient client;
+    private final String prefix;
+    private final long windowMillis;
+
+    DistributedSuppressionCache(final DistributedMapCacheClient client, final String processorId, final long windowMillis) {
+        this.client = client;
+        this.prefix = "SendEmail.suppression." + processorId + ".";
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public boolean contains(final String key, final long now) throws IOException {
+        final Long time = parse(client.get(prefix + key, STRING_SERIALIZER, STRING_DESERIALIZER));
+        return time != null && now - time < windowMillis;
+    }
+
+    @Override
+    public void add(final String key, final long now) throws IOException {
+        final String cacheKey = prefix + key;
+        final Long previous = parse(client.getAndPutIfAbsent(cacheKey, Long.toString(now), STRING_SERIALIZER, STRING_SERIALIZER, STRING_DESERIALIZER));
+        if (previous != null && now - previous >= windowMillis) {
+            client.put(cacheKey, Long.toString(now), STRING_SERIALIZER, STRING_SERIALIZER);
+        }
+    }
+
+    private static Long parse(final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.cclient.nifi.email;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The rows rendered into an email body. Rows are produced lazily, one at a time, so that a renderer only ever
+ * holds a single row in memory no matter how large the table is.
+ */
+interface EmailTable {
+
+    /**
+     * @return the column names, in display order
+     */
+    List<String> getColumns();
+
+    /**
+     * @return the number of rows
+     */
+    int size();
+
+    /**
+     * Starts a new pass over the rows. May be called several times, e.g. when a message is written more than once.
+     *
+     * @return an iterator of rows whose cells line up with {@link #getColumns()}; empty cells are empty strings. The
+     * iterator throws {@link java.io.UncheckedIOException} if the rows cannot be read, and may be {@link java.io.Closeable},
+     * in which case it must be closed if it is not iterated to the end
+     */
+    Iterator<String[]> rows();
+
+    /**
+     * @return a remark on the rows, such as how many were left out, shown after the last row; only known once
+     * {@link #rows()} has been iterated to the end
+     */
+    default String getNote() {
+        return null;
+    }
+
+    /**
+     * @param table the table
+     * @param note  a remark to show after the table's own note, if any
+     * @return the same rows with the remark added
+     */
+    static EmailTable withNote(final EmailTable table, final String note) {
+        return new EmailTable() {
+            @Override
+            public List<String> getColumns() {
+                return table.getColumns();
+            }
+
+            @Override
+            public int size() {
+                return table.size();
+            }
+
+            @Override
+            public Iterator<String[]> rows() {
+                return table.rows();
+            }
+
+            @Override
+            public String getNote() {
+                final String own = table.getNote();
+                return own == null ? note : own + "; " + note;
+            }
+        };
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.cclient.nifi.email;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.nifi.flowfile.FlowFile;
+
+/**
+ * One row per FlowFile: the union of all attribute names, sorted, followed by the entry date and the size, narrowed
+ * and ordered by a {@link ColumnSelector}, and optionally the excerpt of each FlowFile's content.
+ */
+class FlowFileTable implements EmailTable {
+
+    // <tr></tr> plus the entryDate and size cells
+    private static final int ROW_OVERHEAD = 9 + 2 * 9 + 40;
+    // <td></td>
+    private static final int CELL_OVERHEAD = 9;
+
+    private final List<FlowFile> flowFiles;
+    private final List<String> columns;
+    // the attribute shown in each column, null for the entry date and size columns
+    private final String[] attributeNames;
+    private final int entryDateColumn;
+    private final int sizeColumn;
+    private final List<String> excerpts;
+    private final int contentColumn;
+
+    FlowFileTable(final List<FlowFile> flowFiles) {
+        this(flowFiles, ColumnSelector.ALL);
+    }
+
+    FlowFileTable(final List<FlowFile> flowFiles, final ColumnSelector selector) {
+        this(flowFiles, selector, null);
+    }
+
+    /**
+     * @param excerpts the excerpt of each FlowFile's content, in order, shown in the {@link ColumnSelector#CONTENT}
+     *                 column, or {@code null} to show no content
+     */
+    FlowFileTable(final List<FlowFile> flowFiles, final ColumnSelector selector, final List<String> excerpts) {
+        this.flowFiles = flowFiles;
+        this.excerpts = excerpts;
+        final Set<String> allKeys = new HashSet<>();
+        for (final FlowFile flowFile : flowFiles) {
+            allKeys.addAll(flowFile.getAttributes().keySet());
+        }
+        if (excerpts != null) {
+            // shadowed by the excerpt, which is shown last unless listed
+            allKeys.remove(ColumnSelector.CONTENT);
+        }
+        final List<String> columns = selector.select(allKeys);
+        if (excerpts != null && !columns.contains(ColumnSelector.CONTENT)) {
+            columns.add(ColumnSelector.CONTENT);
+        }
+        this.columns = Collections.unmodifiableList(columns);
+        this.attributeNames = columns.toArray(new String[0]);
+        this.entryDateColumn = columns.indexOf(ColumnSelector.ENTRY_DATE);
+        this.sizeColumn = columns.indexOf(ColumnSelector.SIZE);
+        if (entryDateColumn >= 0) {
+            attributeNames[entryDateColumn] = null;
+        }
+        if (sizeColumn >= 0) {
+            attributeNames[sizeColumn] = null;
+        }
+        this.contentColumn = excerpts == null ? -1 : columns.indexOf(ColumnSelector.CONTENT);
+        if (contentColumn >= 0) {
+            attributeNames[contentColumn] = null;
+        }
+    }
+
+    @Override
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    @Override
+    public int size() {
+        return flowFiles.size();
+    }
+
+    @Override
+    public Iterator<String[]> rows() {
+        return new Iterator<String[]>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < flowFiles.size();
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return toRow(index++);
+            }
+        };
+    }
+
+    /**
+     * A cheap estimate of the bytes a FlowFile adds to a rendered table, used to bound bins before they are rendered.
+     */
+    static long estimateRowBytes(final FlowFile flowFile, final ColumnSelector selector) {
+        long bytes = ROW_OVERHEAD;
+        for (final Map.Entry<String, String> attribute : flowFile.getAttributes().entrySet()) {
+            if (selector.isSelected(attribute.getKey())) {
+                bytes += CELL_OVERHEAD + attribute.getValue().length();
+            }
+        }
+        return bytes;
+    }
+
+    private String[] toRow(final int index) {
+        final FlowFile flowFile = flowFiles.get(index);
+        final String[] cells = new String[attributeNames.length];
+        for (int i = 0; i < cells.length; i++) {
+            if (attributeNames[i] != null) {
+                final String value = flowFile.getAttribute(attributeNames[i]);
+                cells[i] = value == null ? "" : value;
+            }
+        }
+        if (entryDateColumn >= 0) {
+            cells[entryDateColumn] = new Date(flowFile.getEntryDate()).toString();
+        }
+        if (sizeColumn >= 0) {
+            cells[sizeColumn] = String.valueOf(flowFile.getSize());
+        }
+        if (contentColumn >= 0) {
+            cells[contentColumn] = excerpts.get(index);
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.cclient.nifi.email;
+
+/**
+ * Sizes each batch from the queue depth and the recent arrival rate, so that a quiet flow is notified at once while a
+ * storm is collapsed into few, larger emails.
+ * <p>
+ * The target size is the number of FlowFiles expected to arrive within one target email interval, bounded by the
+ * minimum and maximum group size. A batch is taken as soon as the queue holds the target size, or, with fewer queued,
+ * once the target interval has passed since the last batch; otherwise the FlowFiles wait. The first FlowFile after a
+ * quiet period therefore goes out immediately, under sustained load emails go out about once per interval, and no
+ * FlowFile waits longer than the interval. Only when the arrivals of one interval exceed the maximum does the email
+ * rate rise above one per interval.
+ * <p>
+ * The arrival rate is an exponentially weighted moving average over roughly one interval, derived from how much the
+ * queue has grown between calls on top of what was taken from it.
+ */
+final class GroupSizer {
+
+    private final int minSize;
+    private final int maxSize;
+    private final long intervalNanos;
+    private long lastNanos;
+    private long lastQueued = 0L;
+    private long lastBatchNanos;
+    private boolean batched = false;
+    private double ratePerNano = 0.0;
+    private volatile int target;
+
+    GroupSizer(final int minSize, final int maxSize, final long intervalNanos) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.intervalNanos = intervalNanos;
+        this.lastNanos = System.nanoTime();
+        this.target = minSize;
+    }
+
+    /**
+     * Updates the arrival rate from the current queue depth and decides on the next batch.
+     *
+     * @param queued the number of FlowFiles queued
+     * @return the number of FlowFiles to take, or 0 to let them wait
+     */
+    synchronized int next(final long queued) {
+        final long now = System.nanoTime();
+        final long elapsed = now - lastNanos;
+        if (elapsed > 0) {
+            final double arrivals = Math.max(0L, queued - lastQueued);
+            final double alpha = 1.0 - Math.exp(-(double) elapsed / intervalNanos);
+            ratePerNano += alpha * (arrivals / elapsed - ratePerNano);
+            lastNanos = now;
+        }
+        lastQueued = queued;
+
+        final double expected = Math.ceil(ratePerNano * intervalNanos);
+        target = (int) Math.max(minSize, Math.min(maxSize, expected));
+        if (queued <= 0 || (queued < target && batched && now - lastBatchNanos < intervalNanos)) {
+            return 0;
+        }
+        return target;
+    }
+
+    /**
+     * Records that a batch was taken from the queue.
+     *
+     * @param size the number of FlowFiles taken
+     */
+    synchronized void taken(final int size) {
+        lastQueued = Math.max(0L, lastQueued - size);
+        lastBatchNanos = System.nanoTime();
+        batched = true;
+    }
+
+    /**
+     * @return the most recent target size
+     */
+    int getTarget() {
+        return target;
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Renders an {@link EmailTable} as an HTML table, escaping every header and cell in the same pass that encodes it.
+ */
+final class HtmlTableFormat implements TableFormat {
+
+    static final HtmlTableFormat INSTANCE = new HtmlTableFormat();
+
+    private static final byte[] TABLE_START = ascii("<table border=\"1\" cellspacing=\"0\" ><thead align=\"center\" valign=\"middle\"><tr>");
+    private static final byte[] HEAD_END = ascii("</tr></thead><tbody>");
+    private static final byte[] TABLE_END = ascii("</tbody></table>");
+    private static final byte[] TR_START = ascii("<tr>");
+    private static final byte[] TR_END = ascii("</tr>");
+    private static final byte[] TH_START = ascii("<th>");
+    private static final byte[] TH_END = ascii("</th>");
+    private static final byte[] TD_START = ascii("<td>");
+    private static final byte[] TD_END = ascii("</td>");
+    private static final byte[] NOTE_START = ascii("<tr><td colspan=\"");
+    private static final byte[] NOTE_CELL = ascii("\"><i>");
+    private static final byte[] NOTE_END = ascii("</i></td></tr>");
+
+    private HtmlTableFormat() {
+    }
+
+    @Override
+    public void writeHeader(final List<String> columns, final OutputStream out) throws IOException {
+        out.write(TABLE_START);
+        for (final String column : columns) {
+            out.write(TH_START);
+            Util.writeHtml(column, out);
+            out.write(TH_END);
+        }
+        out.write(HEAD_END);
+    }
+
+    @Override
+    public void writeRow(final String[] cells, final OutputStream out) throws IOException {
+        out.write(TR_START);
+        for (final String cell : cells) {
+            out.write(TD_START);
+            Util.writeHtml(cell, out);
+            out.write(TD_END);
+        }
+        out.write(TR_END);
+    }
+
+    @Override
+    public void writeNote(final String note, final int columnCount, final OutputStream out) throws IOException {
+        out.write(NOTE_START);
+        out.write(ascii(Integer.toString(Math.max(1, columnCount))));
+        out.write(NOTE_CELL);
+        Util.writeHtml(note, out);
+        out.write(NOTE_END);
+    }
+
+    @Override
+    public void writeFooter(final OutputStream out) throws IOException {
+        out.write(TABLE_END);
+    }
+
+    private static byte[] ascii(final String literal) {
+        return literal.getBytes(StandardCharsets.US_ASCII);
+    }
+}
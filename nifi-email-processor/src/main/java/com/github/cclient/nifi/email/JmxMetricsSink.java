@@ -0,0 +1,116 @@
+package com.github.cclient.nifi.email;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * Registers the metrics as a read-only MBean named {@code com.github.cclient.nifi.email:type=SendEmail,id=<processor id>}
+ * on the platform MBean server. Every attribute read takes a fresh snapshot.
+ */
+class JmxMetricsSink implements MetricsSink {
+
+    private static final String DOMAIN = "com.github.cclient.nifi.email";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final ComponentLog logger;
+    private ObjectName name;
+
+    JmxMetricsSink(final ComponentLog logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void open(final String processorId, final SendMetrics metrics) {
+        try {
+            name = new ObjectName(DOMAIN + ":type=SendEmail,id=" + ObjectName.quote(processorId));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(metrics), name);
+        } catch (JMException e) {
+            logger.warn("Unable to register the metrics MBean {}", new Object[]{name}, e);
+            name = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (name == null) {
+            return;
+        }
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            logger.debug("Unable to unregister the metrics MBean {}", new Object[]{name}, e);
+        }
+        name = null;
+    }
+
+    private static final class MetricsMBean implements DynamicMBean {
+        private final SendMetrics metrics;
+
+        private MetricsMBean(final SendMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+            final Long value = metrics.snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(final String[] attributes) {
+            final Map<String, Long> snapshot = metrics.snapshot();
+            final AttributeList list = new AttributeList();
+            for (final String attribute : attributes) {
+                final Long value = snapshot.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(final AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (final String attribute : metrics.snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(attribute, Long.class.getName(), attribute, true, false, false));
+            }
+            return new MBeanInfo(getClass().getName(), "SendEmail metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
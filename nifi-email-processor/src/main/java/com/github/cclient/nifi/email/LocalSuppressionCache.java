@@ -0,0 +1,60 @@
+package com.github.cclient.nifi.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link SuppressionCache} in the heap of this node, bounded to a number of keys.
+ * <p>
+ * Lookups, the hot path with one per FlowFile, are a lock-free read of a {@link ConcurrentHashMap}. Only when an
+ * insert takes the cache over its bound does it evict: first every expired key, then, if that is not enough, the
+ * keys emailed longest ago until a quarter of the bound is free again, so that the cost of eviction is spread over
+ * many inserts.
+ */
+final class LocalSuppressionCache implements SuppressionCache {
+
+    private final int maxKeys;
+    private final long windowMillis;
+    private final ConcurrentHashMap<String, Long> emailed = new ConcurrentHashMap<>();
+
+    LocalSuppressionCache(final int maxKeys, final long windowMillis) {
+        this.maxKeys = maxKeys;
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public boolean contains(final String key, final long now) {
+        final Long time = emailed.get(key);
+        return time != null && now - time < windowMillis;
+    }
+
+    @Override
+    public void add(final String key, final long now) {
+        final Long previous = emailed.putIfAbsent(key, now);
+        if (previous == null) {
+            if (emailed.size() > maxKeys) {
+                evict(now);
+            }
+        } else if (now - previous >= windowMillis) {
+            emailed.replace(key, previous, now);
+        }
+    }
+
+    private synchronized void evict(final long now) {
+        if (emailed.size() <= maxKeys) {
+            return;
+        }
+        emailed.values().removeIf(time -> now - time >= windowMillis);
+        final int excess = emailed.size() - maxKeys * 3 / 4;
+        if (excess <= 0) {
+            return;
+        }
+        final List<Map.Entry<String, Long>> entries = new ArrayList<>(emailed.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        for (int i = 0; i < excess && i < entries.size(); i++) {
+            emailed.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+    }
+}
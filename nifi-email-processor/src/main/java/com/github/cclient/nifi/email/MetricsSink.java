@@ -0,0 +1,22 @@
+package com.github.cclient.nifi.email;
+
+/**
+ * Makes the {@link SendMetrics} of a running processor available outside of NiFi's counters. Opened when the
+ * processor is scheduled and closed when it is stopped.
+ */
+interface MetricsSink {
+
+    MetricsSink NONE = new MetricsSink() {
+        @Override
+        public void open(final String processorId, final SendMetrics metrics) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    void open(String processorId, SendMetrics metrics);
+
+    void close();
+}
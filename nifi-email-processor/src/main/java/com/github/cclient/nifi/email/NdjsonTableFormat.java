@@ -0,0 +1,50 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders an {@link EmailTable} as newline-delimited JSON: one object per row, keyed by column name. The encoded keys
+ * are prepared once, when the header is written, so a format instance belongs to a single table.
+ */
+final class NdjsonTableFormat implements TableFormat {
+
+    private byte[][] keys = new byte[0][];
+
+    @Override
+    public void writeHeader(final List<String> columns, final OutputStream out) throws IOException {
+        final byte[][] keys = new byte[columns.size()][];
+        final ReusableBuffer buffer = new ReusableBuffer(64);
+        for (int i = 0; i < keys.length; i++) {
+            buffer.reset();
+            buffer.write(i == 0 ? '{' : ',');
+            buffer.write('"');
+            Util.writeJson(columns.get(i), buffer);
+            buffer.write('"');
+            buffer.write(':');
+            keys[i] = Arrays.copyOf(buffer.array(), buffer.size());
+        }
+        this.keys = keys;
+    }
+
+    @Override
+    public void writeRow(final String[] cells, final OutputStream out) throws IOException {
+        if (cells.length == 0) {
+            out.write('{');
+        }
+        for (int i = 0; i < cells.length; i++) {
+            out.write(keys[i]);
+            out.write('"');
+            Util.writeJson(cells[i], out);
+            out.write('"');
+        }
+        out.write('}');
+        out.write('\n');
+    }
+
+    @Override
+    public void writeFooter(final OutputStream out) {
+    }
+}
@@ -0,0 +1,563 @@
+package com.github.cclient.nifi.email;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * A durable, first-in first-out spool of rendered messages in a local directory, so that FlowFiles can be routed to
+ * success while the SMTP relay is unavailable, and the emails sent once it is back.
+ * <p>
+ * Messages are appended to numbered segment files of roughly {@code segmentBytes} each; a new segment is started when
+ * the current one is full, and a segment is deleted once all of its messages have been sent. Each record is a
+ * {@value #HEADER_BYTES} byte header (payload length, CRC32, time of spooling, number of FlowFiles) followed by the
+ * message as written by {@link MimeMessage#writeTo}. Appends are made durable by {@link #sync}, which forces the
+ * segment to disk once for all the appends made since the last sync, however many tasks made them. Messages whose sync
+ * failed are taken back out with {@link #discard(Mark)}, so that they are never sent for FlowFiles routed to failure.
+ * <p>
+ * The position of the oldest unsent message is kept in a checkpoint file, replaced atomically each time a message has
+ * been sent. On opening, the segments after the checkpoint are scanned and a partially written record at the end, as
+ * left by a crash, is cut off. Since the checkpoint is written after the message is sent, a crash in between sends
+ * that message again: delivery is at least once.
+ * <p>
+ * Any number of threads may append; a single thread reads with {@link #peek(long)} and {@link #remove(Entry)}.
+ */
+class Outbox implements Closeable {
+
+    static final int HEADER_BYTES = 20;
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final ComponentLog logger;
+    private final AtomicLong bytes = new AtomicLong();
+    private final Object syncLock = new Object();
+    private final Object available = new Object();
+
+    // guarded by this
+    private long activeId;
+    private FileChannel activeChannel;
+    private long activeSize;
+    private long appended;
+    private volatile long epoch = 0;
+    private volatile boolean appendable = true;
+    // guarded by this; the number of messages each discard, by epoch, cut the spool back to
+    private final List<Long> discardedTo = new ArrayList<>();
+
+    private volatile long synced;
+    private volatile long consumed = 0;
+    private volatile long headTimestamp = 0;
+
+    // confined to the reading thread
+    private long readId;
+    private long readOffset;
+    private FileChannel readChannel;
+    private Entry head;
+
+    /**
+     * Opens the spool in the directory, creating it if needed, and recovers the messages left by a previous run.
+     */
+    Outbox(final Path directory, final long segmentBytes, final ComponentLog logger) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.logger = logger;
+        Files.createDirectories(directory);
+
+        final List<Long> ids = listSegments();
+        final long[] checkpoint = readCheckpoint();
+        long readId = checkpoint == null ? (ids.isEmpty() ? 0L : ids.get(0)) : checkpoint[0];
+        long readOffset = checkpoint == null ? 0L : checkpoint[1];
+        if (!ids.isEmpty() && readId < ids.get(0)) {
+            readId = ids.get(0);
+            readOffset = 0L;
+        }
+
+        long backlog = 0;
+        for (final long id : ids) {
+            final Path segment = segmentPath(id);
+            if (id < readId) {
+                Files.delete(segment);
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final long start = id == readId ? Math.min(readOffset, channel.size()) : 0L;
+                final long[] scan = scan(channel, start);
+                if (scan[0] < channel.size()) {
+                    logger.warn("Cutting off {} bytes of incomplete or corrupt messages at the end of outbox segment {}",
+                            new Object[]{channel.size() - scan[0], segment});
+                    channel.truncate(scan[0]);
+                    channel.force(true);
+                }
+                backlog += scan[1];
+                bytes.addAndGet(channel.size() - start);
+                if (id == readId) {
+                    readOffset = start;
+                }
+            }
+        }
+
+        this.readId = readId;
+        this.readOffset = readOffset;
+        this.activeId = ids.isEmpty() || ids.get(ids.size() - 1) < readId ? readId : ids.get(ids.size() - 1);
+        this.activeChannel = FileChannel.open(segmentPath(activeId), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.activeSize = activeChannel.size();
+        activeChannel.position(activeSize);
+        this.appended = backlog;
+        this.synced = backlog;
+        if (backlog > 0) {
+            logger.info("Recovered {} unsent messages from the outbox in {}", new Object[]{backlog, directory});
+        }
+    }
+
+    /**
+     * Writes the message to the end of the spool. The message is not durable, and is not sent, until it has been
+     * {@link #sync synced}.
+     *
+     * @param mark      the mark taken before the first message of the batch was appended
+     * @param flowFiles the number of FlowFiles the message was rendered from
+     * @return the sequence number of the message, to pass to {@link #sync}
+     * @throws IOException if the message cannot be written, or messages were discarded since the mark
+     */
+    long append(final Mark mark, final MimeMessage message, final int flowFiles) throws IOException, MessagingException {
+        if (!appendable) {
+            throw new IOException("The outbox takes no more messages after unsynced messages could not be discarded");
+        }
+        final ReusableBuffer payload = new ReusableBuffer(8192);
+        message.writeTo(payload);
+
+        final CRC32 crc = new CRC32();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(payload.size()).putInt(0).putLong(System.currentTimeMillis()).putInt(flowFiles);
+        crc.update(header.array(), 8, HEADER_BYTES - 8);
+        crc.update(payload.array(), 0, payload.size());
+        header.putInt(4, (int) crc.getValue());
+        header.flip();
+        final ByteBuffer body = ByteBuffer.wrap(payload.array(), 0, payload.size());
+
+        final long recordBytes = HEADER_BYTES + payload.size();
+        synchronized (this) {
+            if (epoch != mark.epoch) {
+                throw new IOException("Messages appended to the outbox were discarded after another task failed to sync them");
+            }
+            if (activeSize > 0 && activeSize + recordBytes > segmentBytes) {
+                roll();
+            }
+            final ByteBuffer[] record = {header, body};
+            try {
+                while (header.hasRemaining() || body.hasRemaining()) {
+                    activeChannel.write(record);
+                }
+            } catch (IOException e) {
+                // do not leave a partial record for the next one to be appended after
+                activeChannel.truncate(activeSize);
+                activeChannel.position(activeSize);
+                throw e;
+            }
+            activeSize += recordBytes;
+            bytes.addAndGet(recordBytes);
+            return ++appended;
+        }
+    }
+
+    /**
+     * @return the end of the spool, to be taken before appending and passed to {@link #sync} and {@link #discard}
+     */
+    synchronized Mark mark() {
+        return new Mark(activeId, activeSize, appended, epoch);
+    }
+
+    /**
+     * Forces the messages appended so far to disk, unless another task already did so for this message. Makes the
+     * synced messages available to the reader.
+     *
+     * @param mark     the mark taken before the message was appended
+     * @param sequence the sequence number returned by {@link #append}
+     * @throws IOException if the messages cannot be forced to disk, or were discarded since the mark
+     */
+    void sync(final Mark mark, final long sequence) throws IOException {
+        if (synced >= sequence && epoch == mark.epoch) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (epoch != mark.epoch) {
+                throw new IOException("Messages appended to the outbox were discarded after another task failed to sync them");
+            }
+            if (synced >= sequence) {
+                return;
+            }
+            final FileChannel channel;
+            final long target;
+            synchronized (this) {
+                channel = activeChannel;
+                target = appended;
+            }
+            try {
+                force(channel);
+            } catch (ClosedChannelException e) {
+                // the segment was completed, and forced, by a roll since
+                if (channel == activeChannel) {
+                    throw e;
+                }
+            }
+            synced = target;
+        }
+        synchronized (available) {
+            available.notifyAll();
+        }
+    }
+
+    /**
+     * Removes every message appended since the mark, after they could not be synced. Messages other tasks appended
+     * since are removed as well, and their sync fails.
+     *
+     * @param mark the mark taken before the first of the messages was appended
+     * @return true if the messages are no longer in the spool, false if they can no longer be removed, because the
+     * segment has been rolled or they have been synced since
+     * @throws IOException if the segment cannot be truncated
+     */
+    boolean discard(final Mark mark) throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (mark.epoch != epoch) {
+                    // removed already if a discard since cut the spool back to before them
+                    for (long discard = mark.epoch; discard < epoch; discard++) {
+                        if (discardedTo.get((int) discard) <= mark.appended) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                if (mark.segmentId != activeId || synced > mark.appended) {
+                    return false;
+                }
+                epoch++;
+                discardedTo.add(mark.appended);
+                activeChannel.truncate(mark.size);
+                activeChannel.position(mark.size);
+                bytes.addAndGet(-(activeSize - mark.size));
+                activeSize = mark.size;
+                appended = mark.appended;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Refuses further appends, after messages that could not be synced could not be discarded either. The messages
+     * already synced are still read.
+     */
+    void closeForAppends() {
+        appendable = false;
+    }
+
+    /**
+     * @return false once {@link #closeForAppends()} has been called
+     */
+    boolean isAppendable() {
+        return appendable;
+    }
+
+    /**
+     * @return the oldest unsent message, waiting up to the timeout for one to be synced, or null if there is none
+     */
+    Entry peek(final long timeoutMillis) throws IOException, InterruptedException {
+        if (head != null) {
+            return head;
+        }
+        synchronized (available) {
+            if (synced <= consumed) {
+                available.wait(timeoutMillis);
+            }
+        }
+        while (synced > consumed) {
+            if (readChannel == null) {
+                try {
+                    readChannel = FileChannel.open(segmentPath(readId), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    if (!nextSegment()) {
+                        throw e;
+                    }
+                    continue;
+                }
+            }
+            if (readOffset + HEADER_BYTES > readChannel.size()) {
+                if (!nextSegment()) {
+                    return null;
+                }
+                continue;
+            }
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(readChannel, header, readOffset);
+            final int length = header.getInt(0);
+            if (length < 0 || readOffset + HEADER_BYTES + length > readChannel.size()) {
+                throw new IOException("Outbox segment " + segmentPath(readId) + " is corrupt at offset " + readOffset);
+            }
+            final byte[] payload = new byte[length];
+            readFully(readChannel, ByteBuffer.wrap(payload), readOffset + HEADER_BYTES);
+            final CRC32 crc = new CRC32();
+            crc.update(header.array(), 8, HEADER_BYTES - 8);
+            crc.update(payload, 0, length);
+            final long timestamp = header.getLong(8);
+            if ((int) crc.getValue() != header.getInt(4)) {
+                logger.error("Dropping a corrupt message at offset {} of outbox segment {}", new Object[]{readOffset, segmentPath(readId)});
+                head = new Entry(null, timestamp, header.getInt(16), readOffset + HEADER_BYTES + length);
+                remove(head);
+                continue;
+            }
+            head = new Entry(payload, timestamp, header.getInt(16), readOffset + HEADER_BYTES + length);
+            headTimestamp = timestamp;
+            return head;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the message returned by {@link #peek(long)} once it has been sent or given up on, and records the new
+     * position in the checkpoint.
+     */
+    void remove(final Entry entry) throws IOException {
+        if (entry != head) {
+            throw new IllegalStateException("Only the oldest message can be removed");
+        }
+        bytes.addAndGet(-(entry.end - readOffset));
+        readOffset = entry.end;
+        head = null;
+        headTimestamp = 0;
+        consumed++;
+        writeCheckpoint();
+    }
+
+    /**
+     * @return the number of messages waiting to be sent
+     */
+    long getBacklog() {
+        synchronized (this) {
+            return appended - consumed;
+        }
+    }
+
+    /**
+     * @return the bytes of the messages waiting to be sent
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return how long the oldest unsent message has been waiting, or 0 if there is none or it has not been read yet
+     */
+    long getOldestAgeMillis() {
+        final long timestamp = headTimestamp;
+        return timestamp == 0 ? 0L : Math.max(0L, System.currentTimeMillis() - timestamp);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            activeChannel.close();
+        }
+        if (readChannel != null) {
+            readChannel.close();
+        }
+    }
+
+    /**
+     * Forces the active segment to disk. Kept as an overridable hook to add testability of this class.
+     */
+    void force(final FileChannel channel) throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Completes the active segment and starts the next one.
+     */
+    private void roll() throws IOException {
+        activeChannel.force(false);
+        activeChannel.close();
+        activeId++;
+        activeChannel = FileChannel.open(segmentPath(activeId), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        activeSize = 0;
+    }
+
+    /**
+     * Moves the reader to the start of the next segment, if the writer has moved on from the current one, and deletes
+     * the current one.
+     */
+    private boolean nextSegment() throws IOException {
+        final long activeId;
+        synchronized (this) {
+            activeId = this.activeId;
+        }
+        if (readId >= activeId) {
+            return false;
+        }
+        final Path finished = segmentPath(readId);
+        if (readChannel != null) {
+            bytes.addAndGet(-(readChannel.size() - readOffset));
+            readChannel.close();
+            readChannel = null;
+        }
+        readId++;
+        readOffset = 0;
+        writeCheckpoint();
+        Files.deleteIfExists(finished);
+        return true;
+    }
+
+    private void writeCheckpoint() throws IOException {
+        final Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+        Files.write(temporary, (readId + " " + readOffset + "\n").getBytes(StandardCharsets.US_ASCII));
+        Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        final Path checkpoint = directory.resolve(CHECKPOINT);
+        if (!Files.exists(checkpoint)) {
+            return null;
+        }
+        final String[] fields = new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim().split(" ");
+        try {
+            return new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1])};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            logger.warn("Ignoring the unreadable outbox checkpoint {}; unsent messages may be sent again", new Object[]{checkpoint});
+            return null;
+        }
+    }
+
+    /**
+     * @return the end of the last intact record from the start, and the number of intact records
+     */
+    private static long[] scan(final FileChannel channel, final long start) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        final ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+        final long size = channel.size();
+        long offset = start;
+        long records = 0;
+        while (offset + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(channel, header, offset);
+            final int length = header.getInt(0);
+            if (length < 0 || offset + HEADER_BYTES + length > size) {
+                break;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(header.array(), 8, HEADER_BYTES - 8);
+            long position = offset + HEADER_BYTES;
+            final long end = position + length;
+            while (position < end) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), end - position));
+                readFully(channel, chunk, position);
+                crc.update(chunk.array(), 0, chunk.limit());
+                position += chunk.limit();
+            }
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            offset = end;
+            records++;
+        }
+        return new long[]{offset, records};
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of outbox segment at offset " + offset);
+            }
+            offset += read;
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        final List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (final Path segment : segments) {
+                final String name = segment.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring {} in the outbox directory", new Object[]{segment});
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private Path segmentPath(final long id) {
+        return directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * The end of the spool at one point in time.
+     */
+    static final class Mark {
+        private final long segmentId;
+        private final long size;
+        private final long appended;
+        private final long epoch;
+
+        private Mark(final long segmentId, final long size, final long appended, final long epoch) {
+            this.segmentId = segmentId;
+            this.size = size;
+            this.appended = appended;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * A spooled message.
+     */
+    static final class Entry {
+        private final byte[] payload;
+        private final long timestamp;
+        private final int flowFiles;
+        private final long end;
+
+        private Entry(final byte[] payload, final long timestamp, final int flowFiles, final long end) {
+            this.payload = payload;
+            this.timestamp = timestamp;
+            this.flowFiles = flowFiles;
+            this.end = end;
+        }
+
+        /**
+         * @return the message as written by {@link MimeMessage#writeTo}
+         */
+        byte[] getPayload() {
+            return payload;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        int getFlowFiles() {
+            return flowFiles;
+        }
+    }
+}
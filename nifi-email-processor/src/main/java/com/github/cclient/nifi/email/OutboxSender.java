@@ -0,0 +1,147 @@
+package com.github.cclient.nifi.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * Sends the messages of an {@link Outbox} in order on a background thread. A message the relay rejects permanently,
+ * with a 5xx reply, is logged and dropped; on any other failure the same message is retried after the retry interval,
+ * so that an outage delays the messages behind it instead of reordering or losing them.
+ */
+class OutboxSender {
+
+    private static final long POLL_MILLIS = 1000L;
+    private static final long RATE_LIMIT_WAIT_MILLIS = 100L;
+
+    private final Outbox outbox;
+    private final Session session;
+    private final AsyncSender.MessageSender sender;
+    private final SendRateLimiter rateLimiter;
+    private final SendMetrics metrics;
+    private final long retryMillis;
+    private final ComponentLog logger;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    OutboxSender(final Outbox outbox, final Session session, final AsyncSender.MessageSender sender, final SendRateLimiter rateLimiter,
+                 final SendMetrics metrics, final long retryMillis, final ComponentLog logger) {
+        this.outbox = outbox;
+        this.session = session;
+        this.sender = sender;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+        this.retryMillis = retryMillis;
+        this.logger = logger;
+        this.thread = new Thread(this::run, "SendEmail-Outbox-Sender");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops sending after the message being sent, if any, waiting up to the timeout. Unsent messages stay in the
+     * outbox.
+     */
+    void stop(final long timeout, final TimeUnit unit) throws InterruptedException {
+        stopped = true;
+        thread.interrupt();
+        thread.join(unit.toMillis(timeout));
+    }
+
+    private void run() {
+        while (!stopped) {
+            try {
+                final Outbox.Entry entry = outbox.peek(POLL_MILLIS);
+                if (entry != null) {
+                    sendOrRetry(entry);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to read the outbox; retrying in {} ms", new Object[]{retryMillis}, e);
+                if (!pause(retryMillis)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void sendOrRetry(final Outbox.Entry entry) throws IOException, InterruptedException {
+        final MimeMessage message;
+        try {
+            message = new SpooledMessage(session, new ByteArrayInputStream(entry.getPayload()));
+        } catch (MessagingException e) {
+            logger.error("Dropping an unreadable message from the outbox", e);
+            metrics.emailFailed();
+            outbox.remove(entry);
+            return;
+        }
+        try {
+            final Address[] recipients = message.getAllRecipients();
+            while (!rateLimiter.tryAcquire(recipients == null ? 0 : recipients.length)) {
+                if (!pause(RATE_LIMIT_WAIT_MILLIS)) {
+                    throw new InterruptedException();
+                }
+            }
+            sender.send(message);
+        } catch (MessagingException e) {
+            final int replyCode = SmtpReplies.replyCode(e);
+            final Address[] sent = SmtpReplies.validSentAddresses(e);
+            if (sent.length > 0) {
+                logger.warn("Sent a message from the outbox to {} only; the SMTP server rejected {}",
+                        new Object[]{Arrays.toString(sent), Arrays.toString(SmtpReplies.invalidAddresses(e))});
+            } else if (replyCode >= 500) {
+                logger.error("SMTP server rejected a message from the outbox with {}: {}; dropping it", new Object[]{replyCode, e.getMessage()}, e);
+                metrics.emailFailed();
+                outbox.remove(entry);
+                return;
+            } else {
+                final long pauseMillis = SmtpReplies.isThrottling(replyCode) ? Math.max(retryMillis, rateLimiter.onThrottled()) : retryMillis;
+                logger.warn("Failed to send a message from the outbox: {}; {} messages waiting, retrying in {} ms",
+                        new Object[]{e.getMessage(), outbox.getBacklog(), pauseMillis});
+                if (!pause(pauseMillis)) {
+                    throw new InterruptedException();
+                }
+                return;
+            }
+        }
+        rateLimiter.onSuccess();
+        metrics.emailSent(entry.getFlowFiles());
+        outbox.remove(entry);
+    }
+
+    private boolean pause(final long millis) {
+        try {
+            Thread.sleep(millis);
+            return !stopped;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A message read back from the outbox. It was saved before it was spooled; saving it again would give it a new
+     * Message-ID and re-encode its body, so it is sent exactly as spooled.
+     */
+    private static final class SpooledMessage extends MimeMessage {
+        private SpooledMessage(final Session session, final InputStream in) throws MessagingException {
+            super(session, in);
+        }
+
+        @Override
+        public void saveChanges() {
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.cclient.nifi.email;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.apache.nifi.flowfile.FlowFile;
+
+/**
+ * Splits a list of FlowFiles by key in a single pass while keeping at most a fixed number of partitions open.
+ */
+final class Partitioner {
+
+    private Partitioner() {
+    }
+
+    /**
+     * Hands every partition to the consumer exactly once. When a FlowFile opens a new partition while
+     * {@code maxOpen} partitions are already open, the least recently used partition is closed and handed over
+     * first; a later FlowFile with that key opens a fresh partition. The remaining partitions are handed over at the
+     * end, least recently used first.
+     *
+     * @param flowFiles   the FlowFiles to partition, in queue order
+     * @param keyFunction computes the partition key of a FlowFile
+     * @param maxOpen     the maximum number of partitions held open at the same time
+     * @param consumer    receives each partition key and its FlowFiles, in queue order
+     */
+    static void partition(final List<FlowFile> flowFiles, final Function<FlowFile, String> keyFunction, final int maxOpen,
+                          final BiConsumer<String, List<FlowFile>> consumer) {
+        final Map<String, List<FlowFile>> open = new LinkedHashMap<>(16, 0.75f, true);
+        for (final FlowFile flowFile : flowFiles) {
+            final String key = keyFunction.apply(flowFile);
+            List<FlowFile> partition = open.get(key);
+            if (partition == null) {
+                if (open.size() >= maxOpen) {
+                    final Iterator<Map.Entry<String, List<FlowFile>>> eldest = open.entrySet().iterator();
+                    final Map.Entry<String, List<FlowFile>> evicted = eldest.next();
+                    eldest.remove();
+                    consumer.accept(evicted.getKey(), evicted.getValue());
+                }
+                partition = new ArrayList<>();
+                open.put(key, partition);
+            }
+            partition.add(flowFile);
+        }
+        for (final Map.Entry<String, List<FlowFile>> entry : open.entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue());
+        }
+    }
+}
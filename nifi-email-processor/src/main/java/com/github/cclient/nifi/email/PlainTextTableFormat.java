@@ -0,0 +1,112 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Renders an {@link EmailTable} as a fixed-width plain text table for clients that do not display HTML. The column
+ * widths are those measured by the {@link ScannedTable} the rows come from, in the same single scan that keeps the
+ * cells for the HTML version; see {@link Util#setAlternativeTableContent}.
+ */
+final class PlainTextTableFormat implements TableFormat {
+
+    private static final byte[] SEPARATOR = ascii(" | ");
+    private static final byte[] CROSSING = ascii("-+-");
+    private static final byte[] LINE_END = ascii("\r\n");
+
+    private final ScannedTable table;
+    private int[] widths = null;
+
+    /**
+     * @param table the table whose rows are rendered, which measures the width of each column when it is scanned
+     */
+    PlainTextTableFormat(final ScannedTable table) {
+        this.table = table;
+    }
+
+    @Override
+    public void writeHeader(final List<String> columns, final OutputStream out) throws IOException {
+        widths = table.getWidths();
+        for (int i = 0; i < widths.length; i++) {
+            writeCell(i, columns.get(i), out);
+        }
+        out.write(LINE_END);
+        for (int i = 0; i < widths.length; i++) {
+            if (i > 0) {
+                out.write(CROSSING);
+            }
+            for (int n = 0; n < widths[i]; n++) {
+                out.write('-');
+            }
+        }
+        out.write(LINE_END);
+    }
+
+    @Override
+    public void writeRow(final String[] cells, final OutputStream out) throws IOException {
+        for (int i = 0; i < widths.length; i++) {
+            writeCell(i, cells[i], out);
+        }
+        out.write(LINE_END);
+    }
+
+    @Override
+    public void writeNote(final String note, final int columnCount, final OutputStream out) throws IOException {
+        Util.writePlainText(note, out);
+        out.write(LINE_END);
+    }
+
+    @Override
+    public void writeFooter(final OutputStream out) {
+    }
+
+    private void writeCell(final int column, final String value, final OutputStream out) throws IOException {
+        if (column > 0) {
+            out.write(SEPARATOR);
+        }
+        Util.writePlainText(value, out);
+        if (column < widths.length - 1) {
+            for (int n = displayWidth(value); n < widths[column]; n++) {
+                out.write(' ');
+            }
+        }
+    }
+
+    /**
+     * @return the number of monospace cells the value takes up, counting East Asian wide characters twice
+     */
+    static int displayWidth(final CharSequence value) {
+        int width = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x1100) {
+                width++;
+            } else if (Character.isHighSurrogate(c)) {
+                // supplementary characters are mostly CJK ideographs and emoji; the low surrogate adds no width
+                width += 2;
+            } else if (Character.isLowSurrogate(c)) {
+                continue;
+            } else {
+                width += isWide(c) ? 2 : 1;
+            }
+        }
+        return width;
+    }
+
+    private static boolean isWide(final char c) {
+        return c <= 0x115F
+                || c >= 0x2E80 && c <= 0xA4CF
+                || c >= 0xAC00 && c <= 0xD7A3
+                || c >= 0xF900 && c <= 0xFAFF
+                || c >= 0xFE30 && c <= 0xFE4F
+                || c >= 0xFF00 && c <= 0xFF60
+                || c >= 0xFFE0 && c <= 0xFFE6;
+    }
+
+    private static byte[] ascii(final String literal) {
+        return literal.getBytes(StandardCharsets.US_ASCII);
+    }
+}
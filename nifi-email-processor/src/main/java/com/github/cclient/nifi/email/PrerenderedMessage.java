@@ -0,0 +1,66 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A message that can be written out ahead of sending, on another thread, so that the SMTP transfer only copies bytes.
+ * Until {@link #prerender()} is called it behaves like any other message.
+ * <p>
+ * The rendered bytes leave out the Bcc and Content-Length headers, as a transport does, and are what every later
+ * {@code writeTo} writes whatever headers it asks to leave out. Once rendered the message is not saved again, which
+ * would give it a new Message-ID and encode the body a second time.
+ */
+class PrerenderedMessage extends MimeMessage {
+
+    private static final String[] TRANSPORT_IGNORED_HEADERS = {"Bcc", "Content-Length"};
+
+    private volatile byte[] rendered = null;
+
+    PrerenderedMessage(final Session session) {
+        super(session);
+    }
+
+    /**
+     * Saves the message and writes it into memory. The message must not be changed afterwards.
+     *
+     * @throws MessagingException if the message cannot be saved or written
+     * @throws IOException        if the body cannot be rendered
+     */
+    void prerender() throws MessagingException, IOException {
+        saveChanges();
+        final ReusableBuffer buffer = new ReusableBuffer(8192);
+        super.writeTo(buffer, TRANSPORT_IGNORED_HEADERS);
+        final byte[] bytes = new byte[buffer.size()];
+        System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+        rendered = bytes;
+    }
+
+    /**
+     * @return true once {@link #prerender()} has completed
+     */
+    boolean isPrerendered() {
+        return rendered != null;
+    }
+
+    @Override
+    public void saveChanges() throws MessagingException {
+        if (rendered == null) {
+            super.saveChanges();
+        }
+    }
+
+    @Override
+    public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException, MessagingException {
+        final byte[] bytes = rendered;
+        if (bytes == null) {
+            super.writeTo(os, ignoreList);
+        } else {
+            os.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.github.cclient.nifi.email;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.record.Record;
+
+/**
+ * One row per record in the content of the FlowFiles, up to a maximum number of rows. The columns are the fields of
+ * the FlowFiles' schemas, in order of first appearance, narrowed and ordered by a {@link ColumnSelector}.
+ * <p>
+ * Records are read from the session while the table is rendered, one at a time, so memory does not grow with the
+ * number of records; records beyond the maximum are only counted, for the {@link #getNote() note}. The table must be
+ * rendered on the thread that owns the session, before the session is committed.
+ */
+class RecordTable implements EmailTable {
+
+    private final ProcessSession session;
+    private final List<FlowFile> flowFiles;
+    private final RecordReaderFactory readerFactory;
+    private final ComponentLog logger;
+    private final int maxRows;
+    private final List<String> columns;
+    private int size = -1;
+    private long omitted = 0;
+
+    /**
+     * @throws ProcessException if the schema of a FlowFile's records cannot be read
+     */
+    RecordTable(final ProcessSession session, final List<FlowFile> flowFiles, final RecordReaderFactory readerFactory,
+                final ColumnSelector selector, final int maxRows, final ComponentLog logger) {
+        this.session = session;
+        this.flowFiles = flowFiles;
+        this.readerFactory = readerFactory;
+        this.logger = logger;
+        this.maxRows = maxRows;
+        final Set<String> fieldNames = new LinkedHashSet<>();
+        for (final FlowFile flowFile : flowFiles) {
+            try (InputStream in = session.read(flowFile); RecordReader reader = createReader(flowFile, in)) {
+                fieldNames.addAll(reader.getSchema().getFieldNames());
+            } catch (IOException | MalformedRecordException e) {
+                throw new ProcessException("Failed to read the record schema of " + flowFile, e);
+            }
+        }
+        this.columns = Collections.unmodifiableList(selector.selectFields(fieldNames));
+    }
+
+    @Override
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Counts the rows by reading the records, stopping at the maximum number of rows.
+     */
+    @Override
+    public int size() {
+        if (size < 0) {
+            int count = 0;
+            try (Rows rows = new Rows(false)) {
+                while (count < maxRows && rows.hasNext()) {
+                    rows.next();
+                    count++;
+                }
+            }
+            size = count;
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<String[]> rows() {
+        omitted = 0;
+        return new Rows(true);
+    }
+
+    @Override
+    public String getNote() {
+        return omitted == 0 ? null : "Truncated, " + omitted + " more record" + (omitted == 1 ? "" : "s");
+    }
+
+    private RecordReader createReader(final FlowFile flowFile, final InputStream in) throws IOException, MalformedRecordException {
+        try {
+            return readerFactory.createRecordReader(flowFile.getAttributes(), in, flowFile.getSize(), logger);
+        } catch (SchemaNotFoundException e) {
+            throw new MalformedRecordException("No schema found for " + flowFile, e);
+        }
+    }
+
+    /**
+     * Reads the records of one FlowFile after the other, holding at most one FlowFile's content stream open.
+     */
+    private final class Rows implements Iterator<String[]>, Closeable {
+        private final boolean countOmitted;
+        private int flowFileIndex = 0;
+        private int rowCount = 0;
+        private FlowFile flowFile;
+        private InputStream in;
+        private RecordReader reader;
+        private Record next;
+
+        private Rows(final boolean countOmitted) {
+            this.countOmitted = countOmitted;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (rowCount >= maxRows) {
+                if (countOmitted) {
+                    countRemaining();
+                }
+                close();
+                return false;
+            }
+            next = nextRecord();
+            return next != null;
+        }
+
+        @Override
+        public String[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final String[] cells = new String[columns.size()];
+            for (int i = 0; i < cells.length; i++) {
+                final String value = next.getAsString(columns.get(i));
+                cells[i] = value == null ? "" : value;
+            }
+            next = null;
+            rowCount++;
+            return cells;
+        }
+
+        private void countRemaining() {
+            long count = 0;
+            while (nextRecord() != null) {
+                count++;
+            }
+            omitted = count;
+        }
+
+        /**
+         * @return the next record of the current or a following FlowFile, or null after the last one
+         */
+        private Record nextRecord() {
+            try {
+                while (true) {
+                    if (reader == null) {
+                        if (flowFileIndex >= flowFiles.size()) {
+                            return null;
+                        }
+                        flowFile = flowFiles.get(flowFileIndex++);
+                        in = session.read(flowFile);
+                        reader = createReader(flowFile, in);
+                    }
+                    final Record record = reader.nextRecord();
+                    if (record != null) {
+                        return record;
+                    }
+                    close();
+                }
+            } catch (IOException | MalformedRecordException e) {
+                close();
+                throw new UncheckedIOException(new IOException("Failed to read the records of " + flowFile, e));
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                logger.debug("Failed to close the record reader of {}", new Object[]{flowFile}, e);
+            }
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                logger.debug("Failed to close the content of {}", new Object[]{flowFile}, e);
+            }
+            reader = null;
+            in = null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.cclient.nifi.email;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An unsynchronized, resettable byte buffer whose backing array is read in place instead of being copied out.
+ */
+final class ReusableBuffer extends OutputStream {
+
+    private byte[] bytes;
+    private int count = 0;
+
+    ReusableBuffer(final int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(final int b) {
+        ensureCapacity(count + 1);
+        bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, bytes, count, len);
+        count += len;
+    }
+
+    void reset() {
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length << 1));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.cclient.nifi.email;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the rows of another table once and serves every later pass from what that scan kept, so that several
+ * renderings of one table, such as the two versions of a multipart/alternative body, read the FlowFiles or records a
+ * single time. The scan also measures the display width of each column for {@link PlainTextTableFormat}.
+ * <p>
+ * The cells are kept as length-prefixed UTF-8 in one byte array rather than as strings, so the scan holds about the
+ * size of the raw values and none of the markup of either rendering. The scan runs on the first call to
+ * {@link #rows()}, which is made when the first part of the message is written.
+ */
+final class ScannedTable implements EmailTable {
+
+    private final EmailTable table;
+    private ReusableBuffer cells = null;
+    private int[] widths = null;
+    private int rowCount = 0;
+    private String note = null;
+
+    ScannedTable(final EmailTable table) {
+        this.table = table;
+    }
+
+    @Override
+    public List<String> getColumns() {
+        return table.getColumns();
+    }
+
+    @Override
+    public int size() {
+        return table.size();
+    }
+
+    @Override
+    public Iterator<String[]> rows() {
+        final ReusableBuffer scanned = scan();
+        final int columnCount = getColumns().size();
+        final int rows = rowCount;
+        return new Iterator<String[]>() {
+            private int row = 0;
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return row < rows;
+            }
+
+            @Override
+            public String[] next() {
+                if (row >= rows) {
+                    throw new NoSuchElementException();
+                }
+                final byte[] bytes = scanned.array();
+                final String[] values = new String[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    final int length = (bytes[position] & 0xFF) << 24 | (bytes[position + 1] & 0xFF) << 16
+                            | (bytes[position + 2] & 0xFF) << 8 | bytes[position + 3] & 0xFF;
+                    values[i] = new String(bytes, position + 4, length, StandardCharsets.UTF_8);
+                    position += 4 + length;
+                }
+                row++;
+                return values;
+            }
+        };
+    }
+
+    @Override
+    public synchronized String getNote() {
+        return note;
+    }
+
+    /**
+     * @return the display width of each column; see {@link PlainTextTableFormat#displayWidth(CharSequence)}
+     */
+    synchronized int[] getWidths() {
+        scan();
+        return widths;
+    }
+
+    private synchronized ReusableBuffer scan() {
+        if (cells != null) {
+            return cells;
+        }
+        final List<String> columns = table.getColumns();
+        final int[] measured = new int[columns.size()];
+        for (int i = 0; i < measured.length; i++) {
+            measured[i] = PlainTextTableFormat.displayWidth(columns.get(i));
+        }
+        final ReusableBuffer buffer = new ReusableBuffer(8192);
+        int count = 0;
+        final Iterator<String[]> rows = table.rows();
+        try {
+            while (rows.hasNext()) {
+                final String[] row = rows.next();
+                for (int i = 0; i < measured.length; i++) {
+                    measured[i] = Math.max(measured[i], PlainTextTableFormat.displayWidth(row[i]));
+                    writeCell(row[i], buffer);
+                }
+                count++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (rows instanceof Closeable) {
+                try {
+                    ((Closeable) rows).close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        this.widths = measured;
+        this.rowCount = count;
+        this.note = table.getNote();
+        this.cells = buffer;
+        return buffer;
+    }
+
+    private static void writeCell(final String value, final ReusableBuffer buffer) throws IOException {
+        final int lengthAt = buffer.size();
+        buffer.write(0);
+        buffer.write(0);
+        buffer.write(0);
+        buffer.write(0);
+        Util.writeUtf8(value, buffer, null);
+        final int length = buffer.size() - lengthAt - 4;
+        final byte[] bytes = buffer.array();
+        bytes[lengthAt] = (byte) (length >>> 24);
+        bytes[lengthAt + 1] = (byte) (length >>> 16);
+        bytes[lengthAt + 2] = (byte) (length >>> 8);
+        bytes[lengthAt + 3] = (byte) length;
+    }
+}
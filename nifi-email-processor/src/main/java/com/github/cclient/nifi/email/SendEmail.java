@@ -1,64 +1,77 @@
 package com.github.cclient.nifi.email;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Properties;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
-import javax.mail.Authenticator;
+import javax.mail.Address;
 import javax.mail.Message;
-import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
-import javax.mail.PasswordAuthentication;
-import javax.mail.Session;
 import javax.mail.Transport;
-import javax.mail.internet.AddressException;
-import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeUtility;
 
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
-import org.apache.nifi.annotation.behavior.SystemResource;
-import org.apache.nifi.annotation.behavior.SystemResourceConsideration;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationContext;
 import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.controller.NodeTypeProvider;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.logging.ComponentLog;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.RecordReaderFactory;
 
 @SupportsBatching
+@TriggerWhenEmpty
+@Stateful(scopes = Scope.CLUSTER, description = "With Cluster Digest, the FlowFile counts, sizes and entry dates of each Summary Key "
+        + "Attributes value folded in by all nodes since the last digest, and the time the last digest was sent")
 @Tags({"email", "put", "notify", "smtp"})
 @InputRequirement(Requirement.INPUT_REQUIRED)
 @CapabilityDescription("Sends an e-mail to configured recipients for each incoming FlowFile")
-@SystemResourceConsideration(resource = SystemResource.MEMORY, description = "The entirety of the FlowFile's content (as a String object) "
-        + "will be read into memory in case the property to use the flow file content as the email body is set to true.")
-public class SendEmail extends AbstractProcessor {
+public class SendEmail extends AbstractSessionFactoryProcessor {
 
     public static final PropertyDescriptor SMTP_HOSTNAME = new PropertyDescriptor.Builder()
             .name("SMTP Hostname")
-            .description("The hostname of the SMTP host")
+            .description("The hostname of the SMTP host, or a comma separated list of host[:port] entries to spread emails over several "
+                    + "relays. Each email goes to the host with the lowest recent latency that is not busy, and hosts that keep failing are "
+                    + "skipped for the SMTP Host Ejection Cooldown. Entries without a port use the SMTP Port.")
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
@@ -113,12 +126,143 @@ public class SendEmail extends AbstractProcessor {
     public static final PropertyDescriptor ATTRIBUTE_NAME_REGEX = new PropertyDescriptor.Builder()
             .name("attribute-name-regex")
             .displayName("Attributes to Send as Headers (Regex)")
-            .description("A Regular Expression that is matched against all FlowFile attribute names. "
-                    + "Any attribute whose name matches the regex will be added to the Email messages as a Header. "
-                    + "If not specified, no FlowFile attributes will be added as headers.")
+            .description("Deprecated and ignored: no FlowFile attributes are added to the emails as headers, whatever this is set to. "
+                    + "It is kept only so that flows which set it stay valid. Attributes are shown in the table; see Include Columns, "
+                    + "Exclude Columns and Columns.")
             .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
             .required(false)
             .build();
+    public static final PropertyDescriptor INCLUDE_COLUMNS = new PropertyDescriptor.Builder()
+            .name("Include Columns (Regex)")
+            .description("A Regular Expression that attribute names must match to be shown as columns of the table. "
+                    + "entryDate and size stand for the FlowFile's entry date and size. If not specified, all attributes are shown, "
+                    + "unless Columns is set, in which case only the listed columns are shown.")
+            .required(false)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor EXCLUDE_COLUMNS = new PropertyDescriptor.Builder()
+            .name("Exclude Columns (Regex)")
+            .description("A Regular Expression matching attribute names that are not shown as columns of the table, such as uuid|path|filename. "
+                    + "Does not apply to the columns listed in Columns.")
+            .required(false)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor COLUMNS = new PropertyDescriptor.Builder()
+            .name("Columns")
+            .description("Comma separated attribute names that are shown first, in this order, whether or not a FlowFile has them. "
+                    + "Other attributes follow, sorted by name, if they pass Include Columns and Exclude Columns.")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+            .name("Record Reader")
+            .description("If set, each record in the content of the FlowFiles becomes a row of the table, instead of each FlowFile. "
+                    + "The columns are the fields of the record schemas, narrowed and ordered by Include Columns, Exclude Columns and Columns. "
+                    + "Records are read one at a time while the email is sent. Cannot be used with Asynchronous Send or Summarize.")
+            .required(false)
+            .identifiesControllerService(RecordReaderFactory.class)
+            .build();
+    public static final PropertyDescriptor MAX_RECORDS = new PropertyDescriptor.Builder()
+            .name("Max Records per Email")
+            .description("The maximum number of records shown in one email when a Record Reader is set. "
+                    + "The remaining records are counted, and their number is shown below the table.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .build();
+    public static final PropertyDescriptor ADAPTIVE_GROUP_SIZE = new PropertyDescriptor.Builder()
+            .name("Adaptive Group Size")
+            .description("If true, each email takes as many FlowFiles as are expected to arrive within the Target Email Interval, "
+                    + "between Min Group Size and Group Size, judging from the queue depth and the recent arrival rate. Fewer "
+                    + "FlowFiles wait in the queue until the interval has passed since the previous email, so a quiet flow is "
+                    + "notified at once and a busy one gets about one email per interval. Cannot be used with Accumulate Across Triggers.")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor MIN_GROUP_SIZE = new PropertyDescriptor.Builder()
+            .name("Min Group Size")
+            .description("With Adaptive Group Size, the number of queued FlowFiles that are sent right away, however recent the previous email")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .build();
+    public static final PropertyDescriptor TARGET_EMAIL_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Target Email Interval")
+            .description("With Adaptive Group Size, the spacing of emails under sustained load, and the longest a FlowFile waits for its batch to fill")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 min")
+            .build();
+    public static final PropertyDescriptor CONTENT_EXCERPT_SIZE = new PropertyDescriptor.Builder()
+            .name("Content Excerpt Size")
+            .description("If set, the table has a content column holding the beginning of each FlowFile's content, up to this many bytes, "
+                    + "at most 1 MB. Only this much of a FlowFile is read, whatever its size. The column is shown last unless listed in Columns.")
+            .required(false)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, 1024 * 1024))
+            .build();
+    public static final PropertyDescriptor CONTENT_EXCERPT_LINES = new PropertyDescriptor.Builder()
+            .name("Content Excerpt Lines")
+            .description("The maximum number of lines of content shown in the content column. Requires Content Excerpt Size.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor CONTENT_EXCERPT_CHARSET = new PropertyDescriptor.Builder()
+            .name("Content Excerpt Character Set")
+            .description("The character set used to decode the content shown in the content column")
+            .required(true)
+            .addValidator(StandardValidators.CHARACTER_SET_VALIDATOR)
+            .defaultValue("UTF-8")
+            .build();
+    public static final AllowableValue ATTACHMENT_NONE = new AllowableValue("None", "None",
+            "The table is always sent inline, as the body");
+    public static final AllowableValue ATTACHMENT_CSV = new AllowableValue("CSV", "CSV",
+            "Large tables are attached as UTF-8 CSV with a header line");
+    public static final AllowableValue ATTACHMENT_NDJSON = new AllowableValue("NDJSON", "NDJSON",
+            "Large tables are attached as newline-delimited JSON, one object per row");
+    public static final PropertyDescriptor ATTACHMENT_FORMAT = new PropertyDescriptor.Builder()
+            .name("Attachment Format")
+            .description("If a table has more rows than Attachment Row Threshold, the body only holds a short summary, and the full table "
+                    + "is attached in this format. The attachment is rendered and compressed while the email is sent.")
+            .required(true)
+            .allowableValues(ATTACHMENT_NONE, ATTACHMENT_CSV, ATTACHMENT_NDJSON)
+            .defaultValue(ATTACHMENT_NONE.getValue())
+            .build();
+    public static final PropertyDescriptor ATTACHMENT_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("Attachment Compression")
+            .description("How the attached table is compressed")
+            .required(true)
+            .allowableValues("gzip", "zip", "none")
+            .defaultValue("gzip")
+            .build();
+    public static final PropertyDescriptor ATTACHMENT_ROW_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Attachment Row Threshold")
+            .description("Tables with more rows than this are attached instead of sent inline, if Attachment Format is not None")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("200")
+            .build();
+    public static final PropertyDescriptor BODY_TEMPLATE = new PropertyDescriptor.Builder()
+            .name("Body Template")
+            .description("A Mustache-style layout that replaces the HTML table of the body. The {{#rows}}...{{/rows}} section is repeated for "
+                    + "every row, with {{name}} standing for the HTML-escaped value of column name and {{{name}}} for the raw value; "
+                    + "{{#cells}}...{{/cells}} repeats for every cell of the row. Before and after the rows section, "
+                    + "{{#columns}}...{{/columns}} repeats for every column name. Within both, {{.}} is the current cell or column name. "
+                    + "After the rows section, {{note}} is the remark on left out rows, if any. "
+                    + "The template is compiled once when the processor is scheduled.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor PLAIN_TEXT_ALTERNATIVE = new PropertyDescriptor.Builder()
+            .name("Plain Text Alternative")
+            .description("If true, the table is sent as multipart/alternative: a fixed-width plain text table for text-only clients and pagers, "
+                    + "followed by the table as Content Type. Both are rendered from a single scan of the FlowFiles, whose cell values are "
+                    + "kept in memory while the email is written. "
+                    + "Does not apply to Message or to tables sent as attachments.")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .defaultValue("false")
+            .build();
     public static final PropertyDescriptor CONTENT_TYPE = new PropertyDescriptor.Builder()
             .name("Content Type")
             .description("Mime Type used to interpret the contents of the email, such as text/plain or text/html")
@@ -178,6 +322,347 @@ public class SendEmail extends AbstractProcessor {
             .defaultValue("1000")
             .build();
 
+    public static final PropertyDescriptor CONNECTION_POOL_SIZE = new PropertyDescriptor.Builder()
+            .name("Connection Pool Size")
+            .description("The maximum number of SMTP connections that are kept open and shared by the concurrent tasks of this processor")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .build();
+    public static final PropertyDescriptor CONNECTION_IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Connection Idle Timeout")
+            .description("How long a pooled SMTP connection may stay unused before it is closed")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("60 sec")
+            .build();
+    public static final PropertyDescriptor MAX_MESSAGES_PER_CONNECTION = new PropertyDescriptor.Builder()
+            .name("Max Messages Per Connection")
+            .description("The number of emails sent over a pooled SMTP connection before it is closed and a new one is opened")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .build();
+
+    public static final PropertyDescriptor HOST_EJECTION_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("SMTP Host Ejection Threshold")
+            .description("The number of failures in a row, without an SMTP reply or with a 421 reply, after which an SMTP host is skipped "
+                    + "for the SMTP Host Ejection Cooldown")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("3")
+            .build();
+    public static final PropertyDescriptor HOST_EJECTION_COOLDOWN = new PropertyDescriptor.Builder()
+            .name("SMTP Host Ejection Cooldown")
+            .description("How long an ejected SMTP host is skipped before emails are sent to it again")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .build();
+    public static final PropertyDescriptor SEND_PARTIAL = new PropertyDescriptor.Builder()
+            .name("Send To Valid Recipients")
+            .description("If true, an email is still sent to the recipients the SMTP server accepts when it rejects others, and the "
+                    + "FlowFiles are routed to success with the rejected recipients logged. If false, one rejected recipient fails the email.")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .defaultValue("true")
+            .build();
+    public static final PropertyDescriptor MIN_SPLIT_SIZE = new PropertyDescriptor.Builder()
+            .name("Min Split Size")
+            .description("When the SMTP server rejects an email as too large (552 to the message data), its FlowFiles are split in half "
+                    + "and each half is sent as its own email, in the same trigger or, with Asynchronous Send, by the sender threads, "
+                    + "halving again as long as they are rejected and hold more than this many FlowFiles. A group rejected at this size "
+                    + "or smaller is routed to failure.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+
+    public static final PropertyDescriptor BIN_ENABLED = new PropertyDescriptor.Builder()
+            .name("Accumulate Across Triggers")
+            .description("If true, FlowFiles are accumulated across triggers into a bin that is sent as one email once it holds "
+                    + "Group Size FlowFiles, once its rendered body reaches Bin Max Body Size, or once its oldest FlowFile is older "
+                    + "than Bin Max Age, whichever comes first. If false, each trigger sends whatever it pulls, up to Group Size.")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor BIN_MAX_BODY_SIZE = new PropertyDescriptor.Builder()
+            .name("Bin Max Body Size")
+            .description("The estimated size of the rendered email body at which an accumulating bin is sent")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 MB")
+            .build();
+    public static final PropertyDescriptor BIN_MAX_AGE = new PropertyDescriptor.Builder()
+            .name("Bin Max Age")
+            .description("The longest time a FlowFile waits in an accumulating bin before the bin is sent; "
+                    + "this is the upper bound on the notification delay added by binning")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 min")
+            .build();
+
+    public static final PropertyDescriptor PARTITION_BY = new PropertyDescriptor.Builder()
+            .name("Partition By")
+            .description("An expression evaluated against each FlowFile, such as ${source.processor} or ${kafka.topic}. "
+                    + "FlowFiles are grouped by its value and each group is sent as its own email. "
+                    + "If not specified, all FlowFiles go into the same email.")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_OPEN_PARTITIONS = new PropertyDescriptor.Builder()
+            .name("Max Open Partitions")
+            .description("The maximum number of partitions (or accumulating bins) held open at once. When a FlowFile opens one more, "
+                    + "the least recently used partition is sent right away.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .build();
+    public static final PropertyDescriptor PARTITION_RECIPIENTS_ATTRIBUTE = new PropertyDescriptor.Builder()
+            .name("Partition Recipients Attribute")
+            .description("The name of a FlowFile attribute holding comma separated RFC822 addresses. If the first FlowFile of a "
+                    + "partition has this attribute, its value replaces the To addresses of that partition's email.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor PARTITION_SUBJECT_ATTRIBUTE = new PropertyDescriptor.Builder()
+            .name("Partition Subject Attribute")
+            .description("The name of a FlowFile attribute. If the first FlowFile of a partition has this attribute, "
+                    + "its value replaces the Subject of that partition's email.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor FAN_OUT_ATTRIBUTE = new PropertyDescriptor.Builder()
+            .name("Fan-Out Recipient Attribute")
+            .description("The name of a FlowFile attribute holding comma separated RFC822 addresses, such as owner.email. If set, the "
+                    + "FlowFiles of a trigger are grouped by its value and each group is emailed, as its own table, to those addresses "
+                    + "only; FlowFiles without it go to the configured recipients. All emails of a trigger are sent over one SMTP "
+                    + "connection, replaced after Max Messages Per Connection.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SUMMARIZE = new PropertyDescriptor.Builder()
+            .name("Summarize Rows")
+            .description("If true, FlowFiles with the same Summary Key Attributes are collapsed into a single row showing their count, "
+                    + "first and last entry date and total size, instead of one row per FlowFile")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor SUMMARY_KEY_ATTRIBUTES = new PropertyDescriptor.Builder()
+            .name("Summary Key Attributes")
+            .description("Comma separated names of the attributes that identify a summarized row. If not specified, rows are "
+                    + "collapsed by all attributes except uuid, filename and entryDate.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor SUMMARY_TOP_N = new PropertyDescriptor.Builder()
+            .name("Summary Top N")
+            .description("If specified, only this many summarized rows are shown, most frequent first")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SUPPRESSION_KEY_ATTRIBUTES = new PropertyDescriptor.Builder()
+            .name("Suppression Key Attributes")
+            .description("Comma separated names of the attributes that identify a repeated alert, such as source,error.code. If specified, "
+                    + "FlowFiles whose values of these attributes have already been emailed within the Suppression Window are left out "
+                    + "of the email, and an email whose FlowFiles are all left out is not sent; their FlowFiles are routed with the email, "
+                    + "or to success.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor SUPPRESSION_WINDOW = new PropertyDescriptor.Builder()
+            .name("Suppression Window")
+            .description("How long after a key has been emailed its FlowFiles are left out of further emails")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 hour")
+            .build();
+    public static final AllowableValue SUPPRESSED_DROP = new AllowableValue("Drop", "Drop",
+            "Suppressed FlowFiles are left out without a trace in the email");
+    public static final AllowableValue SUPPRESSED_COUNT = new AllowableValue("Count", "Count",
+            "Suppressed FlowFiles are counted in a 'still occurring' note below the table");
+    public static final PropertyDescriptor SUPPRESSED_ROWS = new PropertyDescriptor.Builder()
+            .name("Suppressed Rows")
+            .description("How FlowFiles left out by Suppression Key Attributes show in the email")
+            .required(true)
+            .allowableValues(SUPPRESSED_DROP, SUPPRESSED_COUNT)
+            .defaultValue(SUPPRESSED_COUNT.getValue())
+            .build();
+    public static final PropertyDescriptor SUPPRESSION_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Suppression Cache Size")
+            .description("The number of keys remembered in memory when no Suppression Cache Service is set; the keys emailed longest ago are forgotten first")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10000")
+            .build();
+    public static final PropertyDescriptor SUPPRESSION_CACHE_SERVICE = new PropertyDescriptor.Builder()
+            .name("Suppression Cache Service")
+            .description("If set, emailed keys are remembered in this cache instead of in memory, so that they are suppressed on every node of a cluster")
+            .required(false)
+            .identifiesControllerService(DistributedMapCacheClient.class)
+            .build();
+
+    public static final PropertyDescriptor CLUSTER_DIGEST = new PropertyDescriptor.Builder()
+            .name("Cluster Digest")
+            .description("If true, every node folds its FlowFiles into counts per Summary Key Attributes value kept in cluster state and "
+                    + "routes them to success, and only the primary node sends one digest of all nodes' FlowFiles, at most once per Digest Interval. "
+                    + "Requires Summary Key Attributes.")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor DIGEST_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Digest Interval")
+            .description("The shortest time between two digests; FlowFiles folded in meanwhile are sent with the next one")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 min")
+            .build();
+    public static final PropertyDescriptor DIGEST_MAX_KEYS = new PropertyDescriptor.Builder()
+            .name("Digest Max Keys")
+            .description("The number of distinct Summary Key Attributes values kept in cluster state between digests; "
+                    + "FlowFiles with further values are counted in one (other) row")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .build();
+
+    public static final PropertyDescriptor BATCHES_PER_TRIGGER = new PropertyDescriptor.Builder()
+            .name("Batches Per Trigger")
+            .description("The number of batches of up to Group Size FlowFiles pulled in one trigger. With more than one, the emails are "
+                    + "rendered in parallel by the Render Threads and each is sent while the following ones are still being pulled and "
+                    + "rendered. Each batch is routed in a session of its own, committed once its last email has been sent, so a failed "
+                    + "trigger sends again at most the emails of the batch that was being sent.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor TRIGGER_TIME_BUDGET = new PropertyDescriptor.Builder()
+            .name("Trigger Time Budget")
+            .description("When Batches Per Trigger is more than one, no further batch is pulled once this much time has passed since the "
+                    + "trigger started. If not set, a trigger pulls batches until Batches Per Trigger is reached or the queue is empty.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor RENDER_THREADS = new PropertyDescriptor.Builder()
+            .name("Render Threads")
+            .description("The number of threads rendering and encoding email bodies when Batches Per Trigger is more than one")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("2")
+            .build();
+    public static final PropertyDescriptor ASYNC_SEND = new PropertyDescriptor.Builder()
+            .name("Asynchronous Send")
+            .description("If true, emails are sent by a dedicated pool of sender threads instead of the thread that triggered the processor. "
+                    + "FlowFiles are held until their email has been sent and are routed on a later trigger.")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor SENDER_THREADS = new PropertyDescriptor.Builder()
+            .name("Sender Threads")
+            .description("The number of threads sending emails when Asynchronous Send is enabled")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("2")
+            .build();
+    public static final PropertyDescriptor MAX_IN_FLIGHT = new PropertyDescriptor.Builder()
+            .name("Max In-Flight Emails")
+            .description("When Asynchronous Send is enabled, no more FlowFiles are pulled while this many emails are waiting to be "
+                    + "or being sent")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .build();
+
+    public static final PropertyDescriptor MAX_EMAILS_PER_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Max Emails Per Interval")
+            .description("The maximum number of emails sent per Rate Limit Interval by all concurrent tasks together. "
+                    + "FlowFiles over the limit are returned to the queue. If not specified, emails are not limited.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_RECIPIENTS_PER_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Max Recipients Per Interval")
+            .description("The maximum number of To, CC and BCC recipients addressed per Rate Limit Interval by all concurrent tasks together. "
+                    + "FlowFiles over the limit are returned to the queue. If not specified, recipients are not limited.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor RATE_LIMIT_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Rate Limit Interval")
+            .description("The interval over which Max Emails Per Interval and Max Recipients Per Interval apply")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 min")
+            .build();
+    public static final PropertyDescriptor ADAPTIVE_BACKOFF = new PropertyDescriptor.Builder()
+            .name("Adaptive Backoff")
+            .description("If true, a 421, 450, 451 or 452 reply from the SMTP server returns the FlowFiles to the queue instead of routing them "
+                    + "to failure, pauses sending for a backoff period that doubles on every consecutive throttling reply, and lowers the "
+                    + "send rate until emails are accepted again")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .defaultValue("true")
+            .build();
+    public static final PropertyDescriptor MAX_BACKOFF = new PropertyDescriptor.Builder()
+            .name("Max Backoff Period")
+            .description("The longest pause after consecutive throttling replies when Adaptive Backoff is enabled")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 min")
+            .build();
+    public static final AllowableValue METRICS_NONE = new AllowableValue("None", "None",
+            "No metrics are recorded");
+    public static final AllowableValue METRICS_COUNTERS = new AllowableValue("Counters", "Counters",
+            "Emails sent and failed, FlowFiles emailed, body bytes, SMTP reply codes and the time spent in each stage are published as NiFi counters");
+    public static final AllowableValue METRICS_JMX = new AllowableValue("Counters and JMX", "Counters and JMX",
+            "As Counters, and additionally exposes count, mean, p50, p99 and max latency of each stage as attributes of the MBean "
+                    + "com.github.cclient.nifi.email:type=SendEmail,id=<processor id>");
+    public static final PropertyDescriptor OUTBOX_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Outbox Directory")
+            .description("If set, emails are written to a durable spool in this local directory, and the FlowFiles routed to success "
+                    + "as soon as their email is on disk. A background thread sends the spooled emails in order, retrying while the SMTP server "
+                    + "is unavailable, and resumes after a restart. Emails the server rejects permanently are logged and dropped. "
+                    + "Cannot be used with Asynchronous Send.")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor OUTBOX_SEGMENT_SIZE = new PropertyDescriptor.Builder()
+            .name("Outbox Segment Size")
+            .description("The size of the files the outbox is written in. A file is deleted once all of its emails have been sent.")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("16 MB")
+            .build();
+    public static final PropertyDescriptor OUTBOX_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("Outbox Max Size")
+            .description("Once the unsent emails in the outbox take up this much space, FlowFiles are left in the queue until some have been sent")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 GB")
+            .build();
+    public static final PropertyDescriptor OUTBOX_RETRY_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Outbox Retry Interval")
+            .description("How long to wait before sending an email from the outbox again after it could not be sent")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .build();
+    public static final PropertyDescriptor METRICS = new PropertyDescriptor.Builder()
+            .name("Metrics")
+            .description("Records the time spent getting FlowFiles, rendering the body, building the message, connecting to the SMTP server "
+                    + "and in the DATA phase of each email. With None, the send path does not read the clock.")
+            .required(true)
+            .allowableValues(METRICS_NONE, METRICS_COUNTERS, METRICS_JMX)
+            .defaultValue(METRICS_NONE.getValue())
+            .build();
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("FlowFiles that are successfully sent will be routed to this relationship")
@@ -186,25 +671,34 @@ public class SendEmail extends AbstractProcessor {
             .name("failure")
             .description("FlowFiles that fail to send will be routed to this relationship")
             .build();
-    /**
-     * Mapping of the mail properties to the NiFi PropertyDescriptors that will be evaluated at runtime
-     */
-    private static final Map<String, PropertyDescriptor> propertyToContext = new HashMap<>();
-
-    static {
-        propertyToContext.put("mail.smtp.host", SMTP_HOSTNAME);
-        propertyToContext.put("mail.smtp.port", SMTP_PORT);
-        propertyToContext.put("mail.smtp.socketFactory.port", SMTP_PORT);
-        propertyToContext.put("mail.smtp.socketFactory.class", SMTP_SOCKET_FACTORY);
-        propertyToContext.put("mail.smtp.auth", SMTP_AUTH);
-        propertyToContext.put("mail.smtp.starttls.enable", SMTP_TLS);
-        propertyToContext.put("mail.smtp.user", SMTP_USERNAME);
-        propertyToContext.put("mail.smtp.password", SMTP_PASSWORD);
-    }
+    private static final long ASYNC_SHUTDOWN_TIMEOUT_SECONDS = 30L;
+    private static final long OUTBOX_SHUTDOWN_TIMEOUT_SECONDS = 30L;
+    private static final long RENDER_SHUTDOWN_TIMEOUT_SECONDS = 30L;
+    static final String OUTBOX_BACKLOG = "Outbox Backlog";
+    static final String OUTBOX_OLDEST_AGE = "Outbox Oldest Email Age (millis)";
+    static final String OUTBOX_BYTES = "Outbox Bytes";
+    static final String ADAPTIVE_GROUP_SIZE_GAUGE = "Adaptive Group Size";
 
     private List<PropertyDescriptor> properties;
     private Set<Relationship> relationships;
-    private volatile Pattern attributeNamePattern = null;
+    private volatile SendProfile sendProfile = null;
+    private volatile List<String> summaryKeyAttributes = null;
+    private volatile Suppressor suppressor = null;
+    private volatile ClusterDigest clusterDigest = null;
+    private volatile ColumnSelector columnSelector = ColumnSelector.ALL;
+    private volatile BodyTemplate bodyTemplate = null;
+    private volatile ContentExcerpt contentExcerpt = null;
+    private volatile TransportRouter transportRouter = null;
+    private volatile AsyncSender asyncSender = null;
+    private volatile BatchRenderer batchRenderer = null;
+    private volatile SendRateLimiter rateLimiter = null;
+    private volatile SendMetrics metrics = SendMetrics.DISABLED;
+    private volatile MetricsSink metricsSink = MetricsSink.NONE;
+    private volatile GroupSizer groupSizer = null;
+    private volatile Outbox outbox = null;
+    private volatile OutboxSender outboxSender = null;
+    private final Lock binLock = new ReentrantLock();
+    private final Map<String, Bin> bins = new LinkedHashMap<>(16, 0.75f, true);
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
@@ -218,6 +712,19 @@ public class SendEmail extends AbstractProcessor {
         properties.add(SMTP_SOCKET_FACTORY);
         properties.add(HEADER_XMAILER);
         properties.add(ATTRIBUTE_NAME_REGEX);
+        properties.add(INCLUDE_COLUMNS);
+        properties.add(EXCLUDE_COLUMNS);
+        properties.add(COLUMNS);
+        properties.add(RECORD_READER);
+        properties.add(MAX_RECORDS);
+        properties.add(CONTENT_EXCERPT_SIZE);
+        properties.add(CONTENT_EXCERPT_LINES);
+        properties.add(CONTENT_EXCERPT_CHARSET);
+        properties.add(ATTACHMENT_FORMAT);
+        properties.add(ATTACHMENT_COMPRESSION);
+        properties.add(ATTACHMENT_ROW_THRESHOLD);
+        properties.add(BODY_TEMPLATE);
+        properties.add(PLAIN_TEXT_ALTERNATIVE);
         properties.add(CONTENT_TYPE);
         properties.add(FROM);
         properties.add(TO);
@@ -226,6 +733,51 @@ public class SendEmail extends AbstractProcessor {
         properties.add(SUBJECT);
         properties.add(MESSAGE);
         properties.add(GROUP_SIZE);
+        properties.add(ADAPTIVE_GROUP_SIZE);
+        properties.add(MIN_GROUP_SIZE);
+        properties.add(TARGET_EMAIL_INTERVAL);
+        properties.add(CONNECTION_POOL_SIZE);
+        properties.add(CONNECTION_IDLE_TIMEOUT);
+        properties.add(MAX_MESSAGES_PER_CONNECTION);
+        properties.add(HOST_EJECTION_THRESHOLD);
+        properties.add(HOST_EJECTION_COOLDOWN);
+        properties.add(SEND_PARTIAL);
+        properties.add(MIN_SPLIT_SIZE);
+        properties.add(BIN_ENABLED);
+        properties.add(BIN_MAX_BODY_SIZE);
+        properties.add(BIN_MAX_AGE);
+        properties.add(PARTITION_BY);
+        properties.add(MAX_OPEN_PARTITIONS);
+        properties.add(PARTITION_RECIPIENTS_ATTRIBUTE);
+        properties.add(PARTITION_SUBJECT_ATTRIBUTE);
+        properties.add(FAN_OUT_ATTRIBUTE);
+        properties.add(SUMMARIZE);
+        properties.add(SUMMARY_KEY_ATTRIBUTES);
+        properties.add(SUMMARY_TOP_N);
+        properties.add(SUPPRESSION_KEY_ATTRIBUTES);
+        properties.add(SUPPRESSION_WINDOW);
+        properties.add(SUPPRESSED_ROWS);
+        properties.add(SUPPRESSION_CACHE_SIZE);
+        properties.add(SUPPRESSION_CACHE_SERVICE);
+        properties.add(CLUSTER_DIGEST);
+        properties.add(DIGEST_INTERVAL);
+        properties.add(DIGEST_MAX_KEYS);
+        properties.add(BATCHES_PER_TRIGGER);
+        properties.add(TRIGGER_TIME_BUDGET);
+        properties.add(RENDER_THREADS);
+        properties.add(ASYNC_SEND);
+        properties.add(SENDER_THREADS);
+        properties.add(MAX_IN_FLIGHT);
+        properties.add(MAX_EMAILS_PER_INTERVAL);
+        properties.add(MAX_RECIPIENTS_PER_INTERVAL);
+        properties.add(RATE_LIMIT_INTERVAL);
+        properties.add(ADAPTIVE_BACKOFF);
+        properties.add(MAX_BACKOFF);
+        properties.add(OUTBOX_DIRECTORY);
+        properties.add(OUTBOX_SEGMENT_SIZE);
+        properties.add(OUTBOX_MAX_SIZE);
+        properties.add(OUTBOX_RETRY_INTERVAL);
+        properties.add(METRICS);
         this.properties = Collections.unmodifiableList(properties);
 
         final Set<Relationship> relationships = new HashSet<>();
@@ -256,151 +808,995 @@ public class SendEmail extends AbstractProcessor {
             errors.add(new ValidationResult.Builder().subject("To, CC, BCC").valid(false).explanation("Must specify at least one To/CC/BCC address").build());
         }
 
+        final String hosts = context.getProperty(SMTP_HOSTNAME).getValue();
+        if (hosts != null) {
+            try {
+                TransportRouter.parseHosts(hosts, context.getProperty(SMTP_PORT).asInteger());
+            } catch (IllegalArgumentException e) {
+                errors.add(new ValidationResult.Builder().subject(SMTP_HOSTNAME.getDisplayName()).input(hosts).valid(false)
+                        .explanation(e.getMessage()).build());
+            }
+        }
+
+        if (context.getProperty(PLAIN_TEXT_ALTERNATIVE).asBoolean() && context.getProperty(CONTENT_TYPE).getValue().trim().toLowerCase(Locale.ROOT).startsWith("text/plain")) {
+            errors.add(new ValidationResult.Builder().subject(PLAIN_TEXT_ALTERNATIVE.getDisplayName()).valid(false)
+                    .explanation("Content Type is already plain text").build());
+        }
+
+        if (context.getProperty(ADAPTIVE_GROUP_SIZE).asBoolean()) {
+            if (context.getProperty(BIN_ENABLED).asBoolean()) {
+                errors.add(new ValidationResult.Builder().subject(ADAPTIVE_GROUP_SIZE.getDisplayName()).valid(false)
+                        .explanation("Cannot be used together with " + BIN_ENABLED.getDisplayName()).build());
+            }
+            final Integer maxGroupSize = context.getProperty(GROUP_SIZE).asInteger();
+            if (maxGroupSize != null && context.getProperty(MIN_GROUP_SIZE).asInteger() > maxGroupSize) {
+                errors.add(new ValidationResult.Builder().subject(MIN_GROUP_SIZE.getDisplayName()).valid(false)
+                        .explanation("Cannot be larger than " + GROUP_SIZE.getDisplayName()).build());
+            }
+        }
+
+        if (context.getProperty(CLUSTER_DIGEST).asBoolean()) {
+            if (!context.getProperty(SUMMARY_KEY_ATTRIBUTES).isSet()) {
+                errors.add(new ValidationResult.Builder().subject(CLUSTER_DIGEST.getDisplayName()).valid(false)
+                        .explanation("Requires " + SUMMARY_KEY_ATTRIBUTES.getDisplayName()).build());
+            }
+            for (final PropertyDescriptor conflicting : new PropertyDescriptor[]{ASYNC_SEND, BIN_ENABLED, ADAPTIVE_GROUP_SIZE}) {
+                if (context.getProperty(conflicting).asBoolean()) {
+                    errors.add(new ValidationResult.Builder().subject(CLUSTER_DIGEST.getDisplayName()).valid(false)
+                            .explanation("Cannot be used together with " + conflicting.getDisplayName()).build());
+                }
+            }
+            for (final PropertyDescriptor conflicting : new PropertyDescriptor[]{MESSAGE, RECORD_READER, SUPPRESSION_KEY_ATTRIBUTES, OUTBOX_DIRECTORY}) {
+                if (context.getProperty(conflicting).isSet()) {
+                    errors.add(new ValidationResult.Builder().subject(CLUSTER_DIGEST.getDisplayName()).valid(false)
+                            .explanation("Cannot be used together with " + conflicting.getDisplayName()).build());
+                }
+            }
+        }
+
+        if (context.getProperty(BATCHES_PER_TRIGGER).asInteger() > 1) {
+            for (final PropertyDescriptor conflicting : new PropertyDescriptor[]{ASYNC_SEND, BIN_ENABLED, CLUSTER_DIGEST}) {
+                if (context.getProperty(conflicting).asBoolean()) {
+                    errors.add(new ValidationResult.Builder().subject(BATCHES_PER_TRIGGER.getDisplayName()).valid(false)
+                            .explanation("Cannot be more than one together with " + conflicting.getDisplayName()).build());
+                }
+            }
+            for (final PropertyDescriptor conflicting : new PropertyDescriptor[]{RECORD_READER, OUTBOX_DIRECTORY}) {
+                if (context.getProperty(conflicting).isSet()) {
+                    errors.add(new ValidationResult.Builder().subject(BATCHES_PER_TRIGGER.getDisplayName()).valid(false)
+                            .explanation("Cannot be more than one together with " + conflicting.getDisplayName()).build());
+                }
+            }
+        }
+
+        if (context.getProperty(FAN_OUT_ATTRIBUTE).isSet()) {
+            for (final PropertyDescriptor conflicting : new PropertyDescriptor[]{ASYNC_SEND, BIN_ENABLED, CLUSTER_DIGEST}) {
+                if (context.getProperty(conflicting).asBoolean()) {
+                    errors.add(new ValidationResult.Builder().subject(FAN_OUT_ATTRIBUTE.getDisplayName()).valid(false)
+                            .explanation("Cannot be used together with " + conflicting.getDisplayName()).build());
+                }
+            }
+            for (final PropertyDescriptor conflicting : new PropertyDescriptor[]{PARTITION_BY, PARTITION_RECIPIENTS_ATTRIBUTE, OUTBOX_DIRECTORY}) {
+                if (context.getProperty(conflicting).isSet()) {
+                    errors.add(new ValidationResult.Builder().subject(FAN_OUT_ATTRIBUTE.getDisplayName()).valid(false)
+                            .explanation("Cannot be used together with " + conflicting.getDisplayName()).build());
+                }
+            }
+        }
+
+        if (context.getProperty(OUTBOX_DIRECTORY).isSet() && context.getProperty(ASYNC_SEND).asBoolean()) {
+            errors.add(new ValidationResult.Builder().subject(OUTBOX_DIRECTORY.getDisplayName()).valid(false)
+                    .explanation("Cannot be used together with " + ASYNC_SEND.getDisplayName()).build());
+        }
+
+        if (context.getProperty(RECORD_READER).isSet()) {
+            for (final PropertyDescriptor conflicting : new PropertyDescriptor[]{ASYNC_SEND, SUMMARIZE}) {
+                if (context.getProperty(conflicting).asBoolean()) {
+                    errors.add(new ValidationResult.Builder().subject(RECORD_READER.getDisplayName()).valid(false)
+                            .explanation("Cannot be used together with " + conflicting.getDisplayName()).build());
+                }
+            }
+        }
+
+        if (context.getProperty(CONTENT_EXCERPT_LINES).isSet() && !context.getProperty(CONTENT_EXCERPT_SIZE).isSet()) {
+            errors.add(new ValidationResult.Builder().subject(CONTENT_EXCERPT_LINES.getDisplayName()).valid(false)
+                    .explanation("Requires " + CONTENT_EXCERPT_SIZE.getDisplayName()).build());
+        }
+
+        final String template = context.getProperty(BODY_TEMPLATE).getValue();
+        if (template != null) {
+            if (context.getProperty(MESSAGE).isSet()) {
+                errors.add(new ValidationResult.Builder().subject(BODY_TEMPLATE.getDisplayName()).valid(false)
+                        .explanation("Cannot be used together with " + MESSAGE.getDisplayName()).build());
+            }
+            try {
+                BodyTemplate.compile(template);
+            } catch (IllegalArgumentException e) {
+                errors.add(new ValidationResult.Builder().subject(BODY_TEMPLATE.getDisplayName()).input(template).valid(false)
+                        .explanation(e.getMessage()).build());
+            }
+        }
+
         return errors;
     }
 
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
-        final String attributeNameRegex = context.getProperty(ATTRIBUTE_NAME_REGEX).getValue();
-        this.attributeNamePattern = attributeNameRegex == null ? null : Pattern.compile(attributeNameRegex);
+        this.sendProfile = SendProfile.from(context, getLogger());
+        this.columnSelector = new ColumnSelector(context.getProperty(INCLUDE_COLUMNS).getValue(),
+                context.getProperty(EXCLUDE_COLUMNS).getValue(), context.getProperty(COLUMNS).getValue());
+        final String template = context.getProperty(BODY_TEMPLATE).getValue();
+        this.bodyTemplate = template == null ? null : BodyTemplate.compile(template);
+        if (context.getProperty(CONTENT_EXCERPT_SIZE).isSet()) {
+            final Integer maxLines = context.getProperty(CONTENT_EXCERPT_LINES).asInteger();
+            this.contentExcerpt = new ContentExcerpt(context.getProperty(CONTENT_EXCERPT_SIZE).asDataSize(DataUnit.B).intValue(),
+                    maxLines == null ? 0 : maxLines, Charset.forName(context.getProperty(CONTENT_EXCERPT_CHARSET).getValue()));
+        } else {
+            this.contentExcerpt = null;
+        }
+        final String summaryKeys = context.getProperty(SUMMARY_KEY_ATTRIBUTES).getValue();
+        this.summaryKeyAttributes = summaryKeys == null ? null : Collections.unmodifiableList(Arrays.stream(summaryKeys.split(","))
+                .map(String::trim).filter(name -> !name.isEmpty()).collect(Collectors.toList()));
+        final String suppressionKeys = context.getProperty(SUPPRESSION_KEY_ATTRIBUTES).getValue();
+        if (suppressionKeys != null) {
+            final long window = context.getProperty(SUPPRESSION_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS);
+            final DistributedMapCacheClient cacheClient = context.getProperty(SUPPRESSION_CACHE_SERVICE).asControllerService(DistributedMapCacheClient.class);
+            final SuppressionCache cache = cacheClient == null
+                    ? new LocalSuppressionCache(context.getProperty(SUPPRESSION_CACHE_SIZE).asInteger(), window)
+                    : new DistributedSuppressionCache(cacheClient, getIdentifier(), window);
+            this.suppressor = new Suppressor(Collections.unmodifiableList(Arrays.stream(suppressionKeys.split(","))
+                    .map(String::trim).filter(name -> !name.isEmpty()).collect(Collectors.toList())), cache, getLogger());
+        } else {
+            this.suppressor = null;
+        }
+        this.clusterDigest = context.getProperty(CLUSTER_DIGEST).asBoolean() && summaryKeyAttributes != null
+                ? new ClusterDigest(summaryKeyAttributes, context.getProperty(DIGEST_MAX_KEYS).asInteger())
+                : null;
+        final String metricsMode = context.getProperty(METRICS).getValue();
+        final SendMetrics previousMetrics = this.metrics;
+        this.metrics = METRICS_NONE.getValue().equals(metricsMode) ? SendMetrics.DISABLED : new SendMetrics();
+        if (context.getProperty(OUTBOX_DIRECTORY).isSet()) {
+            final String directory = context.getProperty(OUTBOX_DIRECTORY).getValue().trim();
+            try {
+                this.outbox = openOutbox(Paths.get(directory), context.getProperty(OUTBOX_SEGMENT_SIZE).asDataSize(DataUnit.B).longValue());
+            } catch (IOException e) {
+                throw new ProcessException("Failed to open the outbox in " + directory, e);
+            }
+            final Outbox outbox = this.outbox;
+            metrics.gauge(OUTBOX_BACKLOG, "outboxBacklog", outbox::getBacklog, previousMetrics);
+            metrics.gauge(OUTBOX_OLDEST_AGE, "outboxOldestAgeMillis", outbox::getOldestAgeMillis, previousMetrics);
+            metrics.gauge(OUTBOX_BYTES, "outboxBytes", outbox::getBytes, previousMetrics);
+        }
+        if (context.getProperty(ADAPTIVE_GROUP_SIZE).asBoolean()) {
+            final GroupSizer groupSizer = new GroupSizer(context.getProperty(MIN_GROUP_SIZE).asInteger(), context.getProperty(GROUP_SIZE).asInteger(),
+                    context.getProperty(TARGET_EMAIL_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS));
+            metrics.gauge(ADAPTIVE_GROUP_SIZE_GAUGE, "adaptiveGroupSize", groupSizer::getTarget, previousMetrics);
+            this.groupSizer = groupSizer;
+        } else {
+            this.groupSizer = null;
+        }
+        this.metricsSink = METRICS_JMX.getValue().equals(metricsMode) ? new JmxMetricsSink(getLogger()) : MetricsSink.NONE;
+        metricsSink.open(getIdentifier(), metrics);
+        this.transportRouter = new TransportRouter(sendProfile.getSession(),
+                TransportRouter.parseHosts(context.getProperty(SMTP_HOSTNAME).getValue(), context.getProperty(SMTP_PORT).asInteger()),
+                context.getProperty(CONNECTION_POOL_SIZE).asInteger(),
+                context.getProperty(CONNECTION_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(MAX_MESSAGES_PER_CONNECTION).asInteger(),
+                context.getProperty(HOST_EJECTION_THRESHOLD).asInteger(),
+                context.getProperty(HOST_EJECTION_COOLDOWN).asTimePeriod(TimeUnit.MILLISECONDS),
+                metrics, getLogger());
+        this.rateLimiter = new SendRateLimiter(
+                context.getProperty(MAX_EMAILS_PER_INTERVAL).asInteger(),
+                context.getProperty(MAX_RECIPIENTS_PER_INTERVAL).asInteger(),
+                context.getProperty(RATE_LIMIT_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS),
+                context.getProperty(MAX_BACKOFF).asTimePeriod(TimeUnit.NANOSECONDS));
+        if (context.getProperty(ASYNC_SEND).asBoolean()) {
+            this.asyncSender = new AsyncSender(context.getProperty(SENDER_THREADS).asInteger(), context.getProperty(MAX_IN_FLIGHT).asInteger());
+        }
+        if (context.getProperty(BATCHES_PER_TRIGGER).asInteger() > 1) {
+            this.batchRenderer = new BatchRenderer(context.getProperty(RENDER_THREADS).asInteger());
+        }
+        if (outbox != null) {
+            this.outboxSender = new OutboxSender(outbox, sendProfile.getSession(), this::send, rateLimiter, metrics,
+                    context.getProperty(OUTBOX_RETRY_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS), getLogger());
+            outboxSender.start();
+        }
     }
 
-    private void setMessageHeader(final String header, final String value, final Message message) throws MessagingException {
-        final ComponentLog logger = getLogger();
+    @OnStopped
+    public void onStopped(final ProcessContext context) {
+        if (asyncSender != null) {
+            try {
+                routeCompleted(context, asyncSender.shutdown(ASYNC_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS), null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            asyncSender = null;
+        }
+        if (outboxSender != null) {
+            try {
+                outboxSender.stop(OUTBOX_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            outboxSender = null;
+        }
+        if (batchRenderer != null) {
+            try {
+                batchRenderer.shutdown(RENDER_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batchRenderer = null;
+        }
+        binLock.lock();
         try {
-            message.setHeader(header, MimeUtility.encodeText(value));
-        } catch (UnsupportedEncodingException e) {
-            logger.warn("Unable to add header {} with value {} due to encoding exception", new Object[]{header, value});
+            for (final Bin bin : bins.values()) {
+                bin.getSession().rollback();
+            }
+            bins.clear();
+        } finally {
+            binLock.unlock();
+        }
+        if (transportRouter != null) {
+            transportRouter.close();
+            transportRouter = null;
+        }
+        if (outbox != null) {
+            try {
+                outbox.close();
+            } catch (IOException e) {
+                getLogger().warn("Failed to close the outbox", e);
+            }
+            outbox = null;
         }
+        metricsSink.close();
+        metricsSink = MetricsSink.NONE;
+        sendProfile = null;
     }
 
     @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        Integer groupSize = context.getProperty(GROUP_SIZE).asInteger();
-        List<FlowFile> flowFiles = session.get(groupSize);
-        if (flowFiles == null || flowFiles.size() == 0) {
+    public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) {
+        final AsyncSender async = this.asyncSender;
+        if (async != null) {
+            routeCompleted(context, async.drainCompleted(), async);
+            if (!async.hasCapacity()) {
+                context.yield();
+                return;
+            }
+        }
+
+        if (context.getProperty(BIN_ENABLED).asBoolean()) {
+            onTriggerBinned(context, sessionFactory);
+            return;
+        }
+        final ClusterDigest digest = this.clusterDigest;
+        if (digest != null) {
+            onTriggerDigest(context, sessionFactory, digest);
+            return;
+        }
+        final BatchRenderer renderer = this.batchRenderer;
+        if (renderer != null) {
+            onTriggerPipelined(context, sessionFactory, renderer);
+            return;
+        }
+
+        final ProcessSession session = sessionFactory.createSession();
+        final List<List<FlowFile>> groups = new ArrayList<>();
+        try {
+            final GroupSizer sizer = this.groupSizer;
+            final int groupSize = sizer == null ? context.getProperty(GROUP_SIZE).asInteger() : sizer.next(session.getQueueSize().getObjectCount());
+            final long getStart = metrics.start();
+            List<FlowFile> flowFiles = groupSize == 0 ? Collections.emptyList() : session.get(groupSize);
+            metrics.record(SendMetrics.Stage.GET, getStart);
+            if (sizer != null && flowFiles != null) {
+                sizer.taken(flowFiles.size());
+            }
+            if (flowFiles == null || flowFiles.size() == 0) {
+                context.yield();
+            } else {
+                Partitioner.partition(flowFiles, partitionKey(context), maxOpenPartitions(context),
+                        (key, partition) -> groups.add(partition));
+            }
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        }
+        dispatch(context, session, groups);
+    }
+
+    /**
+     * Pulls up to Batches Per Trigger batches, each into a session of its own, within the Trigger Time Budget. The
+     * messages of each batch are handed to the render threads as soon as it is pulled, and the emails of the previous
+     * batch are sent meanwhile, so that rendering overlaps the SMTP transfers. Each batch's session is committed right
+     * after its last email, so a failure returns to the queue only the batches whose emails have not all been sent and
+     * routed, at most the one being sent and the one being rendered.
+     */
+    private void onTriggerPipelined(final ProcessContext context, final ProcessSessionFactory sessionFactory, final BatchRenderer renderer) {
+        final int maxBatches = context.getProperty(BATCHES_PER_TRIGGER).asInteger();
+        final Long budgetNanos = context.getProperty(TRIGGER_TIME_BUDGET).asTimePeriod(TimeUnit.NANOSECONDS);
+        final long triggerStart = System.nanoTime();
+        final List<ProcessSession> uncommitted = new ArrayList<>(2);
+        ProcessSession previous = null;
+        List<BatchRenderer.Rendering> previousRenderings = Collections.emptyList();
+        final TransportRouter.Pin pin = pinTransport(context);
+        try {
+            boolean pulled = false;
+            for (int batch = 0; batch < maxBatches; batch++) {
+                if (batch > 0 && budgetNanos != null && System.nanoTime() - triggerStart >= budgetNanos) {
+                    break;
+                }
+                final ProcessSession session = sessionFactory.createSession();
+                uncommitted.add(session);
+                final GroupSizer sizer = this.groupSizer;
+                final int groupSize = sizer == null ? context.getProperty(GROUP_SIZE).asInteger() : sizer.next(session.getQueueSize().getObjectCount());
+                final long getStart = metrics.start();
+                final List<FlowFile> flowFiles = groupSize == 0 ? Collections.emptyList() : session.get(groupSize);
+                metrics.record(SendMetrics.Stage.GET, getStart);
+                if (sizer != null) {
+                    sizer.taken(flowFiles.size());
+                }
+                if (flowFiles.isEmpty()) {
+                    metrics.publish(session);
+                    session.commit();
+                    uncommitted.remove(session);
+                    break;
+                }
+                pulled = true;
+                final List<BatchRenderer.Rendering> renderings = new ArrayList<>();
+                Partitioner.partition(flowFiles, partitionKey(context), maxOpenPartitions(context), (key, group) -> {
+                    try {
+                        final PrerenderedMessage message = buildMessage(context, session, group);
+                        if (message == null) {
+                            onSuppressed(session, group);
+                        } else {
+                            renderings.add(renderer.submit(group, message));
+                        }
+                    } catch (final ProcessException | MessagingException e) {
+                        onSendFailed(context, session, group, e);
+                    }
+                });
+                if (previous != null) {
+                    sendBatch(context, previous, previousRenderings);
+                    uncommitted.remove(previous);
+                }
+                previous = session;
+                previousRenderings = renderings;
+            }
+            if (previous != null) {
+                sendBatch(context, previous, previousRenderings);
+                uncommitted.remove(previous);
+            }
+            if (!pulled) {
+                context.yield();
+            }
+        } catch (final Throwable t) {
+            for (final ProcessSession session : uncommitted) {
+                session.rollback(true);
+            }
+            throw t;
+        } finally {
+            if (pin != null) {
+                pin.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the rendered emails of one batch, in order, and commits the batch's session.
+     */
+    private void sendBatch(final ProcessContext context, final ProcessSession session, final List<BatchRenderer.Rendering> renderings) {
+        for (final BatchRenderer.Rendering rendering : renderings) {
+            sendRendered(context, session, rendering);
+        }
+        metrics.publish(session);
+        session.commit();
+    }
+
+    /**
+     * Waits for the message of a group to be rendered, then sends it and routes the FlowFiles.
+     */
+    private void sendRendered(final ProcessContext context, final ProcessSession session, final BatchRenderer.Rendering rendering) {
+        final List<FlowFile> flowFiles = rendering.getFlowFiles();
+        final Throwable failure = rendering.await();
+        if (failure != null) {
+            onSendFailed(context, session, flowFiles, failure);
             return;
         }
+        try {
+            if (acquireSendPermit(context, session, flowFiles, rendering.getMessage())) {
+                send(rendering.getMessage());
+                onSent(session, flowFiles);
+            }
+        } catch (final ProcessException | MessagingException e) {
+            onSendFailed(context, session, flowFiles, e);
+        }
+    }
 
-        final Properties properties = this.getMailPropertiesFromFlowFile(context);
+    /**
+     * Adds whatever is queued to the open bins, one bin per partition, holding the FlowFiles in each bin's uncommitted
+     * session, and sends every bin that is full or old enough. Runs on every trigger, queued FlowFiles or not, so that
+     * a bin never waits longer than Bin Max Age.
+     */
+    private void onTriggerBinned(final ProcessContext context, final ProcessSessionFactory sessionFactory) {
+        final int maxEntries = context.getProperty(GROUP_SIZE).asInteger();
+        final long maxBodyBytes = context.getProperty(BIN_MAX_BODY_SIZE).asDataSize(DataUnit.B).longValue();
+        final long maxAgeMillis = context.getProperty(BIN_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS);
+        final int maxOpen = context.getProperty(MAX_OPEN_PARTITIONS).asInteger();
+        final ContentExcerpt excerpt = this.contentExcerpt;
+        final long excerptBytes = excerpt == null ? 0 : excerpt.getMaxBytes();
 
-        final Session mailSession = this.createMailSession(properties);
+        final List<Bin> ready = new ArrayList<>();
+        final boolean pulled;
+        binLock.lock();
+        try {
+            final ProcessSession pullSession = sessionFactory.createSession();
+            final long getStart = metrics.start();
+            final List<FlowFile> flowFiles = pullSession.get(maxEntries);
+            metrics.record(SendMetrics.Stage.GET, getStart);
+            pulled = !flowFiles.isEmpty();
+            try {
+                Partitioner.partition(flowFiles, partitionKey(context), Integer.MAX_VALUE, (key, partition) -> {
+                    int offset = 0;
+                    while (offset < partition.size()) {
+                        Bin bin = bins.get(key);
+                        if (bin == null) {
+                            if (bins.size() >= maxOpen) {
+                                final Iterator<Bin> eldest = bins.values().iterator();
+                                ready.add(eldest.next());
+                                eldest.remove();
+                            }
+                            bin = new Bin(sessionFactory.createSession());
+                            bins.put(key, bin);
+                        }
+                        final List<FlowFile> chunk = partition.subList(offset, Math.min(partition.size(), offset + maxEntries - bin.size()));
+                        pullSession.migrate(bin.getSession(), chunk);
+                        for (final FlowFile flowFile : chunk) {
+                            bin.add(flowFile, FlowFileTable.estimateRowBytes(flowFile, columnSelector) + excerptBytes);
+                        }
+                        offset += chunk.size();
+                        if (bin.isReady(maxEntries, maxBodyBytes, maxAgeMillis)) {
+                            ready.add(bin);
+                            bins.remove(key);
+                        }
+                    }
+                });
+                pullSession.commit();
+            } catch (final Throwable t) {
+                pullSession.rollback(true);
+                throw t;
+            }
 
-        final Message message = new MimeMessage(mailSession);
-        final ComponentLog logger = getLogger();
+            for (final Iterator<Bin> iterator = bins.values().iterator(); iterator.hasNext(); ) {
+                final Bin bin = iterator.next();
+                if (bin.isReady(maxEntries, maxBodyBytes, maxAgeMillis)) {
+                    ready.add(bin);
+                    iterator.remove();
+                }
+            }
+        } finally {
+            binLock.unlock();
+        }
+
+        for (final Bin bin : ready) {
+            dispatch(context, bin.getSession(), Collections.singletonList(bin.getFlowFiles()));
+        }
+        if (ready.isEmpty() && !pulled) {
+            context.yield();
+        }
+    }
 
+    /**
+     * Folds whatever is queued into the cluster digest and routes it to success; on the primary node, or on a standalone
+     * instance, then sends the digest if it is due. The state is updated before the session is committed, so a failed
+     * commit can count FlowFiles twice but never loses them.
+     */
+    private void onTriggerDigest(final ProcessContext context, final ProcessSessionFactory sessionFactory, final ClusterDigest digest) {
+        final ProcessSession session = sessionFactory.createSession();
+        final List<FlowFile> flowFiles;
         try {
-            message.addFrom(toInetAddresses(context, FROM));
-            message.setRecipients(RecipientType.TO, toInetAddresses(context, TO));
-            message.setRecipients(RecipientType.CC, toInetAddresses(context, CC));
-            message.setRecipients(RecipientType.BCC, toInetAddresses(context, BCC));
-
-            this.setMessageHeader("X-Mailer", context.getProperty(HEADER_XMAILER).getValue(), message);
-            message.setSubject(context.getProperty(SUBJECT).getValue());
-            String messageText;
-            if (context.getProperty(MESSAGE) != null && context.getProperty(MESSAGE).getValue() != null) {
-                messageText = context.getProperty(MESSAGE).getValue();
-            } else {
-                messageText = getMessage(flowFiles);
+            final long getStart = metrics.start();
+            flowFiles = session.get(context.getProperty(GROUP_SIZE).asInteger());
+            metrics.record(SendMetrics.Stage.GET, getStart);
+            if (!flowFiles.isEmpty()) {
+                if (!digest.add(context.getStateManager(), flowFiles)) {
+                    getLogger().debug("Cluster state kept changing while adding {} to the digest; returning them to the queue", new Object[]{flowFiles});
+                    session.rollback();
+                    context.yield();
+                    return;
+                }
+                session.transfer(flowFiles, REL_SUCCESS);
             }
+        } catch (final IOException e) {
+            getLogger().error("Failed to add FlowFiles to the cluster digest: {}; returning them to the queue", new Object[]{e.getMessage()}, e);
+            session.rollback();
+            context.yield();
+            return;
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        }
 
-            String contentType = context.getProperty(CONTENT_TYPE).getValue();
-            message.setContent(messageText, contentType);
-            message.setSentDate(new Date());
+        final NodeTypeProvider nodeType = getNodeTypeProvider();
+        final boolean sent = (!nodeType.isClustered() || nodeType.isPrimary()) && sendDigest(context, digest);
+        metrics.publish(session);
+        session.commit();
+        if (flowFiles.isEmpty() && !sent) {
+            context.yield();
+        }
+    }
 
+    /**
+     * Takes the digest out of the cluster state, if it is due, and sends it; puts it back if it cannot be sent.
+     *
+     * @return true if a digest was sent
+     */
+    private boolean sendDigest(final ProcessContext context, final ClusterDigest digest) {
+        final ClusterDigest.Snapshot snapshot;
+        try {
+            snapshot = digest.take(context.getStateManager(), System.currentTimeMillis(), context.getProperty(DIGEST_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
+        } catch (final IOException e) {
+            getLogger().error("Failed to read the cluster digest: {}", new Object[]{e.getMessage()}, e);
+            return false;
+        }
+        if (snapshot == null) {
+            return false;
+        }
+        try {
+            final MimeMessage message = buildDigestMessage(context, snapshot);
+            final Address[] recipients = message.getAllRecipients();
+            if (!rateLimiter.tryAcquire(recipients == null ? 0 : recipients.length)) {
+                getLogger().debug("Send rate limit reached; keeping the digest of {} FlowFiles for later", new Object[]{snapshot.getFlowFileCount()});
+                restoreDigest(context, digest, snapshot);
+                return false;
+            }
             send(message);
-            session.transfer(flowFiles, REL_SUCCESS);
-            logger.info("Sent email as a result of receiving {}", new Object[]{flowFiles});
+            rateLimiter.onSuccess();
+            metrics.emailSent((int) Math.min(Integer.MAX_VALUE, snapshot.getFlowFileCount()));
+            getLogger().info("Sent cluster digest of {} FlowFiles", new Object[]{snapshot.getFlowFileCount()});
+            return true;
         } catch (final ProcessException | MessagingException e) {
+            metrics.emailFailed();
+            getLogger().error("Failed to send cluster digest of {} FlowFiles: {}; keeping it for the next attempt",
+                    new Object[]{snapshot.getFlowFileCount(), e.getMessage()}, e);
+            restoreDigest(context, digest, snapshot);
             context.yield();
-            logger.error("Failed to send email for {}: {}; routing to failure", new Object[]{flowFiles, e.getMessage()}, e);
-            session.transfer(flowFiles, REL_FAILURE);
+            return false;
         }
     }
 
-    private String getMessage(final List<FlowFile> flowFiles) {
-        String messageText = Util.buildEmailHtmlBodyByAttr(flowFiles);
-        return messageText;
+    private void restoreDigest(final ProcessContext context, final ClusterDigest digest, final ClusterDigest.Snapshot snapshot) {
+        try {
+            digest.restore(context.getStateManager(), snapshot);
+        } catch (final IOException e) {
+            getLogger().error("Failed to put an unsent digest of {} FlowFiles back into the cluster state; it is lost",
+                    new Object[]{snapshot.getFlowFileCount()}, e);
+        }
+    }
+
+    private Function<FlowFile, String> partitionKey(final ProcessContext context) {
+        final String fanOutAttribute = context.getProperty(FAN_OUT_ATTRIBUTE).getValue();
+        if (fanOutAttribute != null) {
+            return flowFile -> {
+                final String recipients = flowFile.getAttribute(fanOutAttribute);
+                return recipients == null ? "" : recipients.trim();
+            };
+        }
+        if (!context.getProperty(PARTITION_BY).isSet()) {
+            return flowFile -> "";
+        }
+        return flowFile -> {
+            final String key = context.getProperty(PARTITION_BY).evaluateAttributeExpressions(flowFile).getValue();
+            return key == null ? "" : key;
+        };
     }
 
     /**
-     * Based on the input properties, determine whether an authenticate or unauthenticated session should be used. If authenticated, creates a Password Authenticator for use in sending the email.
+     * @return Max Open Partitions, or no limit when fanning out, where every recipient gets one email per trigger
+     */
+    private int maxOpenPartitions(final ProcessContext context) {
+        return context.getProperty(FAN_OUT_ATTRIBUTE).isSet() ? Integer.MAX_VALUE : context.getProperty(MAX_OPEN_PARTITIONS).asInteger();
+    }
+
+    /**
+     * When fanning out, pins the emails the calling thread sends to one SMTP connection until the pin is closed.
      *
-     * @param properties mail properties
-     * @return session
+     * @return the pin, or {@code null} if emails are not pinned
+     */
+    private TransportRouter.Pin pinTransport(final ProcessContext context) {
+        final TransportRouter router = this.transportRouter;
+        return router == null || !context.getProperty(FAN_OUT_ATTRIBUTE).isSet() ? null : router.pin();
+    }
+
+    /**
+     * Sends one email per group and commits the session, or, with Asynchronous Send, hands the emails to the sender
+     * threads and holds the session until they have been sent.
+     */
+    private void dispatch(final ProcessContext context, final ProcessSession session, final List<List<FlowFile>> groups) {
+        final AsyncSender async = this.asyncSender;
+        try {
+            if (outbox != null) {
+                spool(context, session, groups);
+                metrics.publish(session);
+                session.commit();
+                return;
+            }
+            if (async == null) {
+                final TransportRouter.Pin pin = pinTransport(context);
+                try {
+                    for (final List<FlowFile> group : groups) {
+                        sendGroup(context, session, group);
+                    }
+                } finally {
+                    if (pin != null) {
+                        pin.close();
+                    }
+                }
+                metrics.publish(session);
+                session.commit();
+                return;
+            }
+
+            final List<AsyncSender.PendingEmail> emails = prepareAsync(context, session, groups);
+            if (emails.isEmpty()) {
+                metrics.publish(session);
+                session.commit();
+            } else {
+                async.submit(session, emails, this::send);
+            }
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        }
+    }
+
+    /**
+     * Builds one email per group for the sender threads, routing the groups whose email cannot be built or sent now.
+     */
+    private List<AsyncSender.PendingEmail> prepareAsync(final ProcessContext context, final ProcessSession session, final List<List<FlowFile>> groups) {
+        final List<AsyncSender.PendingEmail> emails = new ArrayList<>(groups.size());
+        for (final List<FlowFile> group : groups) {
+            try {
+                final MimeMessage message = buildMessage(context, session, group);
+                if (message == null) {
+                    onSuppressed(session, group);
+                } else if (acquireSendPermit(context, session, group, message)) {
+                    emails.add(new AsyncSender.PendingEmail(group, message));
+                }
+            } catch (final ProcessException | MessagingException e) {
+                onSendFailed(context, session, group, e);
+            }
+        }
+        return emails;
+    }
+
+    /**
+     * Writes one email per group to the outbox and, once they are on disk, routes the FlowFiles to success. Groups are
+     * left in the queue while the outbox is full. If the emails cannot be synced they are taken back out of the outbox
+     * before their FlowFiles are routed to failure, so that a retried FlowFile is not emailed twice.
+     */
+    private void spool(final ProcessContext context, final ProcessSession session, final List<List<FlowFile>> groups) {
+        final Outbox outbox = this.outbox;
+        final long maxBytes = context.getProperty(OUTBOX_MAX_SIZE).asDataSize(DataUnit.B).longValue();
+        final List<List<FlowFile>> spooled = new ArrayList<>(groups.size());
+        final Outbox.Mark mark = outbox.mark();
+        long sequence = 0;
+        for (final List<FlowFile> group : groups) {
+            if (!outbox.isAppendable()) {
+                getLogger().error("The outbox takes no more emails after a failed sync; returning {} to the queue until the processor is restarted",
+                        new Object[]{group});
+                session.transfer(group);
+                context.yield();
+                continue;
+            }
+            if (outbox.getBytes() >= maxBytes) {
+                getLogger().debug("Outbox holds {} unsent emails and is full; returning {} to the queue", new Object[]{outbox.getBacklog(), group});
+                session.transfer(group);
+                context.yield();
+                continue;
+            }
+            try {
+                final MimeMessage message = buildMessage(context, session, group);
+                if (message == null) {
+                    onSuppressed(session, group);
+                    continue;
+                }
+                sequence = outbox.append(mark, message, group.size());
+                spooled.add(group);
+            } catch (final ProcessException | MessagingException | IOException e) {
+                metrics.emailFailed();
+                getLogger().error("Failed to write the email for {} to the outbox: {}; routing to failure", new Object[]{group, e.getMessage()}, e);
+                session.transfer(group, REL_FAILURE);
+            }
+        }
+        if (spooled.isEmpty()) {
+            return;
+        }
+        try {
+            outbox.sync(mark, sequence);
+        } catch (final IOException e) {
+            getLogger().error("Failed to sync the outbox: {}; routing {} to failure", new Object[]{e.getMessage(), spooled}, e);
+            discardSpooled(outbox, mark);
+            for (final List<FlowFile> group : spooled) {
+                session.transfer(group, REL_FAILURE);
+            }
+            return;
+        }
+        final Suppressor suppressor = this.suppressor;
+        for (final List<FlowFile> group : spooled) {
+            if (suppressor != null) {
+                suppressor.emailed(group);
+            }
+            session.transfer(group, REL_SUCCESS);
+        }
+        getLogger().info("Wrote {} emails to the outbox as a result of receiving {}", new Object[]{spooled.size(), spooled});
+    }
+
+    /**
+     * Takes the emails appended since the mark back out of the outbox. If that is no longer possible, they would be sent
+     * while their FlowFiles are routed to failure, so the outbox takes no more emails until the processor is restarted.
      */
-    private Session createMailSession(final Properties properties) {
-        String authValue = properties.getProperty("mail.smtp.auth");
-        Boolean auth = Boolean.valueOf(authValue);
-        /*
-         * Conditionally create a password authenticator if the 'auth' parameter is set.
-         */
-        final Session mailSession = auth ? Session.getInstance(properties, new Authenticator() {
-            @Override
-            public PasswordAuthentication getPasswordAuthentication() {
-                String username = properties.getProperty("mail.smtp.user"), password = properties.getProperty("mail.smtp.password");
-                return new PasswordAuthentication(username, password);
-            }
-        }) : Session.getInstance(properties); // without auth
-        return mailSession;
+    private void discardSpooled(final Outbox outbox, final Outbox.Mark mark) {
+        try {
+            if (outbox.discard(mark)) {
+                return;
+            }
+            getLogger().error("Unsynced emails could not be taken back out of the outbox; it takes no more emails until the processor is restarted");
+        } catch (final IOException e) {
+            getLogger().error("Failed to take unsynced emails back out of the outbox; it takes no more emails until the processor is restarted", e);
+        }
+        outbox.closeForAppends();
     }
 
     /**
-     * Uses the mapping of javax.mail properties to NiFi PropertyDescriptors to build the required Properties object to be used for sending this email
+     * Routes the FlowFiles of asynchronously sent batches and commits their sessions. The halves of an email rejected as
+     * too large are handed back to the sender threads in a new batch on the same session, which is committed once they
+     * have been sent; while stopping, they are returned to the queue instead.
      *
-     * @param context context
-     * @return mail properties
+     * @param async the sender to hand the halves to, or {@code null} while stopping
      */
-    private Properties getMailPropertiesFromFlowFile(final ProcessContext context) {
-        final Properties properties = new Properties();
-        final ComponentLog logger = this.getLogger();
-        for (Entry<String, PropertyDescriptor> entry : propertyToContext.entrySet()) {
-            String value = context.getProperty(entry.getValue()).getValue();
-            String property = entry.getKey();
-            logger.debug("Evaluated Mail Property: {} with Value: {}", new Object[]{property, value});
-            // Nullable values are not allowed, so filter out
-            if (null != value) {
-                properties.setProperty(property, value);
+    private void routeCompleted(final ProcessContext context, final List<AsyncSender.PendingBatch> batches, final AsyncSender async) {
+        for (final AsyncSender.PendingBatch batch : batches) {
+            final ProcessSession session = batch.getSession();
+            try {
+                final List<List<FlowFile>> halves = new ArrayList<>();
+                for (final AsyncSender.PendingEmail email : batch.getEmails()) {
+                    final Throwable failure = email.getFailure();
+                    if (failure == null) {
+                        onSent(session, email.getFlowFiles());
+                    } else {
+                        halves.addAll(routeFailed(context, session, email.getFlowFiles(), failure));
+                    }
+                }
+                if (async == null) {
+                    for (final List<FlowFile> half : halves) {
+                        session.transfer(half);
+                    }
+                } else if (!halves.isEmpty()) {
+                    final List<AsyncSender.PendingEmail> emails = prepareAsync(context, session, halves);
+                    if (!emails.isEmpty()) {
+                        async.submit(session, emails, this::send);
+                        continue;
+                    }
+                }
+                metrics.publish(session);
+                session.commit();
+            } catch (final Throwable t) {
+                session.rollback(true);
+                throw t;
             }
         }
-        return properties;
     }
 
     /**
-     * @param context            the current context
-     * @param propertyDescriptor the property to evaluate
-     * @return an InternetAddress[] parsed from the supplied property
-     * @throws AddressException if the property cannot be parsed to a valid InternetAddress[]
+     * Sends one email for the FlowFiles and routes all of them to success or failure.
      */
-    private InternetAddress[] toInetAddresses(final ProcessContext context, PropertyDescriptor propertyDescriptor) throws AddressException {
-        InternetAddress[] parse;
-        String value = context.getProperty(propertyDescriptor).getValue();
-        if (value == null || value.isEmpty()) {
-            if (propertyDescriptor.isRequired()) {
-                final String exceptionMsg = "Required property '" + propertyDescriptor.getDisplayName() + "' evaluates to an empty string.";
-                throw new AddressException(exceptionMsg);
-            } else {
-                parse = new InternetAddress[0];
+    private void sendGroup(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles) {
+        try {
+            final MimeMessage message = buildMessage(context, session, flowFiles);
+            if (message == null) {
+                onSuppressed(session, flowFiles);
+            } else if (acquireSendPermit(context, session, flowFiles, message)) {
+                send(message);
+                onSent(session, flowFiles);
+            }
+        } catch (final ProcessException | MessagingException e) {
+            onSendFailed(context, session, flowFiles, e);
+        }
+    }
+
+    /**
+     * @return the message, or {@code null} if every FlowFile is suppressed and there is nothing to send
+     */
+    private PrerenderedMessage buildMessage(final ProcessContext context, final ProcessSession session, final List<FlowFile> group) throws MessagingException {
+        final SendProfile profile = this.sendProfile;
+        final SendMetrics metrics = this.metrics;
+        final Suppressor suppressor = this.suppressor;
+        final List<FlowFile> flowFiles = suppressor == null ? group : suppressor.unsuppressed(group);
+        final int suppressed = group.size() - flowFiles.size();
+        if (suppressed > 0) {
+            metrics.suppressed(suppressed);
+            if (flowFiles.isEmpty()) {
+                return null;
+            }
+        }
+        final long start = metrics.start();
+        final PrerenderedMessage message = profile.newMessage(flowFiles.get(0));
+        if (profile.getMessage() != null) {
+            message.setContent(profile.getMessage(), profile.getContentType());
+            if (metrics.isEnabled()) {
+                metrics.bodyWritten(profile.getMessage().getBytes(StandardCharsets.UTF_8).length);
             }
         } else {
-            try {
-                parse = InternetAddress.parse(value);
-            } catch (AddressException e) {
-                final String exceptionMsg = "Unable to parse a valid address for property '" + propertyDescriptor.getDisplayName() + "' with value '" + value + "'";
-                throw new AddressException(exceptionMsg);
+            EmailTable table = buildTable(context, session, flowFiles);
+            if (suppressed > 0 && SUPPRESSED_COUNT.getValue().equals(context.getProperty(SUPPRESSED_ROWS).getValue())) {
+                table = EmailTable.withNote(table, "Still occurring: " + suppressed + " more FlowFile(s) already emailed within the last "
+                        + context.getProperty(SUPPRESSION_WINDOW).getValue());
+            }
+            setTableBody(context, message, table, flowFiles.size(), metrics);
+        }
+        message.setSentDate(new Date());
+        metrics.record(SendMetrics.Stage.MIME_BUILD, start);
+        return message;
+    }
+
+    private MimeMessage buildDigestMessage(final ProcessContext context, final ClusterDigest.Snapshot digest) throws MessagingException {
+        final SendMetrics metrics = this.metrics;
+        final long start = metrics.start();
+        final MimeMessage message = sendProfile.newMessage();
+        setTableBody(context, message, digest.toTable(), digest.getFlowFileCount(), metrics);
+        message.setSentDate(new Date());
+        metrics.record(SendMetrics.Stage.MIME_BUILD, start);
+        return message;
+    }
+
+    private void setTableBody(final ProcessContext context, final MimeMessage message, final EmailTable table, final long flowFileCount,
+                              final SendMetrics metrics) throws MessagingException {
+        if (!ATTACHMENT_NONE.getValue().equals(context.getProperty(ATTACHMENT_FORMAT).getValue())
+                && table.size() > context.getProperty(ATTACHMENT_ROW_THRESHOLD).asInteger()) {
+            attachTable(context, message, table, flowFileCount, metrics);
+        } else {
+            final BodyTemplate template = this.bodyTemplate;
+            final TableFormat format = template == null ? HtmlTableFormat.INSTANCE : template.newFormat();
+            if (context.getProperty(PLAIN_TEXT_ALTERNATIVE).asBoolean()) {
+                Util.setAlternativeTableContent(message, table, format, sendProfile.getContentType(), metrics);
+            } else {
+                Util.setTableContent(message, table, format, sendProfile.getContentType(), metrics);
             }
         }
-        return parse;
+    }
+
+    private void attachTable(final ProcessContext context, final MimeMessage message, final EmailTable table, final long flowFileCount,
+                             final SendMetrics metrics) throws MessagingException {
+        final boolean csv = ATTACHMENT_CSV.getValue().equals(context.getProperty(ATTACHMENT_FORMAT).getValue());
+        final TableFormat format = csv ? CsvTableFormat.INSTANCE : new NdjsonTableFormat();
+        final String fileName = csv ? "flowfiles.csv" : "flowfiles.ndjson";
+        final String mediaType = csv ? "text/csv; charset=UTF-8" : "application/x-ndjson; charset=UTF-8";
+        final TableCompression compression = TableCompression.valueOf(context.getProperty(ATTACHMENT_COMPRESSION).getValue().toUpperCase(Locale.ROOT));
+        final String attachmentName = compression.getFileName(fileName);
+
+        final String summary = flowFileCount + " FlowFiles, " + table.size() + " rows of " + table.getColumns().size()
+                + " columns. The full table is attached as " + attachmentName + ".";
+        Util.setTableAttachment(message, summary, sendProfile.getContentType(),
+                new TableDataSource(table, format, compression.getContentType(mediaType), attachmentName, metrics, compression, fileName));
     }
 
     /**
-     * Wrapper for static method {@link Transport#send(Message)} to add testability of this class.
+     * Takes the rate limit permits for the message, or returns the FlowFiles to the queue if they are not available.
+     */
+    private boolean acquireSendPermit(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles,
+                                      final MimeMessage message) throws MessagingException {
+        final Address[] recipients = message.getAllRecipients();
+        if (rateLimiter.tryAcquire(recipients == null ? 0 : recipients.length)) {
+            return true;
+        }
+        getLogger().debug("Send rate limit reached; returning {} to the queue", new Object[]{flowFiles});
+        session.transfer(flowFiles);
+        context.yield();
+        return false;
+    }
+
+    private void onSent(final ProcessSession session, final List<FlowFile> flowFiles) {
+        final Suppressor suppressor = this.suppressor;
+        if (suppressor != null) {
+            suppressor.emailed(flowFiles);
+        }
+        rateLimiter.onSuccess();
+        metrics.emailSent(flowFiles.size());
+        session.transfer(flowFiles, REL_SUCCESS);
+        getLogger().info("Sent email as a result of receiving {}", new Object[]{flowFiles});
+    }
+
+    private void onSuppressed(final ProcessSession session, final List<FlowFile> flowFiles) {
+        session.transfer(flowFiles, REL_SUCCESS);
+        getLogger().debug("Not sending an email for {}; all of them have already been emailed within the Suppression Window", new Object[]{flowFiles});
+    }
+
+    /**
+     * Routes the FlowFiles of an email that failed. An email delivered to some of its recipients counts as sent, and an
+     * email rejected as too large is split in half and each half sent again, synchronously, on the calling thread.
+     */
+    private void onSendFailed(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles, final Throwable e) {
+        for (final List<FlowFile> half : routeFailed(context, session, flowFiles, e)) {
+            sendGroup(context, session, half);
+        }
+    }
+
+    /**
+     * Routes the FlowFiles of an email that failed, except those of an email rejected as too large, which is split in
+     * half for the caller to send each half again.
+     *
+     * @return the two halves to send again, or an empty list if the FlowFiles have been routed
+     */
+    private List<List<FlowFile>> routeFailed(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles,
+                                             final Throwable e) {
+        final Address[] sent = SmtpReplies.validSentAddresses(e);
+        if (sent.length > 0) {
+            final Suppressor suppressor = this.suppressor;
+            if (suppressor != null) {
+                suppressor.emailed(flowFiles);
+            }
+            rateLimiter.onSuccess();
+            metrics.emailSent(flowFiles.size());
+            session.transfer(flowFiles, REL_SUCCESS);
+            getLogger().warn("Sent email as a result of receiving {} to {} only; the SMTP server rejected {}",
+                    new Object[]{flowFiles, Arrays.toString(sent), Arrays.toString(SmtpReplies.invalidAddresses(e))});
+            return Collections.emptyList();
+        }
+        final int replyCode = SmtpReplies.replyCode(e);
+        if (SmtpReplies.isMessageTooLarge(e) && sendProfile.getMessage() == null && flowFiles.size() > context.getProperty(MIN_SPLIT_SIZE).asInteger()) {
+            final int half = flowFiles.size() / 2;
+            getLogger().warn("SMTP server rejected the email for {} FlowFiles as too large: {}; sending them as two emails of {} and {}",
+                    new Object[]{flowFiles.size(), e.getMessage(), half, flowFiles.size() - half});
+            return Arrays.asList(new ArrayList<>(flowFiles.subList(0, half)), new ArrayList<>(flowFiles.subList(half, flowFiles.size())));
+        }
+        context.yield();
+        if (SmtpReplies.isThrottling(replyCode) && context.getProperty(ADAPTIVE_BACKOFF).asBoolean()) {
+            final long pauseMillis = rateLimiter.onThrottled();
+            getLogger().warn("SMTP server replied {} for {}: {}; pausing sends for {} ms and returning the FlowFiles to the queue",
+                    new Object[]{replyCode, flowFiles, e.getMessage(), pauseMillis});
+            session.transfer(flowFiles);
+            return Collections.emptyList();
+        }
+        metrics.emailFailed();
+        getLogger().error("Failed to send email for {}: {}; routing to failure", new Object[]{flowFiles, e.getMessage()}, e);
+        session.transfer(flowFiles, REL_FAILURE);
+        return Collections.emptyList();
+    }
+
+    private EmailTable buildTable(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles) {
+        if (context.getProperty(SUMMARIZE).asBoolean()) {
+            return SummaryTable.of(flowFiles, summaryKeyAttributes, context.getProperty(SUMMARY_TOP_N).asInteger());
+        }
+        if (context.getProperty(RECORD_READER).isSet()) {
+            return new RecordTable(session, flowFiles, context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class),
+                    columnSelector, context.getProperty(MAX_RECORDS).asInteger(), getLogger());
+        }
+        final ContentExcerpt excerpt = this.contentExcerpt;
+        return new FlowFileTable(flowFiles, columnSelector, excerpt == null ? null : excerpt.read(session, flowFiles));
+    }
+
+    /**
+     * Opens the outbox. Kept as an overridable hook to add testability of this class.
+     */
+    Outbox openOutbox(final Path directory, final long segmentBytes) throws IOException {
+        return new Outbox(directory, segmentBytes, getLogger());
+    }
+
+    /**
+     * Sends the message over a pooled SMTP connection to one of the configured hosts, the pooled equivalent of
+     * {@link Transport#send(Message)}.
+     * Kept as an overridable hook to add testability of this class.
      *
      * @param msg the message to send
      * @throws MessagingException on error
      */
     protected void send(final Message msg) throws MessagingException {
-        Transport.send(msg);
+        final TransportRouter router = transportRouter;
+        if (router == null) {
+            throw new MessagingException("SMTP connection pool is not available; the processor is not scheduled");
+        }
+        router.send(msg);
     }
 
 }
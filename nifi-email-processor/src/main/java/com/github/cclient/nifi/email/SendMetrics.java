@@ -0,0 +1,316 @@
+package com.github.cclient.nifi.email;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.nifi.processor.ProcessSession;
+
+/**
+ * Latency histograms for each stage of sending an email, and counters for what was sent. Safe to update from the
+ * trigger threads and the sender threads at the same time.
+ * <p>
+ * The {@link #DISABLED} instance records nothing and never reads the clock, so that the send path costs the same as
+ * without metrics when they are switched off.
+ */
+final class SendMetrics {
+
+    enum Stage {
+        /**
+         * Pulling FlowFiles from the queue
+         */
+        GET("Get"),
+        /**
+         * Rendering the body, which happens while the message is written during {@link #DATA}, or ahead of it when batches
+         * are prerendered
+         */
+        RENDER("Render"),
+        /**
+         * Creating the message and setting its headers and content
+         */
+        MIME_BUILD("MIME Build"),
+        /**
+         * Opening a new SMTP connection, including TLS and authentication
+         */
+        CONNECT("Connect"),
+        /**
+         * The SMTP transaction of one email, MAIL FROM to the reply to DATA, including the body rendering
+         */
+        DATA("DATA");
+
+        private final String displayName;
+
+        Stage(final String displayName) {
+            this.displayName = displayName;
+        }
+
+        String getCounterName() {
+            return "Time in " + displayName + " (micros)";
+        }
+    }
+
+    static final String EMAILS_SENT = "Emails Sent";
+    static final String EMAILS_FAILED = "Emails Failed";
+    static final String FLOWFILES_EMAILED = "FlowFiles Emailed";
+    static final String FLOWFILES_SUPPRESSED = "FlowFiles Suppressed";
+    static final String BODY_BYTES = "Body Bytes";
+    static final String SMTP_REPLY = "SMTP Reply ";
+
+    static final SendMetrics DISABLED = new SendMetrics(false);
+
+    private final boolean enabled;
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final Histogram flowFilesPerEmail = new Histogram();
+    private final LongAdder emailsSent = new LongAdder();
+    private final LongAdder emailsFailed = new LongAdder();
+    private final LongAdder flowFilesSuppressed = new LongAdder();
+    private final LongAdder bodyBytes = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> replyCodes = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Long> published = new HashMap<>();
+
+    SendMetrics() {
+        this(true);
+    }
+
+    private SendMetrics(final boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the start time to pass to {@link #record(Stage, long)}, or 0 if disabled
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    void record(final Stage stage, final long startNanos) {
+        if (enabled) {
+            stages[stage.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    void recordNanos(final Stage stage, final long nanos) {
+        if (enabled) {
+            stages[stage.ordinal()].record(nanos);
+        }
+    }
+
+    void bodyWritten(final long bytes) {
+        if (enabled) {
+            bodyBytes.add(bytes);
+        }
+    }
+
+    void emailSent(final int flowFiles) {
+        if (enabled) {
+            emailsSent.increment();
+            flowFilesPerEmail.record(flowFiles);
+        }
+    }
+
+    void emailFailed() {
+        if (enabled) {
+            emailsFailed.increment();
+        }
+    }
+
+    void suppressed(final int flowFiles) {
+        if (enabled) {
+            flowFilesSuppressed.add(flowFiles);
+        }
+    }
+
+    void reply(final int replyCode) {
+        if (enabled && replyCode > 0) {
+            replyCodes.computeIfAbsent(replyCode, code -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Reports a current value, such as a queue depth, rather than a running total. It is published as a counter that
+     * is adjusted to the current value, and continues the counter published by the previous instance, if given.
+     *
+     * @param counterName  the name of the counter
+     * @param snapshotName the name in {@link #snapshot()}
+     * @param previous     the metrics of the previous run of the processor, or null
+     */
+    void gauge(final String counterName, final String snapshotName, final LongSupplier value, final SendMetrics previous) {
+        if (!enabled) {
+            return;
+        }
+        gauges.put(counterName, new Gauge(snapshotName, value));
+        if (previous != null && previous.enabled) {
+            synchronized (previous.published) {
+                final Long last = previous.published.get(counterName);
+                if (last != null) {
+                    synchronized (published) {
+                        published.put(counterName, last);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to the session's counters whatever has been recorded, by any thread, since the last call.
+     */
+    void publish(final ProcessSession session) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (published) {
+            publish(session, EMAILS_SENT, emailsSent.sum());
+            publish(session, EMAILS_FAILED, emailsFailed.sum());
+            publish(session, FLOWFILES_EMAILED, flowFilesPerEmail.total());
+            publish(session, FLOWFILES_SUPPRESSED, flowFilesSuppressed.sum());
+            publish(session, BODY_BYTES, bodyBytes.sum());
+            for (final Stage stage : Stage.values()) {
+                publish(session, stage.getCounterName(), TimeUnit.NANOSECONDS.toMicros(stages[stage.ordinal()].total()));
+            }
+            for (final Map.Entry<Integer, LongAdder> entry : replyCodes.entrySet()) {
+                publish(session, SMTP_REPLY + entry.getKey(), entry.getValue().sum());
+            }
+            for (final Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+                publish(session, entry.getKey(), entry.getValue().value.getAsLong());
+            }
+        }
+    }
+
+    private void publish(final ProcessSession session, final String name, final long value) {
+        final Long last = published.put(name, value);
+        final long delta = value - (last == null ? 0L : last);
+        if (delta != 0) {
+            session.adjustCounter(name, delta, false);
+        }
+    }
+
+    /**
+     * @return the current values, stage latencies in microseconds, by name
+     */
+    Map<String, Long> snapshot() {
+        final Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("emailsSent", emailsSent.sum());
+        snapshot.put("emailsFailed", emailsFailed.sum());
+        snapshot.put("flowFilesEmailed", flowFilesPerEmail.total());
+        snapshot.put("flowFilesSuppressed", flowFilesSuppressed.sum());
+        snapshot.put("bodyBytes", bodyBytes.sum());
+        flowFilesPerEmail.snapshot("flowFilesPerEmail", 1L, snapshot);
+        for (final Stage stage : Stage.values()) {
+            stages[stage.ordinal()].snapshot(stage.displayName.replace(" ", "") + "Micros", 1000L, snapshot);
+        }
+        for (final Map.Entry<Integer, LongAdder> entry : replyCodes.entrySet()) {
+            snapshot.put("reply" + entry.getKey(), entry.getValue().sum());
+        }
+        for (final Gauge gauge : gauges.values()) {
+            snapshot.put(gauge.snapshotName, gauge.value.getAsLong());
+        }
+        return snapshot;
+    }
+
+    private static final class Gauge {
+        private final String snapshotName;
+        private final LongSupplier value;
+
+        private Gauge(final String snapshotName, final LongSupplier value) {
+            this.snapshotName = snapshotName;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A histogram of non-negative values in log-linear buckets: eight buckets per power of two, so percentiles are
+     * accurate to within 12.5%. Recording is an index computation and an atomic increment.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+        void record(final long value) {
+            final long v = Math.max(0L, value);
+            counts.incrementAndGet(bucket(v));
+            count.increment();
+            total.add(v);
+            max.accumulate(v);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long total() {
+            return total.sum();
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the value at the quantile, or 0 if nothing was recorded
+         */
+        long percentile(final double quantile) {
+            final long[] snapshot = new long[BUCKETS];
+            long recorded = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                recorded += snapshot[i];
+            }
+            if (recorded == 0) {
+                return 0L;
+            }
+            final long rank = Math.max(1L, (long) Math.ceil(quantile * recorded));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private void snapshot(final String prefix, final long unit, final Map<String, Long> snapshot) {
+            final long count = count();
+            snapshot.put(prefix + ".count", count);
+            snapshot.put(prefix + ".mean", count == 0 ? 0L : total() / count / unit);
+            snapshot.put(prefix + ".p50", percentile(0.50) / unit);
+            snapshot.put(prefix + ".p99", percentile(0.99) / unit);
+            snapshot.put(prefix + ".max", max.get() / unit);
+        }
+
+        static int bucket(final long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            final int octave = 63 - Long.numberOfLeadingZeros(value);
+            final int subBucket = (int) (value >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long upperBound(final int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            final int octave = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (octave - SUB_BUCKET_BITS);
+            return lower + (1L << (octave - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
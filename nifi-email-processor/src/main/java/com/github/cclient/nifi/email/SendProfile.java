@@ -0,0 +1,260 @@
+package com.github.cclient.nifi.email;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import javax.mail.Authenticator;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeUtility;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.context.PropertyContext;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * Everything about an outgoing email that only depends on the processor configuration: the mail
+ * {@link Properties}, the {@link Session}, the parsed sender and recipient addresses and the static headers.
+ * <p>
+ * None of the properties involved support Expression Language, so a profile is resolved once when the processor
+ * is scheduled and shared, read-only, by every trigger until the processor is reconfigured.
+ */
+final class SendProfile {
+
+    /**
+     * Mapping of the mail properties to the NiFi PropertyDescriptors that will be evaluated at runtime
+     */
+    private static final Map<String, PropertyDescriptor> propertyToContext = new HashMap<>();
+
+    static {
+        propertyToContext.put("mail.smtp.port", SendEmail.SMTP_PORT);
+        propertyToContext.put("mail.smtp.socketFactory.class", SendEmail.SMTP_SOCKET_FACTORY);
+        propertyToContext.put("mail.smtp.auth", SendEmail.SMTP_AUTH);
+        propertyToContext.put("mail.smtp.starttls.enable", SendEmail.SMTP_TLS);
+        propertyToContext.put("mail.smtp.user", SendEmail.SMTP_USERNAME);
+        propertyToContext.put("mail.smtp.password", SendEmail.SMTP_PASSWORD);
+        propertyToContext.put("mail.smtp.sendpartial", SendEmail.SEND_PARTIAL);
+    }
+
+    private final Properties properties;
+    private final Session session;
+    private final InternetAddress[] from;
+    private final InternetAddress[] to;
+    private final InternetAddress[] cc;
+    private final InternetAddress[] bcc;
+    private final AddressException addressException;
+    private final String xMailer;
+    private final String subject;
+    private final String contentType;
+    private final String message;
+    private final String recipientsAttribute;
+    private final String subjectAttribute;
+
+    private SendProfile(final PropertyContext context, final ComponentLog logger) {
+        this.properties = getMailProperties(context, logger);
+        this.session = createMailSession(properties);
+
+        InternetAddress[] from = null, to = null, cc = null, bcc = null;
+        AddressException addressException = null;
+        try {
+            from = toInetAddresses(context, SendEmail.FROM);
+            to = toInetAddresses(context, SendEmail.TO);
+            cc = toInetAddresses(context, SendEmail.CC);
+            bcc = toInetAddresses(context, SendEmail.BCC);
+        } catch (AddressException e) {
+            addressException = e;
+        }
+        this.from = from;
+        this.to = to;
+        this.cc = cc;
+        this.bcc = bcc;
+        this.addressException = addressException;
+
+        this.xMailer = encodeHeader("X-Mailer", context.getProperty(SendEmail.HEADER_XMAILER).getValue(), logger);
+        this.subject = context.getProperty(SendEmail.SUBJECT).getValue();
+        this.contentType = context.getProperty(SendEmail.CONTENT_TYPE).getValue();
+        this.message = context.getProperty(SendEmail.MESSAGE).getValue();
+        final String fanOutAttribute = context.getProperty(SendEmail.FAN_OUT_ATTRIBUTE).getValue();
+        this.recipientsAttribute = fanOutAttribute != null ? fanOutAttribute : context.getProperty(SendEmail.PARTITION_RECIPIENTS_ATTRIBUTE).getValue();
+        this.subjectAttribute = context.getProperty(SendEmail.PARTITION_SUBJECT_ATTRIBUTE).getValue();
+    }
+
+    /**
+     * Resolves the profile for the given configuration.
+     * <p>
+     * Addresses that cannot be parsed do not fail the resolution; the {@link AddressException} is kept and thrown by
+     * {@link #newMessage()} instead, so that FlowFiles are routed to failure exactly as if the addresses had been parsed
+     * on every trigger.
+     *
+     * @param context the processor configuration
+     * @param logger  the processor logger
+     * @return the resolved profile
+     */
+    static SendProfile from(final PropertyContext context, final ComponentLog logger) {
+        return new SendProfile(context, logger);
+    }
+
+    /**
+     * Creates a new message with sender, recipients, X-Mailer header and subject already set.
+     *
+     * @return a message that only lacks its content
+     * @throws MessagingException if one of the configured addresses is invalid or the message cannot be populated
+     */
+    PrerenderedMessage newMessage() throws MessagingException {
+        if (addressException != null) {
+            throw addressException;
+        }
+        final PrerenderedMessage message = new PrerenderedMessage(session);
+        message.addFrom(from);
+        message.setRecipients(RecipientType.TO, to);
+        message.setRecipients(RecipientType.CC, cc);
+        message.setRecipients(RecipientType.BCC, bcc);
+        if (xMailer != null) {
+            message.setHeader("X-Mailer", xMailer);
+        }
+        message.setSubject(subject);
+        return message;
+    }
+
+    /**
+     * Creates a new message for a group of FlowFiles. If the group's first FlowFile carries the configured recipients
+     * or subject attribute, its value replaces the configured To addresses or subject.
+     *
+     * @param first the first FlowFile of the group
+     * @return a message that only lacks its content
+     * @throws MessagingException if one of the configured or attribute addresses is invalid
+     */
+    PrerenderedMessage newMessage(final FlowFile first) throws MessagingException {
+        final PrerenderedMessage message = newMessage();
+        final String recipients = recipientsAttribute == null ? null : first.getAttribute(recipientsAttribute);
+        if (recipients != null && !recipients.isEmpty()) {
+            try {
+                message.setRecipients(RecipientType.TO, InternetAddress.parse(recipients));
+            } catch (AddressException e) {
+                throw new AddressException("Unable to parse a valid address from attribute '" + recipientsAttribute + "' with value '" + recipients + "'");
+            }
+        }
+        final String partitionSubject = subjectAttribute == null ? null : first.getAttribute(subjectAttribute);
+        if (partitionSubject != null && !partitionSubject.isEmpty()) {
+            message.setSubject(partitionSubject);
+        }
+        return message;
+    }
+
+    Properties getProperties() {
+        return properties;
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the static body configured through the Message property, or {@code null} if the body is generated
+     */
+    String getMessage() {
+        return message;
+    }
+
+    private static String encodeHeader(final String header, final String value, final ComponentLog logger) {
+        try {
+            return MimeUtility.encodeText(value);
+        } catch (UnsupportedEncodingException e) {
+            logger.warn("Unable to add header {} with value {} due to encoding exception", new Object[]{header, value});
+            return null;
+        }
+    }
+
+    /**
+     * Based on the input properties, determine whether an authenticate or unauthenticated session should be used. If authenticated, creates a Password Authenticator for use in sending the email.
+     *
+     * @param properties mail properties
+     * @return session
+     */
+    private static Session createMailSession(final Properties properties) {
+        String authValue = properties.getProperty("mail.smtp.auth");
+        Boolean auth = Boolean.valueOf(authValue);
+        /*
+         * Conditionally create a password authenticator if the 'auth' parameter is set.
+         */
+        final Session mailSession = auth ? Session.getInstance(properties, new Authenticator() {
+            @Override
+            public PasswordAuthentication getPasswordAuthentication() {
+                String username = properties.getProperty("mail.smtp.user"), password = properties.getProperty("mail.smtp.password");
+                return new PasswordAuthentication(username, password);
+            }
+        }) : Session.getInstance(properties); // without auth
+        return mailSession;
+    }
+
+    /**
+     * Uses the mapping of javax.mail properties to NiFi PropertyDescriptors to build the required Properties object to be used for sending this email
+     *
+     * @param context context
+     * @param logger  logger
+     * @return mail properties
+     */
+    private static Properties getMailProperties(final PropertyContext context, final ComponentLog logger) {
+        final Properties properties = new Properties();
+        for (Entry<String, PropertyDescriptor> entry : propertyToContext.entrySet()) {
+            String value = context.getProperty(entry.getValue()).getValue();
+            String property = entry.getKey();
+            logger.debug("Evaluated Mail Property: {} with Value: {}", new Object[]{property, value});
+            // Nullable values are not allowed, so filter out
+            if (null != value) {
+                properties.setProperty(property, value);
+            }
+        }
+        // connections name their host and port, the first host only serves as the session default; no
+        // mail.smtp.socketFactory.port either, it would override the port of every host
+        final String hosts = context.getProperty(SendEmail.SMTP_HOSTNAME).getValue();
+        final String port = properties.getProperty("mail.smtp.port");
+        if (hosts != null && port != null) {
+            try {
+                properties.setProperty("mail.smtp.host", TransportRouter.parseHosts(hosts, Integer.parseInt(port)).get(0).getHostString());
+            } catch (IllegalArgumentException e) {
+                logger.debug("Unable to parse SMTP hosts {}", new Object[]{hosts});
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * @param context            the current context
+     * @param propertyDescriptor the property to evaluate
+     * @return an InternetAddress[] parsed from the supplied property
+     * @throws AddressException if the property cannot be parsed to a valid InternetAddress[]
+     */
+    private static InternetAddress[] toInetAddresses(final PropertyContext context, PropertyDescriptor propertyDescriptor) throws AddressException {
+        InternetAddress[] parse;
+        String value = context.getProperty(propertyDescriptor).getValue();
+        if (value == null || value.isEmpty()) {
+            if (propertyDescriptor.isRequired()) {
+                final String exceptionMsg = "Required property '" + propertyDescriptor.getDisplayName() + "' evaluates to an empty string.";
+                throw new AddressException(exceptionMsg);
+            } else {
+                parse = new InternetAddress[0];
+            }
+        } else {
+            try {
+                parse = InternetAddress.parse(value);
+            } catch (AddressException e) {
+                final String exceptionMsg = "Unable to parse a valid address for property '" + propertyDescriptor.getDisplayName() + "' with value '" + value + "'";
+                throw new AddressException(exceptionMsg);
+            }
+        }
+        return parse;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.cclient.nifi.email;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the emails sent by all concurrent tasks of a processor: at most a number of messages and a number of
+ * recipients per interval, and an adaptive slowdown when the SMTP server signals that it is throttling us.
+ * <p>
+ * A throttling reply pauses sending for a backoff period that doubles with every consecutive throttle up to a
+ * maximum, and halves the refill rate of the token buckets. Every successful send lifts the rate back up a step, so
+ * the sustained rate converges on what the server accepts (additive increase, multiplicative decrease).
+ */
+final class SendRateLimiter {
+
+    private static final long INITIAL_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double MIN_RATE_FACTOR = 1.0 / 16;
+    private static final double RATE_FACTOR_STEP = 1.0 / 16;
+
+    private final TokenBucket messages;
+    private final TokenBucket recipients;
+    private final long maxBackoffNanos;
+    private double rateFactor = 1.0;
+    private long backoffNanos = 0L;
+    private long pausedUntilNanos;
+
+    /**
+     * @param messagesPerInterval   the messages allowed per interval, or {@code null} for no limit
+     * @param recipientsPerInterval the recipients allowed per interval, or {@code null} for no limit
+     * @param intervalNanos         the interval length
+     * @param maxBackoffNanos       the longest pause after consecutive throttling replies
+     */
+    SendRateLimiter(final Integer messagesPerInterval, final Integer recipientsPerInterval, final long intervalNanos, final long maxBackoffNanos) {
+        final long now = System.nanoTime();
+        this.messages = messagesPerInterval == null ? null : new TokenBucket(messagesPerInterval, intervalNanos, now);
+        this.recipients = recipientsPerInterval == null ? null : new TokenBucket(recipientsPerInterval, intervalNanos, now);
+        this.maxBackoffNanos = maxBackoffNanos;
+        this.pausedUntilNanos = now;
+    }
+
+    /**
+     * Takes the permits for one message with the given number of recipients, if they are all available.
+     *
+     * @return false if sending is paused or the permits are not available yet; nothing is taken in that case
+     */
+    synchronized boolean tryAcquire(final int recipientCount) {
+        final long now = System.nanoTime();
+        if (now - pausedUntilNanos < 0) {
+            return false;
+        }
+        if (messages != null) {
+            messages.refill(now, rateFactor);
+        }
+        if (recipients != null) {
+            recipients.refill(now, rateFactor);
+        }
+        if ((messages != null && !messages.hasTokens(1)) || (recipients != null && !recipients.hasTokens(recipientCount))) {
+            return false;
+        }
+        if (messages != null) {
+            messages.take(1);
+        }
+        if (recipients != null) {
+            recipients.take(recipientCount);
+        }
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        backoffNanos = 0L;
+        rateFactor = Math.min(1.0, rateFactor + RATE_FACTOR_STEP);
+    }
+
+    /**
+     * @return the pause, in milliseconds, before the next message may be sent
+     */
+    synchronized long onThrottled() {
+        backoffNanos = backoffNanos == 0L ? INITIAL_BACKOFF_NANOS : Math.min(maxBackoffNanos, backoffNanos * 2);
+        rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor / 2);
+        pausedUntilNanos = System.nanoTime() + backoffNanos;
+        return TimeUnit.NANOSECONDS.toMillis(backoffNanos);
+    }
+}
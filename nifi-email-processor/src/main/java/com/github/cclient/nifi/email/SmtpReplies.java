@@ -0,0 +1,102 @@
+package com.github.cclient.nifi.email;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Reads SMTP reply codes out of the exceptions thrown by javax.mail.
+ */
+final class SmtpReplies {
+
+    private static final int MAX_CAUSE_DEPTH = 16;
+
+    private SmtpReplies() {
+    }
+
+    /**
+     * Walks the exception and its chained exceptions and returns the first SMTP reply code found.
+     *
+     * @param e the exception thrown while sending
+     * @return the reply code, or -1 if none of the exceptions carries one
+     */
+    static int replyCode(final Throwable e) {
+        Throwable current = e;
+        for (int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++) {
+            if (current instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException) current).getReturnCode();
+            }
+            if (current instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException) current).getReturnCode();
+            }
+            if (current instanceof SMTPSenderFailedException) {
+                return ((SMTPSenderFailedException) current).getReturnCode();
+            }
+            // MessagingException#getCause returns the next exception of the chain
+            current = current.getCause();
+        }
+        return -1;
+    }
+
+    /**
+     * Tells a rejection of the message itself as too large from other 552 replies. A 552 to RCPT, which javax.mail
+     * chains inside a {@link SendFailedException}, means a full mailbox or too many recipients, which a smaller message
+     * does not help with.
+     *
+     * @param e the exception thrown while sending
+     * @return true if the server replied 552 to DATA or to the end of the message data
+     */
+    static boolean isMessageTooLarge(final Throwable e) {
+        if (!(e instanceof SMTPSendFailedException)) {
+            return false;
+        }
+        final SMTPSendFailedException failed = (SMTPSendFailedException) e;
+        return failed.getReturnCode() == 552 && ("DATA".equals(failed.getCommand()) || ".".equals(failed.getCommand()));
+    }
+
+    /**
+     * Finds the recipients the message was delivered to despite the failure, which with {@code mail.smtp.sendpartial}
+     * are all the recipients the server accepted.
+     *
+     * @param e the exception thrown while sending
+     * @return the recipients the message was sent to, empty if none or if the exception does not tell
+     */
+    static Address[] validSentAddresses(final Throwable e) {
+        final SendFailedException failed = sendFailed(e);
+        final Address[] addresses = failed == null ? null : failed.getValidSentAddresses();
+        return addresses == null ? new Address[0] : addresses;
+    }
+
+    /**
+     * @param e the exception thrown while sending
+     * @return the recipients the server rejected, empty if none or if the exception does not tell
+     */
+    static Address[] invalidAddresses(final Throwable e) {
+        final SendFailedException failed = sendFailed(e);
+        final Address[] addresses = failed == null ? null : failed.getInvalidAddresses();
+        return addresses == null ? new Address[0] : addresses;
+    }
+
+    private static SendFailedException sendFailed(final Throwable e) {
+        Throwable current = e;
+        for (int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++) {
+            if (current instanceof SendFailedException) {
+                return (SendFailedException) current;
+            }
+            current = current.getCause();
+        }
+        return null;
+    }
+
+    /**
+     * @return true for the transient replies a relay uses to ask clients to slow down: 421 (service not available,
+     * closing channel), 450 (mailbox unavailable), 451 (local error, often rate limiting) and 452 (insufficient storage,
+     * or too many recipients)
+     */
+    static boolean isThrottling(final int replyCode) {
+        return replyCode == 421 || replyCode == 450 || replyCode == 451 || replyCode == 452;
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.cclient.nifi.email;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.nifi.flowfile.FlowFile;
+
+/**
+ * Collapses FlowFiles with the same key into a single row showing how many there were, when the first and the last
+ * one entered the flow and their total size. FlowFiles are keyed either by the values of a fixed set of attributes or,
+ * if none is configured, by all of their attributes except the ones that are unique per FlowFile.
+ * <p>
+ * Grouping is a single pass over the FlowFiles into a hash map sized for the batch, so it stays linear for batches of
+ * tens of thousands of FlowFiles; picking the top N groups by count is {@code O(groups * log N)}.
+ */
+class SummaryTable implements EmailTable {
+
+    /**
+     * Attributes that differ for every FlowFile and would otherwise give each FlowFile its own row.
+     */
+    static final Set<String> VOLATILE_ATTRIBUTES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("uuid", "filename", "entryDate")));
+
+    private static final Comparator<Group> BY_COUNT = Comparator.comparingLong(group -> group.count);
+
+    private final List<String> keyColumns;
+    private final List<String> columns;
+    private final Collection<Group> groups;
+
+    private SummaryTable(final List<String> keyColumns, final Collection<Group> groups) {
+        this.keyColumns = keyColumns;
+        final List<String> columns = new ArrayList<>(keyColumns.size() + 4);
+        columns.addAll(keyColumns);
+        columns.add("count");
+        columns.add("firstEntryDate");
+        columns.add("lastEntryDate");
+        columns.add("totalSize");
+        this.columns = Collections.unmodifiableList(columns);
+        this.groups = groups;
+    }
+
+    /**
+     * @param flowFiles     the FlowFiles to summarize
+     * @param keyAttributes the attributes that identify a row, or {@code null} to use all non-volatile attributes
+     * @param topN          the number of rows to keep, most frequent first, or {@code null} to keep all rows in queue order
+     * @return the summary
+     */
+    static SummaryTable of(final List<FlowFile> flowFiles, final List<String> keyAttributes, final Integer topN) {
+        final Map<Object, Group> groups = new LinkedHashMap<>((int) (flowFiles.size() / 0.75f) + 1);
+        final Set<String> attributeNames = keyAttributes == null ? new TreeSet<>() : null;
+        for (final FlowFile flowFile : flowFiles) {
+            final Object key;
+            if (keyAttributes == null) {
+                key = new AttributesKey(flowFile.getAttributes());
+            } else {
+                final String[] values = new String[keyAttributes.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = flowFile.getAttribute(keyAttributes.get(i));
+                }
+                key = Arrays.asList(values);
+            }
+            final Group group = groups.get(key);
+            if (group == null) {
+                groups.put(key, new Group(flowFile));
+                if (attributeNames != null) {
+                    for (final String name : flowFile.getAttributes().keySet()) {
+                        if (!VOLATILE_ATTRIBUTES.contains(name)) {
+                            attributeNames.add(name);
+                        }
+                    }
+                }
+            } else {
+                group.add(flowFile);
+            }
+        }
+
+        final List<String> keyColumns = keyAttributes == null ? new ArrayList<>(attributeNames) : keyAttributes;
+        if (topN == null || topN >= groups.size()) {
+            return new SummaryTable(keyColumns, groups.values());
+        }
+        final PriorityQueue<Group> top = new PriorityQueue<>(topN + 1, BY_COUNT);
+        for (final Group group : groups.values()) {
+            top.offer(group);
+            if (top.size() > topN) {
+                top.poll();
+            }
+        }
+        final List<Group> sorted = new ArrayList<>(top);
+        sorted.sort(BY_COUNT.reversed());
+        return new SummaryTable(keyColumns, sorted);
+    }
+
+    @Override
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    @Override
+    public int size() {
+        return groups.size();
+    }
+
+    @Override
+    public Iterator<String[]> rows() {
+        final Iterator<Group> iterator = groups.iterator();
+        return new Iterator<String[]>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public String[] next() {
+                return toRow(iterator.next());
+            }
+        };
+    }
+
+    private String[] toRow(final Group group) {
+        final String[] cells = new String[columns.size()];
+        int i = 0;
+        for (final String name : keyColumns) {
+            final String value = group.first.getAttribute(name);
+            cells[i++] = value == null ? "" : value;
+        }
+        cells[i++] = String.valueOf(group.count);
+        cells[i++] = new Date(group.firstEntryDate).toString();
+        cells[i++] = new Date(group.lastEntryDate).toString();
+        cells[i] = String.valueOf(group.totalSize);
+        return cells;
+    }
+
+    private static final class Group {
+        private final FlowFile first;
+        private long count = 1;
+        private long firstEntryDate;
+        private long lastEntryDate;
+        private long totalSize;
+
+        private Group(final FlowFile first) {
+            this.first = first;
+            this.firstEntryDate = first.getEntryDate();
+            this.lastEntryDate = first.getEntryDate();
+            this.totalSize = first.getSize();
+        }
+
+        private void add(final FlowFile flowFile) {
+            count++;
+            firstEntryDate = Math.min(firstEntryDate, flowFile.getEntryDate());
+            lastEntryDate = Math.max(lastEntryDate, flowFile.getEntryDate());
+            totalSize += flowFile.getSize();
+        }
+    }
+
+    /**
+     * A view of an attribute map that ignores {@link #VOLATILE_ATTRIBUTES}, so that FlowFiles can be grouped by all
+     * of their other attributes without copying the maps.
+     */
+    private static final class AttributesKey {
+        private final Map<String, String> attributes;
+        private final int size;
+        private final int hash;
+
+        private AttributesKey(final Map<String, String> attributes) {
+            this.attributes = attributes;
+            int size = 0;
+            int hash = 0;
+            for (final Map.Entry<String, String> entry : attributes.entrySet()) {
+                if (!VOLATILE_ATTRIBUTES.contains(entry.getKey())) {
+                    size++;
+                    hash += entry.hashCode();
+                }
+            }
+            this.size = size;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof AttributesKey)) {
+                return false;
+            }
+            final AttributesKey other = (AttributesKey) obj;
+            if (hash != other.hash || size != other.size) {
+                return false;
+            }
+            for (final Map.Entry<String, String> entry : attributes.entrySet()) {
+                if (!VOLATILE_ATTRIBUTES.contains(entry.getKey()) && !entry.getValue().equals(other.attributes.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+
+/**
+ * Remembers which row keys have been emailed and when, for {@link Suppressor}. An entry expires once its window has
+ * passed, after which the key is emailed, and remembered, again.
+ */
+interface SuppressionCache {
+
+    /**
+     * @param key the row key
+     * @param now the current time in milliseconds
+     * @return true if the key was emailed within the window
+     * @throws IOException if a remote cache cannot be reached
+     */
+    boolean contains(String key, long now) throws IOException;
+
+    /**
+     * Records that the key has been emailed, unless it already was within the window; an unexpired entry keeps its
+     * time, so that a key that keeps occurring is emailed again once per window.
+     *
+     * @param key the row key
+     * @param now the current time in milliseconds
+     * @throws IOException if a remote cache cannot be reached
+     */
+    void add(String key, long now) throws IOException;
+}
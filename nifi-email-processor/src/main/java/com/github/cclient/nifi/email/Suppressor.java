@@ -0,0 +1,94 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * Leaves out of an email the FlowFiles whose key, the values of a set of attributes, has already been emailed within
+ * the suppression window, so that an ongoing outage is reported once per window instead of in every email.
+ * <p>
+ * Suppressed FlowFiles are left out before the table is rendered and ride along with their email's routing. If the
+ * cache cannot be reached, FlowFiles are not suppressed: a repeated alert is preferred over a lost one.
+ */
+final class Suppressor {
+
+    private static final char KEY_SEPARATOR = '\u001F';
+
+    private final List<String> keyAttributes;
+    private final SuppressionCache cache;
+    private final ComponentLog logger;
+
+    Suppressor(final List<String> keyAttributes, final SuppressionCache cache, final ComponentLog logger) {
+        this.keyAttributes = keyAttributes;
+        this.cache = cache;
+        this.logger = logger;
+    }
+
+    /**
+     * @param flowFiles the FlowFiles of an email
+     * @return the FlowFiles whose key has not been emailed within the window, in order
+     */
+    List<FlowFile> unsuppressed(final List<FlowFile> flowFiles) {
+        final long now = System.currentTimeMillis();
+        final Map<String, Boolean> suppressed = new HashMap<>();
+        final List<FlowFile> shown = new ArrayList<>(flowFiles.size());
+        for (final FlowFile flowFile : flowFiles) {
+            final Boolean known = suppressed.computeIfAbsent(key(flowFile), key -> contains(key, now));
+            if (!known) {
+                shown.add(flowFile);
+            }
+        }
+        return shown;
+    }
+
+    /**
+     * Records the keys of FlowFiles that have been emailed.
+     *
+     * @param flowFiles the FlowFiles of a sent email, suppressed ones included
+     */
+    void emailed(final List<FlowFile> flowFiles) {
+        final long now = System.currentTimeMillis();
+        final Set<String> keys = new LinkedHashSet<>();
+        for (final FlowFile flowFile : flowFiles) {
+            keys.add(key(flowFile));
+        }
+        try {
+            for (final String key : keys) {
+                cache.add(key, now);
+            }
+        } catch (final IOException e) {
+            logger.warn("Failed to record emailed keys in the suppression cache; they will be emailed again", e);
+        }
+    }
+
+    private boolean contains(final String key, final long now) {
+        try {
+            return cache.contains(key, now);
+        } catch (final IOException e) {
+            logger.warn("Failed to read the suppression cache; not suppressing", e);
+            return false;
+        }
+    }
+
+    private String key(final FlowFile flowFile) {
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < keyAttributes.size(); i++) {
+            if (i > 0) {
+                key.append(KEY_SEPARATOR);
+            }
+            final String value = flowFile.getAttribute(keyAttributes.get(i));
+            if (value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * How a rendered table is compressed when it is attached to a message.
+ */
+enum TableCompression {
+
+    NONE(null, "") {
+        @Override
+        OutputStream wrap(final OutputStream out, final String entryName) {
+            return out;
+        }
+    },
+    GZIP("application/gzip", ".gz") {
+        @Override
+        OutputStream wrap(final OutputStream out, final String entryName) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+    },
+    ZIP("application/zip", ".zip") {
+        @Override
+        OutputStream wrap(final OutputStream out, final String entryName) throws IOException {
+            final ZipOutputStream zip = new ZipOutputStream(out);
+            zip.putNextEntry(new ZipEntry(entryName));
+            return zip;
+        }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String contentType;
+    private final String extension;
+
+    TableCompression(final String contentType, final String extension) {
+        this.contentType = contentType;
+        this.extension = extension;
+    }
+
+    /**
+     * Wraps the stream that receives the compressed bytes. Closing the returned stream writes the trailing bytes of the
+     * compressed format to {@code out} and closes it.
+     *
+     * @param out       receives the compressed bytes
+     * @param entryName the name of the single entry of an archive
+     * @return the stream to write the uncompressed table to
+     */
+    abstract OutputStream wrap(OutputStream out, String entryName) throws IOException;
+
+    /**
+     * @param uncompressedType the content type of the uncompressed table
+     * @return the content type of the compressed table
+     */
+    String getContentType(final String uncompressedType) {
+        return contentType == null ? uncompressedType : contentType;
+    }
+
+    /**
+     * @param uncompressedName the file name of the uncompressed table
+     * @return the file name of the compressed table
+     */
+    String getFileName(final String uncompressedName) {
+        return this == ZIP ? stripExtension(uncompressedName) + extension : uncompressedName + extension;
+    }
+
+    private static String stripExtension(final String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.cclient.nifi.email;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+/**
+ * A read-only {@link DataSource} that renders its table every time it is read, so that a message body is produced
+ * while the message is being written to SMTP instead of being built in memory up front.
+ */
+class TableDataSource implements DataSource {
+
+    private final EmailTable table;
+    private final TableFormat format;
+    private final String contentType;
+    private final String name;
+    private final SendMetrics metrics;
+    private final TableCompression compression;
+    private final String entryName;
+
+    TableDataSource(final EmailTable table, final TableFormat format, final String contentType, final String name, final SendMetrics metrics) {
+        this(table, format, contentType, name, metrics, TableCompression.NONE, null);
+    }
+
+    /**
+     * @param contentType the content type of the compressed table
+     * @param name        the file name of the compressed table
+     * @param entryName   the name of the table within an archive
+     */
+    TableDataSource(final EmailTable table, final TableFormat format, final String contentType, final String name, final SendMetrics metrics,
+                    final TableCompression compression, final String entryName) {
+        this.table = table;
+        this.format = format;
+        this.contentType = contentType;
+        this.name = name;
+        this.metrics = metrics;
+        this.compression = compression;
+        this.entryName = entryName;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new TableInputStream(table, format, metrics, compression, entryName);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        throw new UnsupportedOperationException("Table data sources are read-only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
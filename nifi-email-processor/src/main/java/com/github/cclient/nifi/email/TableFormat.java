@@ -0,0 +1,24 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Encodes an {@link EmailTable} as bytes, one section at a time, so that it can be streamed into a message body.
+ */
+interface TableFormat {
+
+    void writeHeader(List<String> columns, OutputStream out) throws IOException;
+
+    void writeRow(String[] cells, OutputStream out) throws IOException;
+
+    /**
+     * Writes the {@link EmailTable#getNote() note} on the rows, if the table has one, between the last row and the
+     * footer. Formats holding data rather than text for readers, such as CSV, leave it out.
+     */
+    default void writeNote(String note, int columnCount, OutputStream out) throws IOException {
+    }
+
+    void writeFooter(OutputStream out) throws IOException;
+}
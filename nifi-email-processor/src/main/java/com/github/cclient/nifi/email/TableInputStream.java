@@ -0,0 +1,186 @@
+package com.github.cclient.nifi.email;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+/**
+ * Pulls an {@link EmailTable} through a {@link TableFormat} on demand: the header, each row and the footer are
+ * encoded only when the reader has consumed the previous one, so at most one row is buffered at any time.
+ * <p>
+ * If the table is compressed, each section is encoded into a staging buffer and handed to the compressor in a single
+ * write; sections the compressor holds back produce no output, and the next section is encoded right away.
+ */
+class TableInputStream extends InputStream {
+
+    private final EmailTable table;
+    private final TableFormat format;
+    private final SendMetrics metrics;
+    private final TableCompression compression;
+    private final String entryName;
+    private final ReusableBuffer buffer = new ReusableBuffer(8192);
+    private ReusableBuffer staging = null;
+    private OutputStream compressor = null;
+    private Iterator<String[]> rows = null;
+    private boolean footerWritten = false;
+    private boolean exhausted = false;
+    private int position = 0;
+    private long renderNanos = 0;
+    private long renderedBytes = 0;
+
+    TableInputStream(final EmailTable table, final TableFormat format) {
+        this(table, format, SendMetrics.DISABLED);
+    }
+
+    /**
+     * @param metrics receives the time spent rendering and the number of bytes rendered once the table has been read
+     */
+    TableInputStream(final EmailTable table, final TableFormat format, final SendMetrics metrics) {
+        this(table, format, metrics, TableCompression.NONE, null);
+    }
+
+    /**
+     * @param compression how the rendered table is compressed
+     * @param entryName   the name of the table within an archive
+     */
+    TableInputStream(final EmailTable table, final TableFormat format, final SendMetrics metrics,
+                     final TableCompression compression, final String entryName) {
+        this.table = table;
+        this.format = format;
+        this.metrics = metrics;
+        this.compression = compression;
+        this.entryName = entryName;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= buffer.size() && !fill()) {
+            return -1;
+        }
+        return buffer.array()[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int read = 0;
+        while (read < len) {
+            if (position >= buffer.size() && !fill()) {
+                break;
+            }
+            final int chunk = Math.min(len - read, buffer.size() - position);
+            System.arraycopy(buffer.array(), position, b, off + read, chunk);
+            position += chunk;
+            read += chunk;
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public int available() {
+        return buffer.size() - position;
+    }
+
+    /**
+     * Releases the rows and the compressor of a table that has not been read to the end.
+     */
+    @Override
+    public void close() throws IOException {
+        if (rows instanceof Closeable) {
+            ((Closeable) rows).close();
+        }
+        if (compressor != null && !footerWritten) {
+            footerWritten = true;
+            compressor.close();
+        }
+    }
+
+    /**
+     * Encodes the next non-empty section of the table into the buffer.
+     *
+     * @return false once the footer has been consumed
+     */
+    private boolean fill() throws IOException {
+        if (exhausted) {
+            return false;
+        }
+        final long start = metrics.start();
+        buffer.reset();
+        position = 0;
+        while (buffer.size() == 0) {
+            if (rows == null) {
+                if (compression != TableCompression.NONE) {
+                    staging = new ReusableBuffer(8192);
+                    compressor = compression.wrap(buffer, entryName);
+                }
+                rows = openRows();
+                format.writeHeader(table.getColumns(), target());
+                compress();
+            } else if (hasNextRow()) {
+                format.writeRow(nextRow(), target());
+                compress();
+            } else if (!footerWritten) {
+                final String note = table.getNote();
+                if (note != null) {
+                    format.writeNote(note, table.getColumns().size(), target());
+                }
+                format.writeFooter(target());
+                compress();
+                footerWritten = true;
+                if (compressor != null) {
+                    compressor.close();
+                }
+            } else {
+                exhausted = true;
+                metrics.recordNanos(SendMetrics.Stage.RENDER, renderNanos);
+                metrics.bodyWritten(renderedBytes);
+                return false;
+            }
+        }
+        if (metrics.isEnabled()) {
+            renderNanos += System.nanoTime() - start;
+            renderedBytes += buffer.size();
+        }
+        return true;
+    }
+
+    private Iterator<String[]> openRows() throws IOException {
+        try {
+            return table.rows();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private boolean hasNextRow() throws IOException {
+        try {
+            return rows.hasNext();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private String[] nextRow() throws IOException {
+        try {
+            return rows.next();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private OutputStream target() {
+        return compressor == null ? buffer : staging;
+    }
+
+    private void compress() throws IOException {
+        if (compressor != null && staging.size() > 0) {
+            compressor.write(staging.array(), 0, staging.size());
+            staging.reset();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.cclient.nifi.email;
+
+/**
+ * A token bucket that holds up to one interval's worth of permits and refills continuously. Not thread-safe on its
+ * own; {@link SendRateLimiter} guards it.
+ */
+final class TokenBucket {
+
+    private final double capacity;
+    private final double permitsPerNano;
+    private double tokens;
+    private long lastRefillNanos;
+
+    TokenBucket(final long permitsPerInterval, final long intervalNanos, final long nowNanos) {
+        this.capacity = permitsPerInterval;
+        this.permitsPerNano = (double) permitsPerInterval / intervalNanos;
+        this.tokens = permitsPerInterval;
+        this.lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * @param rateFactor the share of the configured refill rate currently allowed, in (0, 1]
+     */
+    void refill(final long nowNanos, final double rateFactor) {
+        tokens = Math.min(capacity, tokens + (nowNanos - lastRefillNanos) * permitsPerNano * rateFactor);
+        lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * A request larger than the bucket can ever hold is capped to a full bucket, so that it waits for, at most, one
+     * whole interval instead of forever.
+     */
+    boolean hasTokens(final long permits) {
+        return tokens >= Math.min(permits, capacity);
+    }
+
+    void take(final long permits) {
+        tokens -= Math.min(permits, capacity);
+    }
+}
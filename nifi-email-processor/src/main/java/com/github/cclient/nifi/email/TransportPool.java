@@ -0,0 +1,276 @@
+package com.github.cclient.nifi.email;
+
+import java.io.Closeable;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * A bounded pool of connected SMTP {@link Transport}s to one host, shared by all concurrent tasks of a processor.
+ * <p>
+ * Connections are opened lazily, reused most-recently-used first and checked with a NOOP
+ * ({@link Transport#isConnected()}) before they are handed out again. A connection is closed once it has
+ * sent {@code maxMessagesPerConnection} messages, or once it has been idle for longer than {@code maxIdleMillis};
+ * idle connections are also evicted in the background so that a quiet processor does not hold sockets open.
+ * <p>
+ * A caller sending a series of messages can hold one connection for all of them with a {@link Lease}, which skips the
+ * NOOP check between messages and only reconnects once the connection has sent {@code maxMessagesPerConnection}.
+ */
+class TransportPool implements Closeable {
+
+    private static final long BORROW_TIMEOUT_MILLIS = 30_000L;
+
+    private final Session session;
+    private final String host;
+    private final int port;
+    private final long maxIdleMillis;
+    private final int maxMessagesPerConnection;
+    private final long borrowTimeoutMillis;
+    private final SendMetrics metrics;
+    private final Semaphore permits;
+    private final BlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    TransportPool(final Session session, final String host, final int port, final int maxConnections, final long maxIdleMillis,
+                  final int maxMessagesPerConnection, final SendMetrics metrics) {
+        this(session, host, port, maxConnections, maxIdleMillis, maxMessagesPerConnection, BORROW_TIMEOUT_MILLIS, metrics);
+    }
+
+    TransportPool(final Session session, final String host, final int port, final int maxConnections, final long maxIdleMillis,
+                  final int maxMessagesPerConnection, final long borrowTimeoutMillis, final SendMetrics metrics) {
+        this.session = session;
+        this.host = host;
+        this.port = port;
+        this.maxIdleMillis = maxIdleMillis;
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.metrics = metrics;
+        this.permits = new Semaphore(maxConnections, true);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "SendEmail-TransportPool-Evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long evictionPeriod = Math.max(1000L, maxIdleMillis / 2);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, evictionPeriod, evictionPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the message over a pooled connection, the pooled equivalent of {@link Transport#send(Message)}.
+     *
+     * @param message the message to send
+     * @throws ConnectFailedException if a new connection could not be opened, so nothing has been sent
+     * @throws MessagingException       if no connection could be obtained or the message could not be sent
+     */
+    void send(final Message message) throws MessagingException {
+        message.saveChanges();
+        final PooledTransport pooled = borrowRecorded();
+        boolean reusable = false;
+        try {
+            transfer(pooled, message);
+            reusable = true;
+        } finally {
+            release(pooled, reusable);
+        }
+    }
+
+    /**
+     * @return a lease that borrows a connection on its first message and holds it until closed
+     */
+    Lease lease() {
+        return new Lease();
+    }
+
+    private void transfer(final PooledTransport pooled, final Message message) throws MessagingException {
+        final long start = metrics.start();
+        try {
+            pooled.transport.sendMessage(message, message.getAllRecipients());
+            metrics.record(SendMetrics.Stage.DATA, start);
+            if (pooled.transport instanceof SMTPTransport) {
+                metrics.reply(((SMTPTransport) pooled.transport).getLastReturnCode());
+            }
+            pooled.messagesSent++;
+        } catch (MessagingException e) {
+            metrics.reply(SmtpReplies.replyCode(e));
+            throw e;
+        }
+    }
+
+    private PooledTransport borrowRecorded() throws MessagingException {
+        try {
+            return borrow();
+        } catch (MessagingException e) {
+            metrics.reply(SmtpReplies.replyCode(e));
+            throw e;
+        }
+    }
+
+    private PooledTransport borrow() throws MessagingException {
+        if (closed) {
+            throw new MessagingException("SMTP connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("Timed out waiting for a pooled SMTP connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a pooled SMTP connection", e);
+        }
+
+        try {
+            PooledTransport pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isReusable(pooled)) {
+                    return pooled;
+                }
+                pooled.close();
+            }
+            final long start = metrics.start();
+            final Transport transport = session.getTransport("smtp");
+            try {
+                transport.connect(host, port, null, null);
+            } catch (MessagingException e) {
+                throw new ConnectFailedException(host + ":" + port, e);
+            }
+            metrics.record(SendMetrics.Stage.CONNECT, start);
+            return new PooledTransport(transport);
+        } catch (MessagingException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(final PooledTransport pooled, final boolean reusable) {
+        try {
+            if (closed || !reusable || pooled.messagesSent >= maxMessagesPerConnection) {
+                pooled.close();
+            } else {
+                pooled.lastReturned = System.currentTimeMillis();
+                idle.offerFirst(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean isReusable(final PooledTransport pooled) {
+        return pooled.messagesSent < maxMessagesPerConnection
+                && !isExpired(pooled, System.currentTimeMillis())
+                && pooled.transport.isConnected();
+    }
+
+    private boolean isExpired(final PooledTransport pooled, final long now) {
+        return now - pooled.lastReturned > maxIdleMillis;
+    }
+
+    private void evictIdle() {
+        final long now = System.currentTimeMillis();
+        for (final PooledTransport pooled : idle) {
+            if (isExpired(pooled, now) && idle.remove(pooled)) {
+                pooled.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledTransport pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * One pooled connection held for a series of messages sent by a single thread. A message the server rejects with a
+     * reply leaves the connection held for the next one; a message that fails without a reply, or with 421, gives the
+     * connection up and the next message borrows another.
+     */
+    final class Lease implements Closeable {
+        private PooledTransport pooled = null;
+
+        private Lease() {
+        }
+
+        /**
+         * Sends the message over the held connection, first replacing it if it has sent its maximum number of messages.
+         *
+         * @param message the message to send
+         * @throws ConnectFailedException if a new connection could not be opened, so nothing has been sent
+         * @throws MessagingException       if no connection could be obtained or the message could not be sent
+         */
+        void send(final Message message) throws MessagingException {
+            message.saveChanges();
+            if (pooled != null && pooled.messagesSent >= maxMessagesPerConnection) {
+                release(pooled, false);
+                pooled = null;
+            }
+            if (pooled == null) {
+                pooled = borrowRecorded();
+            }
+            try {
+                transfer(pooled, message);
+            } catch (MessagingException e) {
+                final int replyCode = SmtpReplies.replyCode(e);
+                if (replyCode < 0 || replyCode == 421) {
+                    release(pooled, false);
+                    pooled = null;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the held connection to the pool.
+         */
+        @Override
+        public void close() {
+            if (pooled != null) {
+                release(pooled, true);
+                pooled = null;
+            }
+        }
+    }
+
+    /**
+     * Thrown when a connection to the host could not be opened, before anything of the message was sent.
+     */
+    static final class ConnectFailedException extends MessagingException {
+        private static final long serialVersionUID = 1L;
+
+        private ConnectFailedException(final String hostAndPort, final MessagingException cause) {
+            super("Failed to connect to " + hostAndPort + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    private static final class PooledTransport {
+        private final Transport transport;
+        private volatile long lastReturned = System.currentTimeMillis();
+        private int messagesSent = 0;
+
+        private PooledTransport(final Transport transport) {
+            this.transport = transport;
+        }
+
+        private void close() {
+            try {
+                transport.close();
+            } catch (MessagingException ignored) {
+                // the connection is being discarded anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.github.cclient.nifi.email;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * Spreads emails over one {@link TransportPool} per SMTP host.
+ * <p>
+ * Each email goes to the healthy host with the lowest expected wait: its EWMA of connect and send times multiplied by
+ * the number of emails already in flight to it plus one. A faster or less busy host therefore gets the next email, and
+ * with several hosts the load spreads roughly in proportion to what each can take. Hosts without a sample yet score
+ * zero and are tried first.
+ * <p>
+ * A host that fails {@code ejectionThreshold} times in a row without answering (it could not be connected to, dropped
+ * the connection or replied 421) is ejected for {@code cooldownMillis}. After the cooldown it gets traffic again; a
+ * success restores it, another failure ejects it again. If every host is ejected, the one whose cooldown ends first is
+ * used rather than failing outright. An email whose connection could not be opened is tried on the next host, since
+ * nothing of it has been sent.
+ * <p>
+ * While a thread holds a {@link Pin}, its emails stay on the host and connection its first email went to, so that a
+ * series of emails is sent as consecutive transactions over one connection. The pin moves to another host only when
+ * that connection fails.
+ */
+final class TransportRouter implements Closeable {
+
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final Host[] hosts;
+    private final int ejectionThreshold;
+    private final long cooldownMillis;
+    private final ComponentLog logger;
+    private final AtomicInteger nextStart = new AtomicInteger();
+    private final ThreadLocal<Pin> pins = new ThreadLocal<>();
+
+    TransportRouter(final Session session, final List<InetSocketAddress> addresses, final int maxConnectionsPerHost, final long maxIdleMillis,
+                    final int maxMessagesPerConnection, final int ejectionThreshold, final long cooldownMillis, final SendMetrics metrics,
+                    final ComponentLog logger) {
+        this.hosts = new Host[addresses.size()];
+        for (int i = 0; i < hosts.length; i++) {
+            final InetSocketAddress address = addresses.get(i);
+            hosts[i] = new Host(i, address.getHostString() + ":" + address.getPort(), new TransportPool(session, address.getHostString(),
+                    address.getPort(), maxConnectionsPerHost, maxIdleMillis, maxMessagesPerConnection, metrics));
+        }
+        this.ejectionThreshold = ejectionThreshold;
+        this.cooldownMillis = cooldownMillis;
+        this.logger = logger;
+    }
+
+    /**
+     * Parses a comma separated list of {@code host[:port]} entries. IPv6 addresses are written in brackets,
+     * {@code [::1]:2525}.
+     *
+     * @param hosts       the list
+     * @param defaultPort the port of entries without one
+     * @return the unresolved addresses, in the order listed
+     * @throws IllegalArgumentException if the list is empty or an entry cannot be parsed
+     */
+    static List<InetSocketAddress> parseHosts(final String hosts, final int defaultPort) {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        for (final String entry : hosts.split(",")) {
+            final String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            final int portSeparator;
+            final String host;
+            if (trimmed.startsWith("[")) {
+                final int end = trimmed.indexOf(']');
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed bracket in SMTP host '" + trimmed + "'");
+                }
+                host = trimmed.substring(1, end);
+                portSeparator = trimmed.length() > end + 1 ? end + 1 : -1;
+                if (portSeparator >= 0 && trimmed.charAt(portSeparator) != ':') {
+                    throw new IllegalArgumentException("Unexpected characters after the address in SMTP host '" + trimmed + "'");
+                }
+            } else {
+                portSeparator = trimmed.indexOf(':');
+                host = portSeparator < 0 ? trimmed : trimmed.substring(0, portSeparator);
+            }
+            int port = defaultPort;
+            if (portSeparator >= 0) {
+                try {
+                    port = Integer.parseInt(trimmed.substring(portSeparator + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid port in SMTP host '" + trimmed + "'");
+                }
+            }
+            if (host.trim().isEmpty() || port < 1 || port > 65535) {
+                throw new IllegalArgumentException("Invalid SMTP host '" + trimmed + "'");
+            }
+            addresses.add(InetSocketAddress.createUnresolved(host.trim(), port));
+        }
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No SMTP host given");
+        }
+        return Collections.unmodifiableList(addresses);
+    }
+
+    /**
+     * Sends the message to the best host, failing over to the others while connections cannot be opened.
+     *
+     * @param message the message to send
+     * @throws MessagingException if no host could be connected to or the message could not be sent
+     */
+    void send(final Message message) throws MessagingException {
+        final Pin pin = pins.get();
+        final boolean[] tried = new boolean[hosts.length];
+        MessagingException failure = null;
+        if (pin != null && pin.host != null) {
+            final Host host = pin.host;
+            tried[host.index] = true;
+            try {
+                sendTo(host, message, pin);
+                return;
+            } catch (final TransportPool.ConnectFailedException e) {
+                failure = e;
+            }
+        }
+        for (int attempt = 0; attempt < hosts.length; attempt++) {
+            final Host host = choose(tried);
+            if (host == null) {
+                break;
+            }
+            tried[host.index] = true;
+            try {
+                sendTo(host, message, pin);
+                return;
+            } catch (final TransportPool.ConnectFailedException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Keeps the emails the calling thread sends on one connection until the pin is closed.
+     *
+     * @return the pin, to be closed by the same thread
+     */
+    Pin pin() {
+        final Pin pin = new Pin();
+        pins.set(pin);
+        return pin;
+    }
+
+    private void sendTo(final Host host, final Message message, final Pin pin) throws MessagingException {
+        host.inFlight.incrementAndGet();
+        final long start = System.nanoTime();
+        try {
+            if (pin == null) {
+                host.pool.send(message);
+            } else {
+                if (pin.host != host) {
+                    pin.release();
+                    pin.host = host;
+                    pin.lease = host.pool.lease();
+                }
+                pin.lease.send(message);
+            }
+            host.succeeded(System.nanoTime() - start);
+        } catch (final TransportPool.ConnectFailedException e) {
+            failed(host);
+            if (pin != null) {
+                pin.release();
+            }
+            throw e;
+        } catch (final MessagingException e) {
+            final int replyCode = SmtpReplies.replyCode(e);
+            if (replyCode < 0 || replyCode == 421) {
+                failed(host);
+                if (pin != null) {
+                    pin.release();
+                }
+            } else {
+                host.succeeded(System.nanoTime() - start);
+            }
+            throw e;
+        } finally {
+            host.inFlight.decrementAndGet();
+        }
+    }
+
+    private Host choose(final boolean[] tried) {
+        final long now = System.currentTimeMillis();
+        final int start = Math.floorMod(nextStart.getAndIncrement(), hosts.length);
+        Host best = null;
+        double bestScore = Double.MAX_VALUE;
+        Host earliest = null;
+        for (int i = 0; i < hosts.length; i++) {
+            final Host host = hosts[(start + i) % hosts.length];
+            if (tried[host.index]) {
+                continue;
+            }
+            if (host.ejectedUntil > now) {
+                if (earliest == null || host.ejectedUntil < earliest.ejectedUntil) {
+                    earliest = host;
+                }
+                continue;
+            }
+            final double score = host.latencyNanos * (host.inFlight.get() + 1);
+            if (score < bestScore) {
+                best = host;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : earliest;
+    }
+
+    private void failed(final Host host) {
+        final int failures;
+        final boolean ejected;
+        synchronized (host) {
+            failures = ++host.consecutiveFailures;
+            ejected = failures >= ejectionThreshold;
+            if (ejected) {
+                host.ejectedUntil = System.currentTimeMillis() + cooldownMillis;
+            }
+        }
+        if (ejected && hosts.length > 1) {
+            logger.warn("SMTP host {} failed {} times in a row; not sending to it for {} millis", new Object[]{host.name, failures, cooldownMillis});
+        }
+    }
+
+    @Override
+    public void close() {
+        for (final Host host : hosts) {
+            host.pool.close();
+        }
+    }
+
+    /**
+     * The host and connection the emails of one thread are pinned to.
+     */
+    final class Pin implements Closeable {
+        private Host host = null;
+        private TransportPool.Lease lease = null;
+
+        private Pin() {
+        }
+
+        private void release() {
+            if (lease != null) {
+                lease.close();
+            }
+            host = null;
+            lease = null;
+        }
+
+        /**
+         * Returns the connection to its pool and unpins the calling thread.
+         */
+        @Override
+        public void close() {
+            release();
+            if (pins.get() == this) {
+                pins.remove();
+            }
+        }
+    }
+
+    private static final class Host {
+        private final int index;
+        private final String name;
+        private final TransportPool pool;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double latencyNanos = 0.0;
+        private volatile long ejectedUntil = 0L;
+        private int consecutiveFailures = 0;
+
+        private Host(final int index, final String name, final TransportPool pool) {
+            this.index = index;
+            this.name = name;
+            this.pool = pool;
+        }
+
+        private synchronized void succeeded(final long nanos) {
+            latencyNanos = latencyNanos == 0.0 ? nanos : latencyNanos + EWMA_WEIGHT * (nanos - latencyNanos);
+            consecutiveFailures = 0;
+            ejectedUntil = 0L;
+        }
+    }
+}
@@ -2,34 +2,216 @@ package com.github.cclient.nifi.email;
 
 import org.apache.nifi.flowfile.FlowFile;
 
-import java.util.*;
-import java.util.stream.Collectors;
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
 
 public class Util {
+    private static final byte[][] HTML_ESCAPES = new byte[0x80][];
+    private static final byte[][] JSON_ESCAPES = new byte[0x80][];
+    private static final byte[][] CSV_QUOTED_ESCAPES = new byte[0x80][];
+    private static final byte[][] PLAIN_TEXT_ESCAPES = new byte[0x80][];
+
+    static {
+        HTML_ESCAPES['<'] = ascii("&lt;");
+        HTML_ESCAPES['>'] = ascii("&gt;");
+        HTML_ESCAPES['&'] = ascii("&amp;");
+        HTML_ESCAPES['"'] = ascii("&#34;");
+        HTML_ESCAPES['\''] = ascii("&#39;");
+
+        for (int c = 0; c < 0x20; c++) {
+            JSON_ESCAPES[c] = ascii(String.format("\\u%04x", c));
+        }
+        JSON_ESCAPES['\b'] = ascii("\\b");
+        JSON_ESCAPES['\t'] = ascii("\\t");
+        JSON_ESCAPES['\n'] = ascii("\\n");
+        JSON_ESCAPES['\f'] = ascii("\\f");
+        JSON_ESCAPES['\r'] = ascii("\\r");
+        JSON_ESCAPES['"'] = ascii("\\\"");
+        JSON_ESCAPES['\\'] = ascii("\\\\");
+
+        CSV_QUOTED_ESCAPES['"'] = ascii("\"\"");
+
+        for (int c = 0; c < 0x20; c++) {
+            PLAIN_TEXT_ESCAPES[c] = ascii(" ");
+        }
+        PLAIN_TEXT_ESCAPES[0x7F] = ascii(" ");
+    }
+
     public static String buildEmailHtmlBodyByAttr(List<FlowFile> flowFileList) {
-        List<Map<String, String>> attrList = flowFileList.stream().map(flowFile -> flowFile.getAttributes()).collect(Collectors.toList());
-        List<String> allKeys = attrList.stream().map(attr -> attr.keySet()).flatMap(keys -> keys.stream()).distinct().collect(Collectors.toList());
-        Collections.sort(allKeys);
-        StringBuilder sb = new StringBuilder();
-        sb.append("<table border=\"1\" cellspacing=\"0\" >");
-        sb.append("<thead align=\"center\" valign=\"middle\">");
-        sb.append("<tr>");
-        allKeys.forEach(key -> sb.append("<th>" + key + "</th>"));
-        sb.append("<th>entryDate</th>");
-        sb.append("<th>size</th>");
-        sb.append("</tr>");
-        sb.append("</thead>");
-        sb.append("<tbody>");
-        flowFileList.stream().forEach(flowFile -> {
-            Map<String, String> kvs = flowFile.getAttributes();
-            sb.append("<tr>");
-            allKeys.forEach(key -> sb.append("<td>" + kvs.getOrDefault(key, "") + "</td>"));
-            sb.append("<td>" + new Date(flowFile.getEntryDate()) + "</td>");
-            sb.append("<td>" + flowFile.getSize() + "</td>");
-            sb.append("</tr>");
-        });
-        sb.append("</tbody>");
-        sb.append("</table>");
-        return sb.toString();
+        ReusableBuffer out = new ReusableBuffer(8192);
+        try {
+            writeTable(new FlowFileTable(flowFileList), HtmlTableFormat.INSTANCE, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(out.array(), 0, out.size(), StandardCharsets.UTF_8);
+    }
+
+    static void writeTable(EmailTable table, TableFormat format, OutputStream out) throws IOException {
+        format.writeHeader(table.getColumns(), out);
+        final Iterator<String[]> rows = table.rows();
+        try {
+            while (rows.hasNext()) {
+                format.writeRow(rows.next(), out);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (rows instanceof Closeable) {
+                ((Closeable) rows).close();
+            }
+        }
+        writeNote(table, format, out);
+        format.writeFooter(out);
+    }
+
+    private static void writeNote(EmailTable table, TableFormat format, OutputStream out) throws IOException {
+        final String note = table.getNote();
+        if (note != null) {
+            format.writeNote(note, table.getColumns().size(), out);
+        }
+    }
+
+    /**
+     * Makes the table the content of the part. The table is rendered while the part is written, and the transfer
+     * encoding is fixed up front so that javax.mail does not render the whole body once just to pick one.
+     */
+    static void setTableContent(MimePart part, EmailTable table, TableFormat format, String contentType) throws MessagingException {
+        setTableContent(part, table, format, contentType, SendMetrics.DISABLED);
+    }
+
+    static void setTableContent(MimePart part, EmailTable table, TableFormat format, String contentType, SendMetrics metrics) throws MessagingException {
+        part.setDataHandler(new DataHandler(new TableDataSource(table, format, withUtf8Charset(contentType), null, metrics)));
+        part.setHeader("Content-Transfer-Encoding", "quoted-printable");
+    }
+
+    /**
+     * Makes the part multipart/alternative: a fixed-width plain text table followed by the table in the given format,
+     * for clients that only display one of them. Both versions are rendered while the part is written, from a single
+     * scan over the rows; see {@link ScannedTable}.
+     *
+     * @param contentType the content type of the rich version, typically text/html
+     */
+    static void setAlternativeTableContent(MimePart part, EmailTable table, TableFormat format, String contentType, SendMetrics metrics)
+            throws MessagingException {
+        final ScannedTable scanned = new ScannedTable(table);
+        final MimeBodyPart plainPart = new MimeBodyPart();
+        setTableContent(plainPart, scanned, new PlainTextTableFormat(scanned), "text/plain; charset=UTF-8", metrics);
+        final MimeBodyPart richPart = new MimeBodyPart();
+        setTableContent(richPart, scanned, format, contentType, metrics);
+
+        final MimeMultipart multipart = new MimeMultipart("alternative");
+        multipart.addBodyPart(plainPart);
+        multipart.addBodyPart(richPart);
+        part.setContent(multipart);
+    }
+
+    /**
+     * Makes the message multipart/mixed: a short summary as the body, and the table as an attachment that is rendered
+     * and compressed while the message is written. The attachment is always base64 encoded, so javax.mail does not
+     * read it once up front to choose an encoding.
+     *
+     * @param summary            the plain text summary; wrapped in a paragraph if the content type is HTML
+     * @param summaryContentType the content type of the summary
+     * @param attachment         the table
+     */
+    static void setTableAttachment(MimePart message, String summary, String summaryContentType, TableDataSource attachment) throws MessagingException {
+        final ContentType summaryType = new ContentType(withUtf8Charset(summaryContentType));
+        final MimeBodyPart summaryPart = new MimeBodyPart();
+        summaryPart.setContent(summaryType.match("text/html") ? "<p>" + summary + "</p>" : summary, summaryType.toString());
+
+        final MimeBodyPart attachmentPart = new MimeBodyPart();
+        attachmentPart.setDataHandler(new DataHandler(attachment));
+        attachmentPart.setFileName(attachment.getName());
+        attachmentPart.setDisposition(Part.ATTACHMENT);
+        attachmentPart.setHeader("Content-Transfer-Encoding", "base64");
+
+        message.setContent(new MimeMultipart(summaryPart, attachmentPart));
+    }
+
+    static String withUtf8Charset(String contentType) throws MessagingException {
+        ContentType type = new ContentType(contentType);
+        if (type.getParameter("charset") == null) {
+            type.setParameter("charset", "UTF-8");
+        }
+        return type.toString();
+    }
+
+    /**
+     * Writes the value as UTF-8, escaping the characters that are significant in HTML text and attribute values.
+     */
+    static void writeHtml(CharSequence value, OutputStream out) throws IOException {
+        writeUtf8(value, out, HTML_ESCAPES);
+    }
+
+    /**
+     * Writes the value as the UTF-8 content of a JSON string, without the enclosing quotes.
+     */
+    static void writeJson(CharSequence value, OutputStream out) throws IOException {
+        writeUtf8(value, out, JSON_ESCAPES);
+    }
+
+    /**
+     * Writes the value as the UTF-8 content of a quoted CSV field, without the enclosing quotes.
+     */
+    static void writeCsvQuoted(CharSequence value, OutputStream out) throws IOException {
+        writeUtf8(value, out, CSV_QUOTED_ESCAPES);
+    }
+
+    /**
+     * Writes the value as UTF-8, replacing control characters such as line breaks and tabs with spaces so that the
+     * value stays within its cell of a plain text table.
+     */
+    static void writePlainText(CharSequence value, OutputStream out) throws IOException {
+        writeUtf8(value, out, PLAIN_TEXT_ESCAPES);
+    }
+
+    /**
+     * @param escapes the replacement of each ASCII character that must be escaped, indexed by character, or null
+     */
+    static void writeUtf8(CharSequence value, OutputStream out, byte[][] escapes) throws IOException {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                final byte[] escaped = escapes == null ? null : escapes[c];
+                if (escaped == null) {
+                    out.write(c);
+                } else {
+                    out.write(escaped);
+                }
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.write(0xF0 | (codePoint >> 18));
+                out.write(0x80 | ((codePoint >> 12) & 0x3F));
+                out.write(0x80 | ((codePoint >> 6) & 0x3F));
+                out.write(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out.write('?');
+            } else {
+                out.write(0xE0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static byte[] ascii(String literal) {
+        return literal.getBytes(StandardCharsets.US_ASCII);
     }
 }
@@ -1,27 +1,51 @@
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
-import java.util.ArrayList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
 
+import javax.mail.Address;
+import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMessage.RecipientType;
+import javax.mail.internet.MimeMultipart;
 
 import com.github.cclient.nifi.email.SendEmail;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.RecordFieldType;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class TestSendEmail {
 
     SendEmailExtension processor;
     TestRunner runner;
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void setup() {
         processor = new SendEmailExtension();
@@ -48,6 +72,20 @@ public class TestSendEmail {
         assertEquals("Expected an attempt to send a single message", 1, processor.getMessages().size());
     }
 
+    @Test
+    public void testSmtpHostList() {
+        // verifies that SMTP Hostname accepts a list of host[:port] entries and rejects malformed ones
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "test@apache.org");
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "relay-a:2525, relay-b, [::1]:587");
+        runner.assertValid();
+
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "relay-a:smtp");
+        runner.assertNotValid();
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "relay-a:70000");
+        runner.assertNotValid();
+    }
+
     @Test
     public void testOutgoingMessage() throws Exception {
         // verifies that are set on the outgoing Message correctly
@@ -94,37 +132,894 @@ public class TestSendEmail {
         assertEquals("Expected no messages to be sent", 0, processor.getMessages().size());
     }
 
+    @Test
+    public void testAttributeTableBody() throws Exception {
+        // verifies that the attribute table is streamed into the body with every value escaped
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("a0", "<b>R&D</b>");
+        attributes.put("a1", "\u4e2d\u6587");
+        runner.enqueue("Some Text".getBytes(), attributes);
+        runner.enqueue("More Text".getBytes(), attributes);
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 2);
+        assertEquals("Expected a single message to be sent", 1, processor.getMessages().size());
+        final Message message = processor.getMessages().get(0);
+        message.saveChanges();
+        assertTrue(message.getContentType().contains("charset=UTF-8"));
+
+        final String body = (String) message.getContent();
+        assertTrue(body.startsWith("<table"));
+        assertTrue(body.contains("<th>a0</th><th>a1</th>"));
+        assertTrue(body.contains("<td>&lt;b&gt;R&amp;D&lt;/b&gt;</td><td>\u4e2d\u6587</td>"));
+        assertEquals(3, body.split("<tr>", -1).length - 1);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        assertTrue(out.toString("US-ASCII").contains("Content-Transfer-Encoding: quoted-printable"));
+    }
+
+    @Test
+    public void testColumnProjection() throws Exception {
+        // verifies that listed columns come first, in order, followed by the included attributes that are not excluded
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.COLUMNS, "source, entryDate");
+        runner.setProperty(SendEmail.INCLUDE_COLUMNS, ".*");
+        runner.setProperty(SendEmail.EXCLUDE_COLUMNS, "uuid|path|filename|size");
+
+        enqueueWithSource("a", "ops");
+        runner.run();
+
+        final String body = (String) processor.getMessages().get(0).getContent();
+        assertTrue(body, body.contains("<tr><th>source</th><th>entryDate</th><th>owner</th></tr>"));
+        assertTrue(body, body.contains("<tr><td>a</td><td>"));
+
+        runner.setProperty(SendEmail.INCLUDE_COLUMNS, "owner");
+        runner.removeProperty(SendEmail.COLUMNS);
+        enqueueWithSource("b", "dev");
+        runner.run();
+
+        final String narrowed = (String) processor.getMessages().get(1).getContent();
+        assertTrue(narrowed, narrowed.contains("<tr><th>owner</th></tr>"));
+        assertTrue(narrowed, narrowed.contains("<tr><td>dev</td></tr>"));
+    }
+
+    @Test
+    public void testContentExcerpt() throws Exception {
+        // verifies that the content column holds at most the configured bytes and lines of content, escaped
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.COLUMNS, "source");
+        runner.setProperty(SendEmail.CONTENT_EXCERPT_LINES, "2");
+        runner.assertNotValid();
+        runner.setProperty(SendEmail.CONTENT_EXCERPT_SIZE, "7 B");
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("source", "short");
+        runner.enqueue("<R&D>", attributes);
+        attributes.put("source", "lines");
+        runner.enqueue("a\nb\nc\nd", attributes);
+        attributes.put("source", "long");
+        runner.enqueue(new byte[1024 * 1024], attributes);
+        attributes.put("source", "cut");
+        runner.enqueue("\u4e2d\u6587\u4e2d\u6587", attributes);
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 4);
+        final String body = (String) processor.getMessages().get(0).getContent();
+        assertTrue(body, body.contains("<tr><th>source</th><th>content</th></tr>"));
+        assertTrue(body, body.contains("<tr><td>short</td><td>&lt;R&amp;D&gt;</td></tr>"));
+        assertTrue(body, body.contains("<tr><td>lines</td><td>a\nb\u2026</td></tr>"));
+        assertTrue(body, body.contains("<tr><td>long</td><td>\0\0\0\0\0\0\0\u2026</td></tr>"));
+        assertTrue(body, body.contains("<tr><td>cut</td><td>\u4e2d\u6587\u2026</td></tr>"));
+    }
+
+    @Test
+    public void testRecordRows() throws Exception {
+        // verifies that records become rows, in schema order or as listed, up to the maximum, followed by a note
+        final MockRecordParser reader = new MockRecordParser();
+        reader.addSchemaField("name", RecordFieldType.STRING);
+        reader.addSchemaField("age", RecordFieldType.INT);
+        reader.addRecord("alice", 30);
+        reader.addRecord("<bob>", 41);
+        reader.addRecord("carol", null);
+        runner.addControllerService("reader", reader);
+        runner.enableControllerService(reader);
+
+        processor.setWriteOnSend(true);
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.RECORD_READER, "reader");
+        runner.setProperty(SendEmail.ASYNC_SEND, "true");
+        runner.assertNotValid();
+        runner.setProperty(SendEmail.ASYNC_SEND, "false");
+        runner.setProperty(SendEmail.MAX_RECORDS, "4");
+
+        runner.enqueue("records");
+        runner.enqueue("more records");
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 2);
+        final String body = (String) processor.getMessages().get(0).getContent();
+        assertEquals("<table border=\"1\" cellspacing=\"0\" ><thead align=\"center\" valign=\"middle\"><tr><th>name</th><th>age</th></tr></thead><tbody>"
+                + "<tr><td>alice</td><td>30</td></tr><tr><td>&lt;bob&gt;</td><td>41</td></tr><tr><td>carol</td><td></td></tr>"
+                + "<tr><td>alice</td><td>30</td></tr><tr><td colspan=\"2\"><i>Truncated, 2 more records</i></td></tr></tbody></table>", body);
+
+        runner.setProperty(SendEmail.COLUMNS, "age");
+        runner.setProperty(SendEmail.MAX_RECORDS, "10");
+        runner.enqueue("records");
+        runner.run();
+
+        final String projected = (String) processor.getMessages().get(1).getContent();
+        assertTrue(projected, projected.contains("<tr><th>age</th></tr>"));
+        assertTrue(projected, projected.endsWith("<tr><td></td></tr></tbody></table>"));
+    }
+
+    @Test
+    public void testBodyTemplate() throws Exception {
+        // verifies that the template replaces the table, escaping {{values}} but not {{{values}}}
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.COLUMNS, "source, owner");
+        runner.setProperty(SendEmail.BODY_TEMPLATE, "<h1>{{#columns}}[{{.}}]{{/columns}}</h1>{{! one line per row }}"
+                + "{{#rows}}<p>{{source}} owned by {{{owner}}}:{{#cells}} {{.}}{{/cells}}{{missing}}</p>{{/rows}}<hr>");
+
+        enqueueWithSource("a<b", "<i>ops</i>");
+        enqueueWithSource("c", "dev");
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 2);
+        final String body = (String) processor.getMessages().get(0).getContent();
+        assertEquals("<h1>[source][owner]</h1>"
+                + "<p>a&lt;b owned by <i>ops</i>: a&lt;b &lt;i&gt;ops&lt;/i&gt;</p>"
+                + "<p>c owned by dev: c dev</p><hr>", body);
+
+        runner.setProperty(SendEmail.BODY_TEMPLATE, "{{#columns}}{{source}}{{/columns}}{{#rows}}{{/rows}}");
+        runner.assertNotValid();
+        runner.setProperty(SendEmail.BODY_TEMPLATE, "{{#rows}}{{#cells}}{{/rows}}");
+        runner.assertNotValid();
+        runner.setProperty(SendEmail.BODY_TEMPLATE, "<p>no rows</p>");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testPlainTextAlternative() throws Exception {
+        // verifies that the plain text table comes first, padded to the widest cell, followed by the HTML table
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.COLUMNS, "source, owner");
+        runner.setProperty(SendEmail.PLAIN_TEXT_ALTERNATIVE, "true");
+
+        enqueueWithSource("a<b", "\u8fd0\u7ef4");
+        enqueueWithSource("multi\nline", "dev");
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 2);
+        final Message message = processor.getMessages().get(0);
+        message.saveChanges();
+        final MimeMultipart multipart = (MimeMultipart) message.getContent();
+        assertTrue(multipart.getContentType(), multipart.getContentType().startsWith("multipart/alternative"));
+        assertEquals(2, multipart.getCount());
+
+        final BodyPart plain = multipart.getBodyPart(0);
+        assertTrue(plain.getContentType(), plain.isMimeType("text/plain"));
+        assertEquals("source     | owner\r\n"
+                + "-----------+------\r\n"
+                + "a<b        | \u8fd0\u7ef4\r\n"
+                + "multi line | dev\r\n", plain.getContent());
+
+        final BodyPart html = multipart.getBodyPart(1);
+        assertTrue(html.getContentType(), html.isMimeType("text/html"));
+        assertTrue((String) html.getContent(), ((String) html.getContent()).contains("<tr><td>a&lt;b</td><td>\u8fd0\u7ef4</td></tr>"));
+
+        runner.setProperty(SendEmail.CONTENT_TYPE, "text/plain");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testLargeTableAttached() throws Exception {
+        // verifies that tables over the row threshold are attached, compressed, with a summary as the body
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.COLUMNS, "source,owner");
+        runner.setProperty(SendEmail.ATTACHMENT_FORMAT, SendEmail.ATTACHMENT_CSV.getValue());
+        runner.setProperty(SendEmail.ATTACHMENT_ROW_THRESHOLD, "2");
+
+        enqueueWithSource("a", "ops, \"night\"");
+        enqueueWithSource("b", "dev");
+        enqueueWithSource("c", "qa");
+        runner.run();
+
+        final Message message = processor.getMessages().get(0);
+        message.saveChanges();
+        final MimeMultipart multipart = (MimeMultipart) message.getContent();
+        assertEquals(2, multipart.getCount());
+        assertTrue((String) multipart.getBodyPart(0).getContent(), ((String) multipart.getBodyPart(0).getContent()).contains("3 FlowFiles"));
+
+        final BodyPart attachment = multipart.getBodyPart(1);
+        assertEquals("flowfiles.csv.gz", attachment.getFileName());
+        assertTrue(attachment.getContentType().startsWith("application/gzip"));
+        try (InputStream in = new GZIPInputStream(attachment.getInputStream())) {
+            assertEquals("source,owner\r\na,\"ops, \"\"night\"\"\"\r\nb,dev\r\nc,qa\r\n", readFully(in));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        assertTrue(out.toString("US-ASCII").contains("Content-Transfer-Encoding: base64"));
+
+        runner.setProperty(SendEmail.ATTACHMENT_FORMAT, SendEmail.ATTACHMENT_NDJSON.getValue());
+        runner.setProperty(SendEmail.ATTACHMENT_COMPRESSION, "none");
+        enqueueWithSource("a", "ops");
+        enqueueWithSource("b", null);
+        enqueueWithSource("c", "qa");
+        runner.run();
+
+        final BodyPart json = ((MimeMultipart) processor.getMessages().get(1).getContent()).getBodyPart(1);
+        assertEquals("flowfiles.ndjson", json.getFileName());
+        assertEquals("{\"source\":\"a\",\"owner\":\"ops\"}\n{\"source\":\"b\",\"owner\":\"\"}\n{\"source\":\"c\",\"owner\":\"qa\"}\n",
+                readFully(json.getInputStream()));
+    }
+
+    @Test
+    public void testBinFlushedWhenFull() {
+        // verifies that FlowFiles accumulate across triggers until the bin holds Group Size of them
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.BIN_ENABLED, "true");
+        runner.setProperty(SendEmail.GROUP_SIZE, "3");
+        runner.setProperty(SendEmail.BIN_MAX_AGE, "1 hour");
+
+        runner.enqueue("1".getBytes());
+        runner.enqueue("2".getBytes());
+        runner.run(1, false, true);
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(SendEmail.REL_SUCCESS, 0);
+        assertEquals(0, processor.getMessages().size());
+
+        runner.enqueue("3".getBytes());
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 3);
+        assertEquals("Expected one message for the whole bin", 1, processor.getMessages().size());
+    }
+
+    @Test
+    public void testBinFlushedWhenOld() throws Exception {
+        // verifies that a bin is sent once its oldest FlowFile reaches Bin Max Age, even if nothing else is queued
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.BIN_ENABLED, "true");
+        runner.setProperty(SendEmail.BIN_MAX_AGE, "50 ms");
+
+        runner.enqueue("1".getBytes());
+        runner.run(1, false, true);
+        runner.assertTransferCount(SendEmail.REL_SUCCESS, 0);
+
+        Thread.sleep(100L);
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 1);
+        assertEquals(1, processor.getMessages().size());
+    }
+
+    @Test
+    public void testBinRolledBackOnStop() {
+        // verifies that un-flushed bins return their FlowFiles to the queue when the processor stops
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.BIN_ENABLED, "true");
+        runner.setProperty(SendEmail.PARTITION_BY, "${uuid}");
+        runner.setProperty(SendEmail.BIN_MAX_AGE, "1 hour");
+
+        runner.enqueue("1".getBytes());
+        runner.enqueue("2".getBytes());
+        runner.run();
+
+        runner.assertTransferCount(SendEmail.REL_SUCCESS, 0);
+        assertEquals(2, runner.getQueueSize().getObjectCount());
+        assertEquals(0, processor.getMessages().size());
+    }
+
+    @Test
+    public void testAdaptiveGroupSize() throws Exception {
+        // verifies that a first FlowFile is sent at once, and later ones below Min Group Size wait for the Target Email Interval
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.ADAPTIVE_GROUP_SIZE, "true");
+        runner.setProperty(SendEmail.MIN_GROUP_SIZE, "5");
+        runner.setProperty(SendEmail.TARGET_EMAIL_INTERVAL, "300 millis");
+
+        runner.enqueue("Some Text".getBytes());
+        runner.run(1, false, true);
+        assertEquals(1, processor.getMessages().size());
+
+        runner.enqueue("Some Text".getBytes());
+        runner.run(1, false, false);
+        assertEquals(1, processor.getMessages().size());
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+
+        Thread.sleep(350L);
+        runner.run(1, true, false);
+        assertEquals(2, processor.getMessages().size());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 2);
+
+        runner.setProperty(SendEmail.BIN_ENABLED, "true");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testBatchesPerTrigger() throws Exception {
+        // verifies that one trigger pulls several batches, renders their emails ahead of sending and routes each batch
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.GROUP_SIZE, "2");
+        runner.setProperty(SendEmail.BATCHES_PER_TRIGGER, "3");
+        runner.setProperty(SendEmail.RENDER_THREADS, "2");
+        processor.setWriteOnSend(true);
+
+        for (int i = 0; i < 7; i++) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put("batch.index", "row-" + i);
+            runner.enqueue("Some Text".getBytes(), attributes);
+        }
+        runner.run(1, false, true);
+
+        assertEquals(3, processor.getMessages().size());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 6);
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+        for (int i = 0; i < 3; i++) {
+            final String body = readFully(processor.getMessages().get(i).getInputStream());
+            assertTrue(body.contains("row-" + (2 * i)));
+            assertTrue(body.contains("row-" + (2 * i + 1)));
+        }
+
+        runner.run(1, true, false);
+        assertEquals(4, processor.getMessages().size());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 7);
+
+        runner.setProperty(SendEmail.ASYNC_SEND, "true");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testBatchesPerTriggerCommitsEachBatch() throws Exception {
+        // verifies that a trigger failing on its last batch keeps the batches already sent routed
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.GROUP_SIZE, "2");
+        runner.setProperty(SendEmail.BATCHES_PER_TRIGGER, "3");
+        processor.setFailAfter(2);
+
+        for (int i = 0; i < 6; i++) {
+            runner.enqueue("Some Text".getBytes());
+        }
+        try {
+            runner.run(1, false, true);
+            fail("the third send fails unexpectedly");
+        } catch (AssertionError e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(2, processor.getSent().size());
+        runner.assertTransferCount(SendEmail.REL_SUCCESS, 4);
+        assertEquals(2, runner.getQueueSize().getObjectCount());
+    }
+
+    @Test
+    public void testPartitionBy() throws Exception {
+        // verifies that each partition gets its own email, with recipients and subject taken from its first FlowFile
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.PARTITION_BY, "${source}");
+        runner.setProperty(SendEmail.PARTITION_RECIPIENTS_ATTRIBUTE, "owner");
+        runner.setProperty(SendEmail.PARTITION_SUBJECT_ATTRIBUTE, "source");
+
+        enqueueWithSource("a", "a-team@apache.org");
+        enqueueWithSource("b", null);
+        enqueueWithSource("a", "a-team@apache.org");
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 3);
+        assertEquals(2, processor.getMessages().size());
+        // partitions are sent least recently used first
+        final Message a = processor.getMessages().get(1);
+        assertEquals("a", a.getSubject());
+        assertEquals("a-team@apache.org", a.getRecipients(RecipientType.TO)[0].toString());
+        assertEquals(3, ((String) a.getContent()).split("<tr>", -1).length - 1);
+        final Message b = processor.getMessages().get(0);
+        assertEquals("b", b.getSubject());
+        assertEquals("recipient@apache.org", b.getRecipients(RecipientType.TO)[0].toString());
+    }
+
+    @Test
+    public void testFanOutByRecipient() throws Exception {
+        // verifies that each owner gets one email holding only their rows, and FlowFiles without an owner go to the configured To
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "ops@apache.org");
+        runner.setProperty(SendEmail.FAN_OUT_ATTRIBUTE, "owner.email");
+        runner.setProperty(SendEmail.MAX_OPEN_PARTITIONS, "1");
+        processor.setWriteOnSend(true);
+
+        final String[] owners = {"team-a@apache.org", "team-b@apache.org", null, "team-a@apache.org", "team-c@apache.org"};
+        for (int i = 0; i < owners.length; i++) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put("row.id", "row-" + i);
+            if (owners[i] != null) {
+                attributes.put("owner.email", owners[i]);
+            }
+            runner.enqueue("Some Text".getBytes(), attributes);
+        }
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 5);
+        assertEquals("Expected one email per owner despite Max Open Partitions", 4, processor.getMessages().size());
+        final Map<String, String> bodies = new HashMap<>();
+        for (final Message message : processor.getMessages()) {
+            assertEquals(1, message.getRecipients(RecipientType.TO).length);
+            bodies.put(message.getRecipients(RecipientType.TO)[0].toString(), readFully(message.getInputStream()));
+        }
+        final String teamA = bodies.get("team-a@apache.org");
+        assertTrue(teamA.contains("row-0") && teamA.contains("row-3"));
+        assertFalse(teamA.contains("row-1") || teamA.contains("row-2") || teamA.contains("row-4"));
+        assertTrue(bodies.get("team-b@apache.org").contains("row-1"));
+        assertFalse(bodies.get("team-b@apache.org").contains("row-0"));
+        assertTrue(bodies.get("ops@apache.org").contains("row-2"));
+        assertTrue(bodies.get("team-c@apache.org").contains("row-4"));
+
+        runner.setProperty(SendEmail.PARTITION_BY, "${owner.email}");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testPartitionEvictsLeastRecentlyUsed() {
+        // verifies that only Max Open Partitions are held open, so an evicted key is sent and reopened
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.PARTITION_BY, "${source}");
+        runner.setProperty(SendEmail.MAX_OPEN_PARTITIONS, "1");
+
+        enqueueWithSource("a", null);
+        enqueueWithSource("b", null);
+        enqueueWithSource("a", null);
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 3);
+        assertEquals(3, processor.getMessages().size());
+    }
+
+    @Test
+    public void testSummarizeRows() throws Exception {
+        // verifies that FlowFiles with the same key attributes collapse into one row, most frequent first
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.SUMMARIZE, "true");
+        runner.setProperty(SendEmail.SUMMARY_KEY_ATTRIBUTES, "source");
+        runner.setProperty(SendEmail.SUMMARY_TOP_N, "1");
+
+        enqueueWithSource("a", null);
+        enqueueWithSource("b", null);
+        enqueueWithSource("b", null);
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 3);
+        assertEquals(1, processor.getMessages().size());
+        final String body = (String) processor.getMessages().get(0).getContent();
+        assertTrue(body.contains("<th>source</th><th>count</th><th>firstEntryDate</th><th>lastEntryDate</th><th>totalSize</th>"));
+        assertTrue(body.contains("<tr><td>b</td><td>2</td>"));
+        assertEquals(2, body.split("<tr>", -1).length - 1);
+    }
+
+    @Test
+    public void testSuppression() throws Exception {
+        // verifies that FlowFiles with a key already emailed are left out and counted, and that nothing is sent if all are
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.SUPPRESSION_KEY_ATTRIBUTES, "source");
+
+        enqueueWithSource("a", null);
+        enqueueWithSource("a", null);
+        runner.run(1, false, true);
+        assertEquals(1, processor.getMessages().size());
+
+        enqueueWithSource("a", null);
+        enqueueWithSource("b", null);
+        runner.run(1, false, false);
+        assertEquals(2, processor.getMessages().size());
+        final String body = readFully(processor.getMessages().get(1).getInputStream());
+        assertTrue(body.contains(">b<"));
+        assertTrue(!body.contains(">a<"));
+        assertTrue(body.contains("Still occurring: 1 more FlowFile(s)"));
+
+        enqueueWithSource("b", null);
+        runner.run(1, true, false);
+        assertEquals(2, processor.getMessages().size());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 5);
+    }
+
+    @Test
+    public void testClusterDigest() throws Exception {
+        // verifies that a non-primary node only folds FlowFiles into cluster state, and the primary sends one digest of all nodes
+        final SendEmailExtension primary = new SendEmailExtension();
+        final TestRunner primaryRunner = TestRunners.newTestRunner(primary);
+        for (final TestRunner node : new TestRunner[]{runner, primaryRunner}) {
+            node.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+            node.setProperty(SendEmail.FROM, "test@apache.org");
+            node.setProperty(SendEmail.TO, "recipient@apache.org");
+            node.setProperty(SendEmail.CLUSTER_DIGEST, "true");
+            node.setProperty(SendEmail.SUMMARY_KEY_ATTRIBUTES, "source");
+            node.setClustered(true);
+        }
+        runner.setPrimaryNode(false);
+        primaryRunner.setPrimaryNode(true);
+
+        enqueueWithSource("a", null);
+        enqueueWithSource("a", null);
+        enqueueWithSource("b", null);
+        runner.run();
+        assertTrue(processor.getMessages().isEmpty());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 3);
+
+        // the mock state managers are per runner; hand the first node's cluster state to the primary
+        primaryRunner.getStateManager().setState(runner.getStateManager().getState(Scope.CLUSTER).toMap(), Scope.CLUSTER);
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("source", "a");
+        primaryRunner.enqueue("a".getBytes(), attributes);
+        primaryRunner.run(1, false, true);
+
+        assertEquals(1, primary.getMessages().size());
+        final String body = readFully(primary.getMessages().get(0).getInputStream());
+        assertTrue(body.indexOf(">a<") < body.indexOf(">b<"));
+        assertTrue(body.contains(">3<"));
+        primaryRunner.getStateManager().assertStateSet("digest.lastSent", Scope.CLUSTER);
+        assertEquals(1, primaryRunner.getStateManager().getState(Scope.CLUSTER).toMap().size());
+
+        primaryRunner.enqueue("a".getBytes(), attributes);
+        primaryRunner.run(1, true, false);
+        assertEquals("The next digest is not due yet", 1, primary.getMessages().size());
+        primaryRunner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 2);
+    }
+
+    @Test
+    public void testAsynchronousSend() throws Exception {
+        // verifies that FlowFiles are held while the sender threads send, and routed on a later trigger
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.ASYNC_SEND, "true");
+        runner.setProperty(SendEmail.SENDER_THREADS, "1");
+
+        processor.setException(new MessagingException("Forced failure from send()"));
+        runner.enqueue("Some Text".getBytes());
+        runner.run(1, false, true);
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (processor.getMessages().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, processor.getMessages().size());
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(SendEmail.REL_FAILURE, 0);
+
+        Thread.sleep(50L);
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testThrottlingReplyReturnsFlowFilesToQueue() {
+        // verifies that a 451 reply backs off and keeps the FlowFiles queued instead of routing them to failure
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+
+        processor.setException(new SMTPSendFailedException("DATA", 451, "451 4.7.1 Rate limited, try again later", null, null, null, null));
+        runner.enqueue("Some Text".getBytes());
+        runner.run();
+
+        assertEquals(1, processor.getMessages().size());
+        runner.assertTransferCount(SendEmail.REL_FAILURE, 0);
+        runner.assertTransferCount(SendEmail.REL_SUCCESS, 0);
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+    }
+
+    @Test
+    public void testPartiallySentEmailRoutedToSuccess() throws Exception {
+        // verifies that an email delivered to some of its recipients counts as sent
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org, unknown@apache.org");
+
+        processor.setException(new SMTPSendFailedException(".", 250, "250 OK", null,
+                InternetAddress.parse("recipient@apache.org"), null, InternetAddress.parse("unknown@apache.org")));
+        runner.enqueue("Some Text".getBytes());
+        runner.run();
+
+        assertEquals(1, processor.getMessages().size());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 1);
+    }
+
+    @Test
+    public void testOversizedEmailSplit() {
+        // verifies that an email rejected as too large is sent again as two halves in the same trigger
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("detail", new String(new char[5000]).replace('\0', 'x'));
+        for (int i = 0; i < 4; i++) {
+            runner.enqueue("Some Text".getBytes(), attributes);
+        }
+        processor.setRejectAbove(15000);
+        runner.run();
+
+        assertEquals("Expected the whole group, then each half", 3, processor.getMessages().size());
+        assertEquals(2, processor.getSent().size());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 4);
+
+        runner.setProperty(SendEmail.MIN_SPLIT_SIZE, "4");
+        for (int i = 0; i < 4; i++) {
+            runner.enqueue("Some Text".getBytes(), attributes);
+        }
+        runner.run();
+        runner.assertTransferCount(SendEmail.REL_FAILURE, 4);
+    }
+
+    @Test
+    public void testRecipientRejected552NotSplit() throws Exception {
+        // verifies that a 552 to RCPT, a full mailbox rather than a message too large, routes the group to failure unsplit
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+
+        final InternetAddress recipient = new InternetAddress("recipient@apache.org");
+        processor.setException(new SendFailedException("Invalid Addresses",
+                new SMTPAddressFailedException(recipient, "RCPT TO:<recipient@apache.org>", 552, "552 5.2.2 Mailbox full"),
+                null, null, new Address[]{recipient}));
+        for (int i = 0; i < 4; i++) {
+            runner.enqueue("Some Text".getBytes());
+        }
+        runner.run();
+
+        assertEquals(1, processor.getMessages().size());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_FAILURE, 4);
+    }
+
+    @Test
+    public void testOversizedEmailSplitAsynchronously() throws Exception {
+        // verifies that with Asynchronous Send the halves of an email rejected as too large go back to the sender threads
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.ASYNC_SEND, "true");
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("detail", new String(new char[5000]).replace('\0', 'x'));
+        for (int i = 0; i < 4; i++) {
+            runner.enqueue("Some Text".getBytes(), attributes);
+        }
+        processor.setRejectAbove(15000);
+        runner.run(1, false, true);
+        awaitSize(processor.getMessages(), 1);
+        Thread.sleep(50L);
+
+        runner.run(1, false, false);
+        runner.assertTransferCount(SendEmail.REL_SUCCESS, 0);
+        awaitSize(processor.getSent(), 2);
+        Thread.sleep(50L);
+
+        runner.run(1, true, false);
+        assertEquals("Expected the whole group, then each half", 3, processor.getMessages().size());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 4);
+    }
+
+    @Test
+    public void testRateLimit() {
+        // verifies that emails over Max Emails Per Interval wait in the queue
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.PARTITION_BY, "${source}");
+        runner.setProperty(SendEmail.MAX_EMAILS_PER_INTERVAL, "1");
+        runner.setProperty(SendEmail.RATE_LIMIT_INTERVAL, "1 hour");
+
+        enqueueWithSource("a", null);
+        enqueueWithSource("b", null);
+        runner.run();
+
+        assertEquals(1, processor.getMessages().size());
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 1);
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+    }
+
+    @Test
+    public void testMetricsCounters() {
+        // verifies that emails, FlowFiles and stage times are published as counters only when Metrics is enabled
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.enqueue("Some Text".getBytes());
+        runner.run();
+        assertNull(runner.getCounterValue("Emails Sent"));
+
+        runner.setProperty(SendEmail.METRICS, SendEmail.METRICS_COUNTERS.getValue());
+        enqueueWithSource("a", null);
+        enqueueWithSource("b", null);
+        runner.run();
+
+        assertEquals(Long.valueOf(1), runner.getCounterValue("Emails Sent"));
+        assertEquals(Long.valueOf(2), runner.getCounterValue("FlowFiles Emailed"));
+        assertNotNull(runner.getCounterValue("Time in MIME Build (micros)"));
+    }
+
+    @Test
+    public void testOutbox() throws Exception {
+        // verifies that FlowFiles are routed to success once spooled, and that the spool is sent in order after a restart
+        final String directory = temporaryFolder.newFolder("outbox").getAbsolutePath();
+        configureOutbox(runner, directory);
+        processor.setException(new MessagingException("Forced failure from send()"));
+
+        enqueueWithSource("a", null);
+        enqueueWithSource("b", null);
+        runner.run(1, false, true);
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 2);
+        awaitSize(processor.getMessages(), 2);
+        runner.run(1, true, false);
+        assertTrue(processor.getSent().isEmpty());
+
+        final SendEmailExtension restarted = new SendEmailExtension();
+        restarted.setWriteOnSend(true);
+        final TestRunner restartedRunner = TestRunners.newTestRunner(restarted);
+        configureOutbox(restartedRunner, directory);
+        restartedRunner.run(1, false, true);
+        awaitSize(restarted.getSent(), 2);
+        restartedRunner.run(1, true, false);
+
+        assertEquals(2, restarted.getSent().size());
+        assertTrue(readFully(restarted.getSent().get(0).getInputStream()).contains(">a<"));
+        assertTrue(readFully(restarted.getSent().get(1).getInputStream()).contains(">b<"));
+    }
+
+    private static void configureOutbox(final TestRunner runner, final String directory) {
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.PARTITION_BY, "${source}");
+        runner.setProperty(SendEmail.OUTBOX_DIRECTORY, directory);
+        runner.setProperty(SendEmail.OUTBOX_RETRY_INTERVAL, "50 millis");
+    }
+
+    private static void awaitSize(final List<?> list, final int size) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+    }
+
+    private static String readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private void enqueueWithSource(final String source, final String owner) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("source", source);
+        if (owner != null) {
+            attributes.put("owner", owner);
+        }
+        runner.enqueue(source.getBytes(), attributes);
+    }
+
     /**
      * Extension to SendEmail that stubs out the calls to
      * Transport.sendMessage().
      *
      * <p>
      * All sent messages are records in a list available via the
-     * {@link #getMessages()} method.</p>
+     * {@link #getMessages()} method, and the ones that did not fail via
+     * {@link #getSent()}.</p>
      * <p> Calling
      * {@link #setException(MessagingException)} will cause the supplied exception to be
-     * thrown when sendMessage is invoked.
+     * thrown when sendMessage is invoked, and {@link #setRejectAbove(int)} rejects
+     * messages over the given size with a 552 reply. Calling {@link #setWriteOnSend(boolean)}
+     * records a copy of each message as written when it is sent, for bodies that can
+     * only be rendered before the session is committed.
      * </p>
      */
     private static final class SendEmailExtension extends SendEmail {
-        private MessagingException e;
-        private ArrayList<Message> messages = new ArrayList<>();
+        private volatile MessagingException e;
+        private boolean writeOnSend = false;
+        private int rejectAbove = 0;
+        private int failAfter = 0;
+        private final List<Message> messages = new CopyOnWriteArrayList<>();
+        private final List<Message> sent = new CopyOnWriteArrayList<>();
 
         @Override
         protected void send(Message msg) throws MessagingException {
+            if (writeOnSend) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    msg.saveChanges();
+                    msg.writeTo(out);
+                } catch (IOException ioe) {
+                    throw new MessagingException("Failed to write the message", ioe);
+                }
+                msg = new MimeMessage(null, new ByteArrayInputStream(out.toByteArray()));
+            }
+            if (failAfter > 0 && sent.size() >= failAfter) {
+                throw new IllegalStateException("Unexpected failure after " + failAfter + " emails");
+            }
+            MessagingException e = this.e;
             messages.add(msg);
-            if (this.e != null) {
+            if (e == null && rejectAbove > 0) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    msg.writeTo(out);
+                } catch (IOException ioe) {
+                    throw new MessagingException("Failed to write the message", ioe);
+                }
+                if (out.size() > rejectAbove) {
+                    e = new SMTPSendFailedException("DATA", 552, "552 5.3.4 Message size exceeds fixed limit", null, null, null, null);
+                }
+            }
+            if (e != null) {
                 throw e;
             }
+            sent.add(msg);
         }
 
         void setException(final MessagingException e) {
             this.e = e;
         }
 
+        void setWriteOnSend(final boolean writeOnSend) {
+            this.writeOnSend = writeOnSend;
+        }
+
+        void setRejectAbove(final int bytes) {
+            this.rejectAbove = bytes;
+        }
+
+        void setFailAfter(final int emails) {
+            this.failAfter = emails;
+        }
+
         List<Message> getMessages() {
             return messages;
         }
+
+        List<Message> getSent() {
+            return sent;
+        }
     }
 
 }
\ No newline at end of file
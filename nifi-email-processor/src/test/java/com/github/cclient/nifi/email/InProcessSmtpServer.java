@@ -0,0 +1,193 @@
+package com.github.cclient.nifi.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * An SMTP server on the loopback interface for tests, counting the connections opened to it and still open, and the
+ * messages it accepted. Each DATA command can be delayed to simulate a slow relay, recipients can be rejected and
+ * connections can be dropped before the greeting to simulate a relay that does not answer.
+ */
+final class InProcessSmtpServer implements AutoCloseable {
+
+    private final SMTPServer server;
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private volatile long latencyMillis = 0;
+    private volatile String rejectedRecipient = null;
+    private volatile boolean dropConnections = false;
+
+    InProcessSmtpServer() throws IOException {
+        this(freePort());
+    }
+
+    /**
+     * @param port the port to listen on, to take the place of a stopped server
+     */
+    InProcessSmtpServer(final int port) {
+        this.server = new SMTPServer(this::newHandler) {
+            @Override
+            protected ServerSocket createServerSocket() throws IOException {
+                final ServerSocket socket = new CountingServerSocket();
+                socket.setReuseAddress(true);
+                socket.bind(new InetSocketAddress(getBindAddress(), getPort()), getBacklog());
+                return socket;
+            }
+        };
+        this.server.setBindAddress(InetAddress.getLoopbackAddress());
+        this.server.setPort(port);
+        this.server.setDisableReceivedHeaders(true);
+    }
+
+    InProcessSmtpServer start() {
+        server.start();
+        return this;
+    }
+
+    int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * @param millis how long each DATA command waits before it is answered
+     */
+    void setLatencyMillis(final long millis) {
+        this.latencyMillis = millis;
+    }
+
+    /**
+     * @param recipient a recipient to reject with 550, or {@code null} to accept all
+     */
+    void setRejectedRecipient(final String recipient) {
+        this.rejectedRecipient = recipient;
+    }
+
+    /**
+     * @param drop whether new connections are closed as soon as they are accepted, without a greeting
+     */
+    void setDropConnections(final boolean drop) {
+        this.dropConnections = drop;
+    }
+
+    /**
+     * @param millis how long a connection may stay idle before the server drops it
+     */
+    void setConnectionTimeout(final int millis) {
+        server.setConnectionTimeout(millis);
+    }
+
+    int getConnectionsOpened() {
+        return opened.get();
+    }
+
+    int getOpenConnections() {
+        return open.get();
+    }
+
+    int getAcceptedMessages() {
+        return accepted.get();
+    }
+
+    /**
+     * Waits up to five seconds for the number of open connections to drop to the given number.
+     */
+    boolean awaitOpenConnections(final int connections) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (open.get() > connections && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        return open.get() <= connections;
+    }
+
+    @Override
+    public void close() {
+        if (server.isRunning()) {
+            server.stop();
+        }
+    }
+
+    private MessageHandler newHandler(final MessageContext context) {
+        return new MessageHandler() {
+            @Override
+            public void from(final String from) {
+            }
+
+            @Override
+            public void recipient(final String recipient) {
+                if (recipient.equalsIgnoreCase(rejectedRecipient)) {
+                    throw new RejectException(550, "5.1.1 No such user");
+                }
+            }
+
+            @Override
+            public void data(final InputStream data) throws IOException {
+                final byte[] buffer = new byte[8192];
+                while (data.read(buffer) != -1) {
+                    // discard
+                }
+                final long latency = latencyMillis;
+                if (latency > 0) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(latency);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                accepted.incrementAndGet();
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private final class CountingServerSocket extends ServerSocket {
+        private CountingServerSocket() throws IOException {
+            super();
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            while (true) {
+                final Socket socket = new Socket() {
+                    private boolean counted = true;
+
+                    @Override
+                    public synchronized void close() throws IOException {
+                        if (counted) {
+                            counted = false;
+                            open.decrementAndGet();
+                        }
+                        super.close();
+                    }
+                };
+                implAccept(socket);
+                opened.incrementAndGet();
+                open.incrementAndGet();
+                if (!dropConnections) {
+                    return socket;
+                }
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.cclient.nifi.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestOutbox {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testFailedSyncIsNotSentLater() throws Exception {
+        // verifies that emails whose sync failed are taken back out of the outbox, before and after a restart
+        final String directory = temporaryFolder.newFolder("outbox").getAbsolutePath();
+        final SpoolingProcessor processor = new SpoolingProcessor();
+        final TestRunner runner = newRunner(processor, directory);
+
+        processor.failSyncs = true;
+        runner.enqueue("a".getBytes(), Collections.singletonMap("source", "a"));
+        runner.enqueue("b".getBytes(), Collections.singletonMap("source", "b"));
+        runner.run(1, false, true);
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_FAILURE, 2);
+
+        processor.failSyncs = false;
+        runner.enqueue("c".getBytes(), Collections.singletonMap("source", "c"));
+        runner.run(1, false, false);
+        runner.assertTransferCount(SendEmail.REL_SUCCESS, 1);
+        awaitSize(processor.sent, 1);
+        Thread.sleep(200L);
+        runner.run(1, true, false);
+        assertEquals(1, processor.sent.size());
+        assertTrue(body(processor.sent.get(0)).contains(">c<"));
+
+        final SpoolingProcessor restarted = new SpoolingProcessor();
+        final TestRunner restartedRunner = newRunner(restarted, directory);
+        restartedRunner.run(1, false, true);
+        Thread.sleep(200L);
+        restartedRunner.run(1, true, false);
+        assertTrue(restarted.sent.isEmpty());
+    }
+
+    private static TestRunner newRunner(final SendEmail processor, final String directory) {
+        final TestRunner runner = TestRunners.newTestRunner(processor);
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "smtp-host");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        runner.setProperty(SendEmail.PARTITION_BY, "${source}");
+        runner.setProperty(SendEmail.OUTBOX_DIRECTORY, directory);
+        runner.setProperty(SendEmail.OUTBOX_RETRY_INTERVAL, "50 millis");
+        return runner;
+    }
+
+    private static void awaitSize(final List<?> list, final int size) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+    }
+
+    private static String body(final Message message) throws IOException, MessagingException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toString("UTF-8");
+    }
+
+    private static final class SpoolingProcessor extends SendEmail {
+        private volatile boolean failSyncs = false;
+        private final List<Message> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        Outbox openOutbox(final Path directory, final long segmentBytes) throws IOException {
+            return new Outbox(directory, segmentBytes, getLogger()) {
+                @Override
+                void force(final FileChannel channel) throws IOException {
+                    if (failSyncs) {
+                        throw new IOException("Forced failure from force()");
+                    }
+                    super.force(channel);
+                }
+            };
+        }
+
+        @Override
+        protected void send(final Message msg) {
+            sent.add(msg);
+        }
+    }
+}
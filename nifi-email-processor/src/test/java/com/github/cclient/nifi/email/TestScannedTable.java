@@ -0,0 +1,66 @@
+package com.github.cclient.nifi.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.BodyPart;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Test;
+
+public class TestScannedTable {
+
+    @Test
+    public void testAlternativesReadRowsOnce() throws Exception {
+        final AtomicInteger scans = new AtomicInteger();
+        final EmailTable table = new EmailTable() {
+            @Override
+            public List<String> getColumns() {
+                return Arrays.asList("source", "owner");
+            }
+
+            @Override
+            public int size() {
+                return 2;
+            }
+
+            @Override
+            public Iterator<String[]> rows() {
+                scans.incrementAndGet();
+                return Arrays.asList(new String[]{"a<b", "\u8fd0\u7ef4"}, new String[]{"", "dev"}).iterator();
+            }
+
+            @Override
+            public String getNote() {
+                return "Truncated, 1 more record";
+            }
+        };
+
+        final MimeBodyPart part = new MimeBodyPart();
+        Util.setAlternativeTableContent(part, table, HtmlTableFormat.INSTANCE, "text/html", SendMetrics.DISABLED);
+        final MimeMultipart multipart = (MimeMultipart) part.getContent();
+        final BodyPart plain = multipart.getBodyPart(0);
+        final BodyPart html = multipart.getBodyPart(1);
+        assertEquals(0, scans.get());
+
+        assertEquals("source | owner\r\n"
+                + "-------+------\r\n"
+                + "a<b    | \u8fd0\u7ef4\r\n"
+                + "       | dev\r\n"
+                + "Truncated, 1 more record\r\n", plain.getContent());
+        final String rich = (String) html.getContent();
+        assertTrue(rich, rich.contains("<tr><td>a&lt;b</td><td>\u8fd0\u7ef4</td></tr>"));
+        assertTrue(rich, rich.contains("Truncated, 1 more record"));
+
+        // writing the message again renders both versions from the same scan
+        part.writeTo(new ByteArrayOutputStream());
+        assertEquals(1, scans.get());
+    }
+}
@@ -0,0 +1,176 @@
+package com.github.cclient.nifi.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTransportPool {
+
+    private InProcessSmtpServer server;
+    private Session session;
+
+    @Before
+    public void setup() throws Exception {
+        server = new InProcessSmtpServer().start();
+        session = Session.getInstance(new Properties());
+    }
+
+    @After
+    public void teardown() {
+        server.close();
+    }
+
+    @Test
+    public void testConnectionReused() throws Exception {
+        try (TransportPool pool = newPool(1, 60_000L, 100)) {
+            for (int i = 0; i < 3; i++) {
+                pool.send(newMessage());
+            }
+        }
+        assertEquals(3, server.getAcceptedMessages());
+        assertEquals(1, server.getConnectionsOpened());
+    }
+
+    @Test
+    public void testConnectionRecycledAfterMaxMessages() throws Exception {
+        try (TransportPool pool = newPool(1, 60_000L, 2)) {
+            for (int i = 0; i < 5; i++) {
+                pool.send(newMessage());
+            }
+            assertEquals(5, server.getAcceptedMessages());
+            assertEquals(3, server.getConnectionsOpened());
+            assertTrue(server.awaitOpenConnections(1));
+        }
+    }
+
+    @Test
+    public void testDroppedConnectionReplacedAfterNoop() throws Exception {
+        // the server drops the idle connection long before the pool would evict it, so only the NOOP notices
+        server.setConnectionTimeout(200);
+        try (TransportPool pool = newPool(1, 60_000L, 100)) {
+            pool.send(newMessage());
+            assertTrue(server.awaitOpenConnections(0));
+            pool.send(newMessage());
+        }
+        assertEquals(2, server.getAcceptedMessages());
+        assertEquals(2, server.getConnectionsOpened());
+    }
+
+    @Test
+    public void testIdleConnectionEvicted() throws Exception {
+        try (TransportPool pool = newPool(1, 100L, 100)) {
+            pool.send(newMessage());
+            assertEquals(1, server.getOpenConnections());
+            assertTrue(server.awaitOpenConnections(0));
+        }
+    }
+
+    @Test
+    public void testBorrowTimesOut() throws Exception {
+        try (TransportPool pool = new TransportPool(session, "127.0.0.1", server.getPort(), 1, 60_000L, 100, 200L, new SendMetrics())) {
+            try (TransportPool.Lease lease = pool.lease()) {
+                lease.send(newMessage());
+                final long start = System.currentTimeMillis();
+                try {
+                    pool.send(newMessage());
+                    fail("the only connection is leased");
+                } catch (MessagingException e) {
+                    assertTrue(e.getMessage().startsWith("Timed out"));
+                }
+                assertTrue(System.currentTimeMillis() - start >= 200L);
+            }
+            pool.send(newMessage());
+        }
+        assertEquals(2, server.getAcceptedMessages());
+        assertEquals(1, server.getConnectionsOpened());
+    }
+
+    @Test
+    public void testLeaseKeepsConnectionAfterRejection() throws Exception {
+        server.setRejectedRecipient("nobody@apache.org");
+        try (TransportPool pool = newPool(1, 60_000L, 100); TransportPool.Lease lease = pool.lease()) {
+            lease.send(newMessage());
+            final MimeMessage rejected = newMessage();
+            rejected.setRecipient(Message.RecipientType.TO, new InternetAddress("nobody@apache.org"));
+            try {
+                lease.send(rejected);
+                fail("the recipient is rejected");
+            } catch (MessagingException e) {
+                assertEquals(550, SmtpReplies.replyCode(e));
+            }
+            lease.send(newMessage());
+        }
+        assertEquals(2, server.getAcceptedMessages());
+        assertEquals(1, server.getConnectionsOpened());
+    }
+
+    @Test
+    public void testFanOutConnections() throws Exception {
+        // seven recipients with three messages per connection need three connections
+        final TestRunner runner = newRunner();
+        runner.setProperty(SendEmail.FAN_OUT_ATTRIBUTE, "owner.email");
+        runner.setProperty(SendEmail.MAX_MESSAGES_PER_CONNECTION, "3");
+        for (int i = 0; i < 7; i++) {
+            runner.enqueue("Some text".getBytes(), Collections.singletonMap("owner.email", "owner-" + i + "@apache.org"));
+        }
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 7);
+        assertEquals(7, server.getAcceptedMessages());
+        assertEquals(3, server.getConnectionsOpened());
+    }
+
+    @Test
+    public void testConnectionsClosedWhenStopped() throws Exception {
+        final TestRunner runner = newRunner();
+        runner.enqueue("Some text".getBytes());
+        runner.run(1, false, true);
+        runner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 1);
+        assertEquals(1, server.getAcceptedMessages());
+        assertEquals(1, server.getOpenConnections());
+
+        runner.run(1, true, false);
+        assertTrue(server.awaitOpenConnections(0));
+    }
+
+    private TestRunner newRunner() {
+        final TestRunner runner = TestRunners.newTestRunner(new SendEmail());
+        runner.setProperty(SendEmail.SMTP_HOSTNAME, "127.0.0.1");
+        runner.setProperty(SendEmail.SMTP_PORT, String.valueOf(server.getPort()));
+        runner.setProperty(SendEmail.SMTP_AUTH, "false");
+        // the default SSL socket factory would first try a handshake on a connection of its own
+        runner.setProperty(SendEmail.SMTP_SOCKET_FACTORY, "javax.net.SocketFactory");
+        runner.setProperty(SendEmail.FROM, "test@apache.org");
+        runner.setProperty(SendEmail.TO, "recipient@apache.org");
+        return runner;
+    }
+
+    private TransportPool newPool(final int maxConnections, final long maxIdleMillis, final int maxMessagesPerConnection) {
+        return new TransportPool(session, "127.0.0.1", server.getPort(), maxConnections, maxIdleMillis, maxMessagesPerConnection,
+                new SendMetrics());
+    }
+
+    private MimeMessage newMessage() throws MessagingException {
+        final MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("test@apache.org"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("recipient@apache.org"));
+        message.setSubject("Pooled");
+        message.setText("Some text");
+        return message;
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.cclient.nifi.email;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTransportRouter {
+
+    private InProcessSmtpServer healthy;
+    private InProcessSmtpServer failing;
+    private Session session;
+    private MockComponentLog logger;
+
+    @Before
+    public void setup() throws Exception {
+        healthy = new InProcessSmtpServer().start();
+        failing = new InProcessSmtpServer().start();
+        session = Session.getInstance(new Properties());
+        logger = new MockComponentLog("router", this);
+    }
+
+    @After
+    public void teardown() {
+        healthy.close();
+        failing.close();
+    }
+
+    @Test
+    public void testFailoverToHealthyHost() throws Exception {
+        failing.close();
+        try (TransportRouter router = newRouter(3, 60_000L)) {
+            for (int i = 0; i < 5; i++) {
+                router.send(newMessage());
+            }
+        }
+        assertEquals(5, healthy.getAcceptedMessages());
+    }
+
+    @Test
+    public void testHostEjectedAfterThreshold() throws Exception {
+        failing.setDropConnections(true);
+        try (TransportRouter router = newRouter(2, 60_000L)) {
+            for (int i = 0; i < 10; i++) {
+                router.send(newMessage());
+            }
+        }
+        // the failing host, without a latency sample, is tried first until it is ejected
+        assertEquals(2, failing.getConnectionsOpened());
+        assertEquals(10, healthy.getAcceptedMessages());
+        assertEquals(1, logger.getWarnMessages().size());
+    }
+
+    @Test
+    public void testHostUsedAgainAfterCooldown() throws Exception {
+        final int port = failing.getPort();
+        failing.close();
+        try (TransportRouter router = newRouter(1, 500L)) {
+            router.send(newMessage());
+            failing = new InProcessSmtpServer(port).start();
+            for (int i = 0; i < 3; i++) {
+                router.send(newMessage());
+            }
+            assertEquals(4, healthy.getAcceptedMessages());
+            assertEquals(0, failing.getAcceptedMessages());
+
+            Thread.sleep(600L);
+            router.send(newMessage());
+            assertEquals(1, failing.getAcceptedMessages());
+        }
+    }
+
+    @Test
+    public void testLowestLatencyHostPreferred() throws Exception {
+        failing.setLatencyMillis(100L);
+        try (TransportRouter router = newRouter(3, 60_000L)) {
+            for (int i = 0; i < 10; i++) {
+                router.send(newMessage());
+            }
+        }
+        // each host gets one email to take a first sample, then the faster one gets all the others
+        assertEquals(1, failing.getAcceptedMessages());
+        assertEquals(9, healthy.getAcceptedMessages());
+    }
+
+    private TransportRouter newRouter(final int ejectionThreshold, final long cooldownMillis) {
+        return new TransportRouter(session, Arrays.asList(
+                InetSocketAddress.createUnresolved("127.0.0.1", failing.getPort()),
+                InetSocketAddress.createUnresolved("127.0.0.1", healthy.getPort())),
+                1, 60_000L, 100, ejectionThreshold, cooldownMillis, new SendMetrics(), logger);
+    }
+
+    private MimeMessage newMessage() throws MessagingException {
+        final MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("test@apache.org"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("recipient@apache.org"));
+        message.setSubject("Routed");
+        message.setText("Some text");
+        return message;
+    }
+}